@@ -0,0 +1,85 @@
+package com.twinzom.gdfu;
+
+/**
+ * Picks the size of the next chunk from the throughput of the previous ones
+ * 
+ * <p>
+ * The size moves toward the number of bytes that can be sent in the target request duration, 
+ * at most doubling or halving per chunk. Sizes are always a multiple of 256 KB, as required by 
+ * Google Drive for all chunks but the last one.
+ * </p>
+ */
+class AdaptiveChunkSizer {
+
+	/**
+	 * Google Drive requires chunks to be a multiple of 256 KB
+	 */
+	static final int CHUNK_GRANULARITY = 256 * 1024;
+	
+	/**
+	 * Weight of the latest measure in the smoothed throughput
+	 */
+	private static final double SMOOTHING = 0.5;
+	
+	private final int maxChunkSize;
+	
+	private final long targetDurationNanos;
+	
+	private int chunkSize;
+	
+	/**
+	 * Smoothed throughput in bytes per nanosecond, 0 until the first measure
+	 */
+	private double throughput = 0;
+	
+	/**
+	 * @param initialChunkSize
+	 * @param maxChunkSize
+	 * @param targetDuration - The target duration of a chunk request (in milliseconds)
+	 */
+	AdaptiveChunkSizer(int initialChunkSize, int maxChunkSize, int targetDuration) {
+		this.maxChunkSize = (int) Math.max(CHUNK_GRANULARITY, align(maxChunkSize));
+		this.targetDurationNanos = targetDuration * 1000000L;
+		this.chunkSize = clamp(align(initialChunkSize));
+	}
+	
+	/**
+	 * Get the size of the next chunk
+	 * 
+	 * @return
+	 */
+	int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/**
+	 * Record the time a chunk took to be sent and acknowledged
+	 * 
+	 * @param bytes
+	 * @param elapsedNanos
+	 */
+	void update(int bytes, long elapsedNanos) {
+		
+		// the last chunk is usually short, its latency says little about throughput
+		if (bytes < CHUNK_GRANULARITY || elapsedNanos <= 0) {
+			return;
+		}
+		
+		double measured = (double) bytes / elapsedNanos;
+		throughput = throughput == 0 ? measured : SMOOTHING * measured + (1 - SMOOTHING) * throughput;
+		
+		long target = (long) (throughput * targetDurationNanos);
+		target = Math.max(chunkSize / 2, Math.min(2L * chunkSize, target));
+		
+		chunkSize = clamp(align(target));
+	}
+	
+	private int clamp(long size) {
+		return (int) Math.max(CHUNK_GRANULARITY, Math.min(maxChunkSize, size));
+	}
+	
+	private static long align(long size) {
+		return size / CHUNK_GRANULARITY * CHUNK_GRANULARITY;
+	}
+	
+}
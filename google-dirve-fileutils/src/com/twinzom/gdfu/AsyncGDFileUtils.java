@@ -0,0 +1,498 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.TeamDrive;
+
+/**
+ * Asynchronous facade of {@link GDFileUtils}
+ *
+ * <p>
+ * Every operation returns a {@link CompletableFuture} at once and runs on the executor. A failed
+ * operation completes its future exceptionally with the {@link IOException} thrown.
+ * </p>
+ *
+ * <p>
+ * At most <code>maxInFlight</code> operations run at the same time, the others wait in a queue
+ * without holding a thread. Cancelling a future removes its operation from the queue, or
+ * interrupts it when it is running.
+ * </p>
+ *
+ * <p>
+ * By default the operations run on virtual threads when the JVM supports them (Java 21 or later),
+ * otherwise on a cached pool of daemon threads. The default executor is shut down by {@link #shutdown()},
+ * an executor given by the caller is not.
+ * </p>
+ *
+ * <pre>
+ * AsyncGDFileUtils async = new AsyncGDFileUtils(gdfu);
+ * CompletableFuture&lt;File&gt; folder = async.mkFolder("reports", parentId);
+ * folder.thenCompose(f -&gt; async.upload(null, localFile, Arrays.asList(f.getId())))
+ *       .join();
+ * </pre>
+ */
+public class AsyncGDFileUtils {
+
+	/**
+	 * Default maximum number of operations running at the same time
+	 */
+	private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+	/**
+	 * An operation of {@link GDFileUtils}
+	 */
+	private interface Operation<T> {
+		T run() throws IOException;
+	}
+
+	private final GDFileUtils gdfu;
+
+	private final Executor executor;
+
+	/**
+	 * The executor was created here, it is shut down with this facade
+	 */
+	private final ExecutorService ownExecutor;
+
+	private final int maxInFlight;
+
+	private final Queue<Task<?>> queue = new ConcurrentLinkedQueue<Task<?>>();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * Use the default executor and in-flight limit
+	 *
+	 * @param gdfu
+	 */
+	public AsyncGDFileUtils(GDFileUtils gdfu) {
+		this(gdfu, null, DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param gdfu
+	 * @param executor - The executor running the operations, null for the default one
+	 * @param maxInFlight - The maximum number of operations running at the same time
+	 */
+	public AsyncGDFileUtils(GDFileUtils gdfu, Executor executor, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Max in-flight operations must be at least 1");
+		}
+		this.gdfu = gdfu;
+		this.maxInFlight = maxInFlight;
+		if (executor != null) {
+			this.executor = executor;
+			this.ownExecutor = null;
+		} else {
+			this.ownExecutor = newDefaultExecutor();
+			this.executor = ownExecutor;
+		}
+	}
+
+	/**
+	 * Get the blocking utils behind this facade
+	 *
+	 * @return
+	 */
+	public GDFileUtils getGDFileUtils() {
+		return gdfu;
+	}
+
+	/**
+	 * Get the maximum number of operations running at the same time
+	 *
+	 * @return
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Get the number of operations running
+	 *
+	 * @return
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Get the number of operations waiting for a free slot
+	 *
+	 * @return
+	 */
+	public int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * Shut down the default executor, the operations queued are cancelled
+	 *
+	 * <p>
+	 * Nothing is shut down when the executor was given by the caller.
+	 * </p>
+	 */
+	public void shutdown() {
+		if (ownExecutor == null) {
+			return;
+		}
+		ownExecutor.shutdown();
+		Task<?> task;
+		while ((task = queue.poll()) != null) {
+			task.future.cancel(false);
+		}
+	}
+
+	/**
+	 * @see GDFileUtils#upload(File, java.io.File, java.util.List)
+	 */
+	public CompletableFuture<Void> upload(final File metadata, final java.io.File localFile,
+			final java.util.List<String> parentIds) {
+		return submit(new Operation<Void>() {
+			@Override
+			public Void run() throws IOException {
+				gdfu.upload(metadata, localFile, parentIds);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#upload(File, java.io.File, java.util.List, UploadStats)
+	 */
+	public CompletableFuture<UploadStats> uploadWithStats(final File metadata, final java.io.File localFile,
+			final java.util.List<String> parentIds) {
+		return submit(new Operation<UploadStats>() {
+			@Override
+			public UploadStats run() throws IOException {
+				UploadStats stats = new UploadStats();
+				gdfu.upload(metadata, localFile, parentIds, stats);
+				return stats;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#update(String, java.io.File)
+	 */
+	public CompletableFuture<Void> update(final String fileId, final java.io.File localFile) {
+		return submit(new Operation<Void>() {
+			@Override
+			public Void run() throws IOException {
+				gdfu.update(fileId, localFile);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#download(String, java.io.File)
+	 */
+	public CompletableFuture<Void> download(final String fileId, final java.io.File localFile) {
+		return submit(new Operation<Void>() {
+			@Override
+			public Void run() throws IOException {
+				gdfu.download(fileId, localFile);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#mkFolder(String, String)
+	 */
+	public CompletableFuture<File> mkFolder(final String folderName, final String parentId) {
+		return submit(new Operation<File>() {
+			@Override
+			public File run() throws IOException {
+				return gdfu.mkFolder(folderName, parentId);
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#listFiles(String, String, java.util.List)
+	 */
+	public CompletableFuture<Collection<File>> listFiles(final String folderId, final String q,
+			final java.util.List<String> fields) {
+		return submit(new Operation<Collection<File>>() {
+			@Override
+			public Collection<File> run() throws IOException {
+				return gdfu.listFiles(folderId, q, fields);
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#getFilesByName(String, String)
+	 */
+	public CompletableFuture<java.util.List<File>> getFilesByName(final String fileName, final String folderId) {
+		return submit(new Operation<java.util.List<File>>() {
+			@Override
+			public java.util.List<File> run() throws IOException {
+				return gdfu.getFilesByName(fileName, folderId);
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#getFileById(String, java.util.List)
+	 */
+	public CompletableFuture<File> getFileById(final String fileId, final java.util.List<String> fields) {
+		return submit(new Operation<File>() {
+			@Override
+			public File run() throws IOException {
+				return gdfu.getFileById(fileId, fields);
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#listTeamDrives()
+	 */
+	public CompletableFuture<java.util.List<TeamDrive>> listTeamDrives() {
+		return submit(new Operation<java.util.List<TeamDrive>>() {
+			@Override
+			public java.util.List<TeamDrive> run() throws IOException {
+				return gdfu.listTeamDrives();
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#rename(String, String)
+	 */
+	public CompletableFuture<Void> rename(final String fileId, final String newName) {
+		return submit(new Operation<Void>() {
+			@Override
+			public Void run() throws IOException {
+				gdfu.rename(fileId, newName);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#deleteFile(String)
+	 */
+	public CompletableFuture<Void> deleteFile(final String fileId) {
+		return submit(new Operation<Void>() {
+			@Override
+			public Void run() throws IOException {
+				gdfu.deleteFile(fileId);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#copyFileToFolder(String, String)
+	 */
+	public CompletableFuture<Void> copyFileToFolder(final String fileId, final String destFolderId) {
+		return submit(new Operation<Void>() {
+			@Override
+			public Void run() throws IOException {
+				gdfu.copyFileToFolder(fileId, destFolderId);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#moveFileToFolder(String, String)
+	 */
+	public CompletableFuture<Void> moveFileToFolder(final String fileId, final String folderId) {
+		return submit(new Operation<Void>() {
+			@Override
+			public Void run() throws IOException {
+				gdfu.moveFileToFolder(fileId, folderId);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#addFileToFolder(String, String)
+	 */
+	public CompletableFuture<Void> addFileToFolder(final String fileId, final String folderId) {
+		return submit(new Operation<Void>() {
+			@Override
+			public Void run() throws IOException {
+				gdfu.addFileToFolder(fileId, folderId);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#removeFileFromFolder(String, String)
+	 */
+	public CompletableFuture<Void> removeFileFromFolder(final String fileId, final String folderId) {
+		return submit(new Operation<Void>() {
+			@Override
+			public Void run() throws IOException {
+				gdfu.removeFileFromFolder(fileId, folderId);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#getPaths(String)
+	 */
+	public CompletableFuture<java.util.List<String>> getPaths(final String fileId) {
+		return submit(new Operation<java.util.List<String>>() {
+			@Override
+			public java.util.List<String> run() throws IOException {
+				return gdfu.getPaths(fileId);
+			}
+		});
+	}
+
+	/**
+	 * @see GDFileUtils#getFileIdByPath(String)
+	 */
+	public CompletableFuture<String> getFileIdByPath(final String path) {
+		return submit(new Operation<String>() {
+			@Override
+			public String run() throws IOException {
+				return gdfu.getFileIdByPath(path);
+			}
+		});
+	}
+
+	/**
+	 * Queue an operation and start it when a slot is free
+	 *
+	 * @param operation
+	 * @return
+	 */
+	private <T> CompletableFuture<T> submit(Operation<T> operation) {
+
+		final Task<T> task = new Task<T>(operation);
+
+		task.future.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(T result, Throwable error) {
+				if (task.future.isCancelled()) {
+					task.cancel();
+				}
+			}
+		});
+
+		queue.add(task);
+		dispatch();
+
+		return task.future;
+	}
+
+	/**
+	 * Start the queued operations while there are free slots
+	 */
+	private void dispatch() {
+
+		while (!queue.isEmpty()) {
+			int current = inFlight.get();
+			if (current >= maxInFlight) {
+				return;
+			}
+			if (!inFlight.compareAndSet(current, current + 1)) {
+				continue;
+			}
+
+			Task<?> task = queue.poll();
+			if (task == null || task.future.isDone()) {
+				inFlight.decrementAndGet();
+				continue;
+			}
+
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				inFlight.decrementAndGet();
+				task.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Create the default executor, on virtual threads when they are supported
+	 *
+	 * @return
+	 */
+	private static ExecutorService newDefaultExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			// before Java 21
+			return Executors.newCachedThreadPool(new DaemonThreadFactory("gdfu-async"));
+		}
+	}
+
+	/**
+	 * An operation waiting in the queue or running
+	 */
+	private class Task<T> implements Runnable {
+
+		private final Operation<T> operation;
+
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		/**
+		 * The thread running the operation, null when it is not running
+		 */
+		private Thread runner;
+
+		private Task(Operation<T> operation) {
+			this.operation = operation;
+		}
+
+		@Override
+		public void run() {
+			try {
+				synchronized (this) {
+					if (future.isDone()) {
+						return;
+					}
+					runner = Thread.currentThread();
+				}
+				try {
+					future.complete(operation.run());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					synchronized (this) {
+						runner = null;
+						// clear an interrupt of a cancel that came too late
+						Thread.interrupted();
+					}
+				}
+			} finally {
+				inFlight.decrementAndGet();
+				dispatch();
+			}
+		}
+
+		private synchronized void cancel() {
+			queue.remove(this);
+			if (runner != null) {
+				runner.interrupt();
+			}
+		}
+
+	}
+
+}
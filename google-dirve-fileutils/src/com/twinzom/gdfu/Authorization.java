@@ -17,6 +17,11 @@ public class Authorization {
 		return credential;
 	}
 	
+	/**
+	 * @deprecated Concurrent callers may refresh the token at the same time and a failed refresh 
+	 * 			   is not reported, use {@link TokenManager#getAccessToken()} instead
+	 */
+	@Deprecated
 	public static String getAccessToken (GoogleCredential credential) {
 		String accessToken = credential.getAccessToken();
 		Long expiresIn = credential.getExpiresInSeconds();
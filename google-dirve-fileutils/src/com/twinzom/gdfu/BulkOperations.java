@@ -0,0 +1,496 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Bulk file operations sent as Google Drive batch requests
+ * 
+ * <p>
+ * Operations are queued by the builder style methods and sent by {@link #execute()}, up to 
+ * 100 operations per batch request. Moving files needs their current parents, they are 
+ * fetched by batch requests as well, before the moves.
+ * </p>
+ * 
+ * <p>
+ * Operations rejected for rate limits or server errors are split out of the batch and retried 
+ * in a later batch, after the backoff of the {@link RequestThrottle} of the utils class. Each 
+ * operation gets its own {@link Result}. This is the only retry of an operation, the calls 
+ * of a batch do not pass by the throttle, the batch request itself does.
+ * </p>
+ * 
+ * <pre>
+ * List&lt;BulkOperations.Result&gt; results = gdfu.newBulkOperations()
+ *         .rename("fileId1", "new name")
+ *         .moveToFolder("fileId2", "folderId")
+ *         .delete("fileId3")
+ *         .execute();
+ * </pre>
+ */
+public class BulkOperations {
+
+	/**
+	 * The maximum number of calls in one batch request
+	 */
+	static final int MAX_BATCH_SIZE = 100;
+	
+	/**
+	 * The batch endpoint of Google Drive, relative to the root URL, the global one was retired
+	 */
+	static final String BATCH_PATH = "batch/drive/v3";
+	
+	/**
+	 * The type of a bulk operation
+	 */
+	public enum Type {
+		DELETE, TRASH, RENAME, COPY, MOVE, ADD_TO_FOLDER, REMOVE_FROM_FOLDER, CREATE
+	}
+	
+	private final Drive drive;
+	
+	/**
+	 * Builds the calls, without the handlers of the throttle: a handler throwing an error would 
+	 * abort the whole batch
+	 */
+	private final Drive callDrive;
+	
+	/**
+	 * The utils class whose caches are to be kept up to date
+	 */
+	private final GDFileUtils gdfu;
+	
+	private final List<Result> operations = new ArrayList<Result>();
+	
+	BulkOperations(Drive drive, Drive callDrive, GDFileUtils gdfu) {
+		this.drive = drive;
+		this.callDrive = callDrive;
+		this.gdfu = gdfu;
+	}
+	
+	/**
+	 * Queue deleting a file
+	 * 
+	 * @param fileId
+	 * @return
+	 */
+	public BulkOperations delete(String fileId) {
+		return add(Type.DELETE, fileId, null, null);
+	}
+	
+	/**
+	 * Queue moving a file to the trash
+	 * 
+	 * @param fileId
+	 * @return
+	 */
+	public BulkOperations trash(String fileId) {
+		return add(Type.TRASH, fileId, null, null);
+	}
+	
+	/**
+	 * Queue renaming a file or folder
+	 * 
+	 * @param fileId
+	 * @param newName
+	 * @return
+	 */
+	public BulkOperations rename(String fileId, String newName) {
+		return add(Type.RENAME, fileId, null, newName);
+	}
+	
+	/**
+	 * Queue copying a file to a folder, a null folder makes a copy in the same folder
+	 * 
+	 * @param fileId
+	 * @param folderId
+	 * @return
+	 */
+	public BulkOperations copyToFolder(String fileId, String folderId) {
+		return add(Type.COPY, fileId, folderId, null);
+	}
+	
+	/**
+	 * Queue copying a file with given metadata of the copy, e.g. its name, parents or app properties
+	 * 
+	 * @param fileId
+	 * @param metadata
+	 * @return
+	 */
+	public BulkOperations copy(String fileId, File metadata) {
+		return add(Type.COPY, fileId, null, null).setMetadata(metadata);
+	}
+	
+	/**
+	 * Queue creating a file without content, e.g. a folder
+	 * 
+	 * @param metadata
+	 * @return
+	 */
+	public BulkOperations create(File metadata) {
+		return add(Type.CREATE, null, null, null).setMetadata(metadata);
+	}
+	
+	/**
+	 * Queue moving a file to a folder, all original parents are removed
+	 * 
+	 * @param fileId
+	 * @param folderId
+	 * @return
+	 */
+	public BulkOperations moveToFolder(String fileId, String folderId) {
+		return add(Type.MOVE, fileId, folderId, null);
+	}
+	
+	/**
+	 * Queue moving a file from a folder to another one, the other parents are kept
+	 * 
+	 * <p>
+	 * The parent removed is known, the current parents are not fetched.
+	 * </p>
+	 * 
+	 * @param fileId
+	 * @param fromFolderId
+	 * @param toFolderId
+	 * @return
+	 */
+	public BulkOperations moveToFolder(String fileId, String fromFolderId, String toFolderId) {
+		add(Type.MOVE, fileId, toFolderId, null);
+		operations.get(operations.size() - 1).parents = Collections.singletonList(fromFolderId);
+		return this;
+	}
+	
+	/**
+	 * Queue adding a file to a folder, the original parents are kept
+	 * 
+	 * @param fileId
+	 * @param folderId
+	 * @return
+	 */
+	public BulkOperations addToFolder(String fileId, String folderId) {
+		return add(Type.ADD_TO_FOLDER, fileId, folderId, null);
+	}
+	
+	/**
+	 * Queue removing a file from a folder, the file is not deleted
+	 * 
+	 * @param fileId
+	 * @param folderId
+	 * @return
+	 */
+	public BulkOperations removeFromFolder(String fileId, String folderId) {
+		return add(Type.REMOVE_FROM_FOLDER, fileId, folderId, null);
+	}
+	
+	/**
+	 * Get the number of queued operations
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return operations.size();
+	}
+	
+	/**
+	 * Send all queued operations
+	 * 
+	 * <p>
+	 * The queue is emptied, the builder can be used for the next operations.
+	 * </p>
+	 * 
+	 * @return The result of each operation, in the order they were queued
+	 * @throws IOException - If a batch request cannot be sent at all
+	 */
+	public List<Result> execute() throws IOException {
+		
+		List<Result> results = new ArrayList<Result>(operations);
+		operations.clear();
+		
+		// moves need the current parents first
+		List<Result> moves = new ArrayList<Result>();
+		for (Result result : results) {
+			if (result.getType() == Type.MOVE && result.parents == null) {
+				moves.add(result);
+			}
+		}
+		if (!moves.isEmpty()) {
+			run(moves, true);
+		}
+		
+		List<Result> pending = new ArrayList<Result>();
+		for (Result result : results) {
+			if (result.getType() != Type.MOVE || result.parents != null) {
+				pending.add(result);
+			}
+		}
+		run(pending, false);
+		
+		for (Result result : results) {
+			if (!result.isSuccess()) {
+				continue;
+			}
+			if (result.getType() != Type.COPY && result.getType() != Type.CREATE) {
+				gdfu.invalidate(result.getFileId());
+			}
+			// the new name and parents of the folders renamed, moved or created
+			if (result.getFile() != null) {
+				gdfu.getPathIndex().add(result.getFile());
+			}
+		}
+		
+		return Collections.unmodifiableList(results);
+	}
+	
+	private BulkOperations add(Type type, String fileId, String folderId, String newName) {
+		operations.add(new Result(type, fileId, folderId, newName));
+		return this;
+	}
+	
+	private BulkOperations setMetadata(File metadata) {
+		operations.get(operations.size() - 1).metadata = metadata;
+		return this;
+	}
+	
+	/**
+	 * Send given operations in batches, retrying the ones that were rejected for rate limits
+	 * 
+	 * @param operations
+	 * @param fetchParents - Whether the parents are fetched instead of running the operations
+	 * @throws IOException
+	 */
+	private void run(List<Result> operations, boolean fetchParents) throws IOException {
+		
+		RequestThrottle throttle = gdfu.getRequestThrottle();
+		
+		List<Result> pending = operations;
+		for (int attempt = 1; !pending.isEmpty(); attempt++) {
+			
+			for (int from = 0; from < pending.size(); from += MAX_BATCH_SIZE) {
+				List<Result> slice = pending.subList(from, Math.min(from + MAX_BATCH_SIZE, pending.size()));
+				// each call counts against the quota, the batch request itself takes one permit 
+				// and is retried as a whole by the throttle, e.g. on 503
+				if (slice.size() > 1) {
+					throttle.acquire(slice.size() - 1);
+				}
+				BatchRequest batch = drive.batch(drive.getRequestFactory().getInitializer())
+										  .setBatchUrl(new GenericUrl(drive.getRootUrl() + BATCH_PATH));
+				for (Result operation : slice) {
+					operation.error = null;
+					if (fetchParents) {
+						queueGetParents(batch, operation);
+					} else {
+						queue(batch, operation);
+					}
+				}
+				batch.execute();
+			}
+			
+			List<Result> retries = new ArrayList<Result>();
+			for (Result operation : pending) {
+				if (operation.error != null && throttle.isRetriable(operation.error)) {
+					if (attempt < throttle.getMaxAttempts()) {
+						retries.add(operation);
+					} else {
+						throttle.recordFailure();
+					}
+				}
+			}
+			if (!retries.isEmpty()) {
+				// the requests wait for the backoff to end
+				throttle.backoff(attempt, 0);
+			}
+			pending = retries;
+		}
+	}
+	
+	private void queueGetParents(BatchRequest batch, final Result operation) throws IOException {
+		callDrive.files().get(operation.getFileId())
+					 .setFields("id,parents")
+					 .setSupportsTeamDrives(true)
+					 .queue(batch, new JsonBatchCallback<File>() {
+						@Override
+						public void onSuccess(File file, HttpHeaders responseHeaders) {
+							operation.parents = file.getParents() == null 
+									? Collections.<String>emptyList() : file.getParents();
+						}
+						@Override
+						public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+							operation.error = error;
+						}
+					 });
+	}
+	
+	private void queue(BatchRequest batch, final Result operation) throws IOException {
+		
+		JsonBatchCallback<File> callback = new JsonBatchCallback<File>() {
+			@Override
+			public void onSuccess(File file, HttpHeaders responseHeaders) {
+				operation.file = file;
+				operation.success = true;
+			}
+			@Override
+			public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+				operation.error = error;
+			}
+		};
+		
+		String fields = Util.listToString(GDFileUtils.DEFAULT_FILE_FIELDS, ",", "");
+		
+		switch (operation.getType()) {
+		case DELETE:
+			callDrive.files().delete(operation.getFileId())
+						 .setSupportsTeamDrives(true)
+						 .queue(batch, new JsonBatchCallback<Void>() {
+							@Override
+							public void onSuccess(Void content, HttpHeaders responseHeaders) {
+								operation.success = true;
+							}
+							@Override
+							public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+								operation.error = error;
+							}
+						 });
+			break;
+		case TRASH:
+			File trashed = new File();
+			trashed.setTrashed(true);
+			callDrive.files().update(operation.getFileId(), trashed)
+						 .setFields(fields)
+						 .setSupportsTeamDrives(true)
+						 .queue(batch, callback);
+			break;
+		case RENAME:
+			File content = new File();
+			content.setName(operation.newName);
+			callDrive.files().update(operation.getFileId(), content)
+						 .setFields(fields)
+						 .setSupportsTeamDrives(true)
+						 .queue(batch, callback);
+			break;
+		case COPY:
+			File copy = operation.metadata;
+			if (copy == null && operation.getFolderId() != null) {
+				copy = new File();
+				copy.setParents(Arrays.asList(operation.getFolderId()));
+			}
+			callDrive.files().copy(operation.getFileId(), copy)
+						 .setFields(fields)
+						 .setSupportsTeamDrives(true)
+						 .queue(batch, callback);
+			break;
+		case CREATE:
+			callDrive.files().create(operation.metadata)
+						 .setFields(fields)
+						 .setSupportsTeamDrives(true)
+						 .queue(batch, callback);
+			break;
+		case MOVE:
+			callDrive.files().update(operation.getFileId(), null)
+						 .setAddParents(operation.getFolderId())
+						 .setRemoveParents(Util.listToString(operation.parents, ",", ""))
+						 .setFields(fields)
+						 .setSupportsTeamDrives(true)
+						 .queue(batch, callback);
+			break;
+		case ADD_TO_FOLDER:
+			callDrive.files().update(operation.getFileId(), null)
+						 .setAddParents(operation.getFolderId())
+						 .setFields(fields)
+						 .setSupportsTeamDrives(true)
+						 .queue(batch, callback);
+			break;
+		case REMOVE_FROM_FOLDER:
+			callDrive.files().update(operation.getFileId(), null)
+						 .setRemoveParents(operation.getFolderId())
+						 .setFields(fields)
+						 .setSupportsTeamDrives(true)
+						 .queue(batch, callback);
+			break;
+		}
+	}
+	
+	//-----------------------------------------------------------------------
+	/**
+	 * A queued operation and its result once executed
+	 */
+	public static class Result {
+		
+		private final Type type;
+		private final String fileId;
+		private final String folderId;
+		private final String newName;
+		
+		private File metadata;
+		private java.util.List<String> parents;
+		private boolean success = false;
+		private File file;
+		private GoogleJsonError error;
+		
+		Result(Type type, String fileId, String folderId, String newName) {
+			this.type = type;
+			this.fileId = fileId;
+			this.folderId = folderId;
+			this.newName = newName;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Get the file operated on, null for a create
+		 * 
+		 * @return
+		 */
+		public String getFileId() {
+			return fileId;
+		}
+
+		/**
+		 * Get the target folder of copy, move, add and remove operations
+		 * 
+		 * @return
+		 */
+		public String getFolderId() {
+			return folderId;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		/**
+		 * Get the file returned by Google Drive, the new file for a copy or a create
+		 * 
+		 * @return
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Get the error of a failed operation
+		 * 
+		 * @return
+		 */
+		public GoogleJsonError getError() {
+			return error;
+		}
+		
+		@Override
+		public String toString() {
+			return "Result [type=" + type + ", fileId=" + fileId + ", folderId=" + folderId 
+					+ ", success=" + success + (error != null ? ", error=" + error.getMessage() : "") + "]";
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.twinzom.gdfu;
+
+import java.util.List;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+
+/**
+ * A change of a file, as delivered by {@link ChangeWatcher}
+ */
+public class ChangeEvent {
+
+	/**
+	 * The type of a change
+	 */
+	public enum Type {
+		CREATED, MODIFIED, MOVED, TRASHED, DELETED
+	}
+	
+	private final Type type;
+	
+	private final String fileId;
+	
+	private final File file;
+	
+	private final List<String> previousParents;
+	
+	private final DateTime time;
+	
+	ChangeEvent(Type type, String fileId, File file, List<String> previousParents, DateTime time) {
+		this.type = type;
+		this.fileId = fileId;
+		this.file = file;
+		this.previousParents = previousParents;
+		this.time = time;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getFileId() {
+		return fileId;
+	}
+
+	/**
+	 * Get the file after the change, null for a deleted file
+	 * 
+	 * @return
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the parents before a move, null for other changes
+	 * 
+	 * @return
+	 */
+	public List<String> getPreviousParents() {
+		return previousParents;
+	}
+
+	public DateTime getTime() {
+		return time;
+	}
+	
+	@Override
+	public String toString() {
+		return "ChangeEvent [type=" + type + ", fileId=" + fileId 
+				+ (file != null ? ", name=" + file.getName() : "") + ", time=" + time + "]";
+	}
+}
@@ -0,0 +1,15 @@
+package com.twinzom.gdfu;
+
+/**
+ * Receives the file changes found by {@link ChangeWatcher}
+ */
+public interface ChangeListener {
+
+	/**
+	 * Called for each change, in the order of the changes feed
+	 * 
+	 * @param event
+	 */
+	void onChange(ChangeEvent event);
+	
+}
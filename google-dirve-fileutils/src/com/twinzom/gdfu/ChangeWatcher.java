@@ -0,0 +1,409 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.TeamDrive;
+
+/**
+ * Watches the Google Drive changes feed and delivers file events to listeners
+ * 
+ * <p>
+ * Instead of listing folders again and comparing the results, the watcher asks Google Drive 
+ * for the changes since the last page token. The page token is saved to a local file after each 
+ * page, with the time of the last poll, so a restarted watcher continues where it stopped. When the Team Drive was set on 
+ * {@link GDFileUtils}, the changes of that Team Drive are watched.
+ * </p>
+ * 
+ * <p>
+ * Polls are scheduled with an adaptive interval: back to the minimum interval after changes were 
+ * found, doubled (up to the maximum interval) after a poll without changes or with an error.
+ * </p>
+ * 
+ * <p>
+ * Google Drive does not tell the kind of a change. Deleted and trashed files are reported as such, 
+ * a file created since the previous poll as created, and a file whose parents differ from the ones 
+ * seen before as moved. Other changes, including moves of files never seen by the watcher, 
+ * are reported as modified.
+ * </p>
+ */
+public class ChangeWatcher {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final long DEFAULT_MIN_INTERVAL = 5 * 1000;
+	
+	private static final long DEFAULT_MAX_INTERVAL = 5 * 60 * 1000;
+	
+	/**
+	 * The number of files whose parents are remembered to detect moves
+	 */
+	private static final int KNOWN_PARENTS_SIZE = 100000;
+	
+	private static final String CHANGE_FIELDS = "nextPageToken,newStartPageToken,changes(fileId,removed,time,"
+			+ "file(id,name,mimeType,parents,trashed,createdTime,modifiedTime,size,md5Checksum))";
+	
+	private final Drive drive;
+	
+	private final GDFileUtils gdfu;
+	
+	private final TeamDrive teamDrive;
+	
+	private final java.io.File tokenFile;
+	
+	private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+	
+	private final Map<String, List<String>> knownParents = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+			return size() > KNOWN_PARENTS_SIZE;
+		}
+	};
+	
+	private long minInterval = DEFAULT_MIN_INTERVAL;
+	
+	private long maxInterval = DEFAULT_MAX_INTERVAL;
+	
+	private long interval = DEFAULT_MIN_INTERVAL;
+	
+	private String pageToken;
+	
+	/**
+	 * The time of the previous poll, files created after it are reported as created
+	 */
+	private long lastPollTime = System.currentTimeMillis();
+	
+	/**
+	 * Held by the poll in progress, the monitor of the watcher is taken only to update its state
+	 */
+	private final Object pollLock = new Object();
+	
+	private volatile IOException lastError;
+	
+	private ScheduledExecutorService scheduler;
+	
+	/**
+	 * @param drive
+	 * @param gdfu - The utils class whose caches are kept up to date with the changes
+	 * @param tokenFile - The file where the page token is saved, may be null to keep it in memory only
+	 */
+	ChangeWatcher(Drive drive, GDFileUtils gdfu, java.io.File tokenFile) {
+		this.drive = drive;
+		this.gdfu = gdfu;
+		this.teamDrive = gdfu.getTeamDrive();
+		this.tokenFile = tokenFile;
+	}
+	
+	public void addListener(ChangeListener listener) {
+		listeners.add(listener);
+	}
+	
+	public void removeListener(ChangeListener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Set the bounds of the adaptive poll interval (in milliseconds)
+	 * 
+	 * @param minInterval
+	 * @param maxInterval
+	 */
+	public synchronized void setPollInterval(long minInterval, long maxInterval) {
+		if (minInterval < 1 || maxInterval < minInterval) {
+			throw new IllegalArgumentException("Invalid poll interval " + minInterval + "-" + maxInterval);
+		}
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.interval = minInterval;
+	}
+	
+	/**
+	 * Get the interval until the next scheduled poll (in milliseconds)
+	 * 
+	 * @return
+	 */
+	public synchronized long getPollInterval() {
+		return interval;
+	}
+	
+	/**
+	 * Get the error of the last poll, null if it succeeded
+	 * 
+	 * @return
+	 */
+	public IOException getLastError() {
+		return lastError;
+	}
+	
+	/**
+	 * Get the current page token
+	 * 
+	 * @return
+	 */
+	public synchronized String getPageToken() {
+		return pageToken;
+	}
+	
+	/**
+	 * Start polling in the background
+	 * 
+	 * <p>
+	 * The first poll only gets the start page token when none was saved, so the changes made 
+	 * before the watcher first started are not delivered.
+	 * </p>
+	 */
+	public synchronized void start() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("gdfu-change-watcher"));
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					scheduledPoll();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Stop polling, a poll in progress is finished
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+	}
+	
+	/**
+	 * Poll the changes feed once, delivering all changes since the last poll
+	 * 
+	 * <p>
+	 * Polls are run one at a time. The network calls are made without holding the monitor of 
+	 * the watcher, so {@link #stop()} and the getters do not wait for a page.
+	 * </p>
+	 * 
+	 * @return The number of changes delivered
+	 * @throws IOException
+	 */
+	public int poll() throws IOException {
+		
+		synchronized (pollLock) {
+			
+			if (getPageToken() == null && !loadPageToken()) {
+				long startTime = System.currentTimeMillis();
+				String startToken = fetchStartPageToken();
+				savePageToken(startToken, startTime);
+				synchronized (this) {
+					pageToken = startToken;
+					lastPollTime = startTime;
+				}
+				return 0;
+			}
+			
+			long pollTime = System.currentTimeMillis();
+			long since;
+			String nextToken;
+			synchronized (this) {
+				since = lastPollTime;
+				nextToken = pageToken;
+			}
+			int count = 0;
+			
+			while (nextToken != null) {
+				Drive.Changes.List request = drive.changes().list(nextToken)
+						.setFields(CHANGE_FIELDS)
+						.setPageSize(GDFileUtils.MAX_PAGE_SIZE)
+						.setIncludeRemoved(true)
+						.setSupportsTeamDrives(true);
+				if (teamDrive != null) {
+					request.setIncludeTeamDriveItems(true)
+						   .setTeamDriveId(teamDrive.getId());
+				}
+				
+				ChangeList changes = request.execute();
+				if (changes.getChanges() != null) {
+					for (Change change : changes.getChanges()) {
+						deliver(toEvent(change, since));
+						count++;
+					}
+				}
+				
+				boolean last = changes.getNewStartPageToken() != null;
+				String token = last ? changes.getNewStartPageToken() : changes.getNextPageToken();
+				// the changes of this page were delivered, do not deliver them again after a restart, 
+				// the next pages are still compared to the time of the previous poll
+				savePageToken(token, last ? pollTime : since);
+				synchronized (this) {
+					pageToken = token;
+					if (last) {
+						lastPollTime = pollTime;
+					}
+				}
+				nextToken = last ? null : token;
+			}
+			
+			return count;
+		}
+	}
+	
+	private void scheduledPoll() {
+		
+		long delay;
+		try {
+			int count = poll();
+			lastError = null;
+			synchronized (this) {
+				interval = count > 0 ? minInterval : Math.min(maxInterval, interval * 2);
+				delay = interval;
+			}
+		} catch (IOException e) {
+			lastError = e;
+			synchronized (this) {
+				interval = Math.min(maxInterval, interval * 2);
+				delay = interval;
+			}
+		} catch (RuntimeException e) {
+			lastError = new IOException("Cannot poll changes", e);
+			synchronized (this) {
+				interval = Math.min(maxInterval, interval * 2);
+				delay = interval;
+			}
+		}
+		
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						scheduledPoll();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * @param change
+	 * @param since - The time of the previous poll
+	 * @return
+	 */
+	private ChangeEvent toEvent(Change change, long since) {
+		
+		String fileId = change.getFileId();
+		File file = change.getFile();
+		
+		gdfu.invalidate(fileId);
+		
+		if (Boolean.TRUE.equals(change.getRemoved()) || file == null) {
+			knownParents.remove(fileId);
+			return new ChangeEvent(ChangeEvent.Type.DELETED, fileId, null, null, change.getTime());
+		}
+		
+		List<String> parents = file.getParents() != null ? file.getParents() : new ArrayList<String>();
+		List<String> previousParents = knownParents.put(fileId, parents);
+		
+		ChangeEvent.Type type;
+		if (Boolean.TRUE.equals(file.getTrashed())) {
+			type = ChangeEvent.Type.TRASHED;
+		} else if (previousParents != null && !previousParents.equals(parents)) {
+			type = ChangeEvent.Type.MOVED;
+		} else if (previousParents == null && file.getCreatedTime() != null 
+				&& file.getCreatedTime().getValue() >= since) {
+			type = ChangeEvent.Type.CREATED;
+		} else {
+			type = ChangeEvent.Type.MODIFIED;
+		}
+		
+		gdfu.getPathIndex().add(file);
+		
+		DateTime time = change.getTime();
+		return new ChangeEvent(type, fileId, file, type == ChangeEvent.Type.MOVED ? previousParents : null, time);
+	}
+	
+	private void deliver(ChangeEvent event) {
+		for (ChangeListener listener : listeners) {
+			listener.onChange(event);
+		}
+	}
+	
+	private String fetchStartPageToken() throws IOException {
+		Drive.Changes.GetStartPageToken request = drive.changes().getStartPageToken().setSupportsTeamDrives(true);
+		if (teamDrive != null) {
+			request.setTeamDriveId(teamDrive.getId());
+		}
+		return request.execute().getStartPageToken();
+	}
+	
+	/**
+	 * Restore the page token and the time of the last poll, a file saved by an older version 
+	 * has the page token only
+	 * 
+	 * @return Whether a page token was saved
+	 * @throws IOException
+	 */
+	private boolean loadPageToken() throws IOException {
+		
+		if (tokenFile == null || !tokenFile.exists()) {
+			return false;
+		}
+		
+		List<String> lines = Files.readAllLines(tokenFile.toPath(), UTF8);
+		String token = lines.isEmpty() ? "" : lines.get(0).trim();
+		if (token.isEmpty()) {
+			return false;
+		}
+		
+		synchronized (this) {
+			pageToken = token;
+			if (lines.size() > 1 && !lines.get(1).trim().isEmpty()) {
+				try {
+					lastPollTime = Long.parseLong(lines.get(1).trim());
+				} catch (NumberFormatException e) {
+					// keep the start time of the watcher
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Save the page token and the time of the last poll
+	 * 
+	 * @param token
+	 * @param pollTime
+	 * @throws IOException
+	 */
+	private void savePageToken(String token, long pollTime) throws IOException {
+		
+		if (tokenFile == null) {
+			return;
+		}
+		
+		java.io.File tempFile = new java.io.File(tokenFile.getPath() + ".tmp");
+		Files.write(tempFile.toPath(), (token + "\n" + pollTime + "\n").getBytes(UTF8));
+		try {
+			Files.move(tempFile.toPath(), tokenFile.toPath(), 
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+}
@@ -0,0 +1,196 @@
+package com.twinzom.gdfu;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local cache of the MD5 checksums of local files
+ *
+ * <p>
+ * A checksum is kept with the identity of its file (path, size, last modified time), and is
+ * computed again once the file was changed. The entries are appended to a small text file, one
+ * line per checksum computed, so they are kept across runs; the file is compacted when it is
+ * loaded with many outdated lines.
+ * </p>
+ *
+ * <p>
+ * Set it to {@link GDFileUtils#setChecksumCache(ChecksumCache)} to avoid reading unchanged files
+ * again for deduplicated uploads and syncs.
+ * </p>
+ */
+public class ChecksumCache {
+
+	private static final char SEPARATOR = '\t';
+
+	/**
+	 * The file is compacted when it holds more lines than twice the entries, and at least this many
+	 */
+	private static final int MIN_COMPACT_LINES = 1000;
+
+	private final java.io.File file;
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * @param file - The file where the checksums are kept, it is created if not exists
+	 * @throws IOException
+	 */
+	public ChecksumCache(java.io.File file) throws IOException {
+		this.file = file;
+		java.io.File directory = file.getAbsoluteFile().getParentFile();
+		if (directory != null) {
+			Files.createDirectories(directory.toPath());
+		}
+		load();
+	}
+
+	public java.io.File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the MD5 of a local file, as lower case hex, computing it if the file is not cached or was changed
+	 *
+	 * @param localFile
+	 * @return
+	 * @throws IOException
+	 */
+	public String md5(java.io.File localFile) throws IOException {
+
+		String path = localFile.getAbsolutePath();
+		long size = localFile.length();
+		long lastModified = localFile.lastModified();
+
+		synchronized (this) {
+			Entry entry = entries.get(path);
+			if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+				return entry.md5;
+			}
+		}
+
+		String md5 = Checksums.md5(localFile);
+
+		// a file changed while it was read is not cached
+		if (localFile.length() == size && localFile.lastModified() == lastModified) {
+			put(path, new Entry(md5, size, lastModified));
+		}
+		return md5;
+	}
+
+	/**
+	 * Get the number of cached checksums
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private synchronized void put(String path, Entry entry) throws IOException {
+
+		entries.put(path, entry);
+		if (path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+			// the path cannot be written on one line, it is kept in memory only
+			return;
+		}
+
+		Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		try {
+			out.write(line(path, entry));
+		} finally {
+			out.close();
+		}
+	}
+
+	private synchronized void load() throws IOException {
+
+		if (!file.exists()) {
+			return;
+		}
+
+		int lines = 0;
+		BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lines++;
+				// md5, size, last modified time, path, the path may hold the separator
+				String[] fields = line.split(String.valueOf(SEPARATOR), 4);
+				if (fields.length < 4) {
+					continue;
+				}
+				try {
+					entries.put(fields[3], new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+				} catch (NumberFormatException e) {
+					// a line cut by a crash, the checksum is computed again
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		if (lines > MIN_COMPACT_LINES && lines > entries.size() * 2) {
+			compact();
+		}
+	}
+
+	/**
+	 * Write the current entries only, replacing the file at once
+	 *
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+
+		java.io.File tempFile = new java.io.File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+
+		Writer out = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8);
+		try {
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				if (entry.getKey().indexOf('\n') < 0 && entry.getKey().indexOf('\r') < 0) {
+					out.write(line(entry.getKey(), entry.getValue()));
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		try {
+			Files.move(tempFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static String line(String path, Entry entry) {
+		return entry.md5 + SEPARATOR + entry.size + SEPARATOR + entry.lastModified + SEPARATOR + path + "\n";
+	}
+
+	/**
+	 * A checksum and the identity of its file when it was computed
+	 */
+	private static class Entry {
+
+		private final String md5;
+
+		private final long size;
+
+		private final long lastModified;
+
+		Entry(String md5, long size, long lastModified) {
+			this.md5 = md5;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksums of local files, comparable with the md5Checksum of Google Drive files
+ */
+class Checksums {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	/**
+	 * Compute the MD5 of a local file, as lower case hex
+	 * 
+	 * @param localFile
+	 * @return
+	 * @throws IOException
+	 */
+	static String md5(java.io.File localFile) throws IOException {
+		
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		
+		InputStream in = Files.newInputStream(localFile.toPath());
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Get the MD5 of a local file from given cache, or compute it if there is no cache
+	 * 
+	 * @param localFile
+	 * @param cache - May be null
+	 * @return
+	 * @throws IOException
+	 */
+	static String md5(java.io.File localFile, ChecksumCache cache) throws IOException {
+		return cache != null ? cache.md5(localFile) : md5(localFile);
+	}
+	
+	static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i=0; i<bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+	
+}
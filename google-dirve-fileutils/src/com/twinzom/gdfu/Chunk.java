@@ -0,0 +1,134 @@
+package com.twinzom.gdfu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A slice of the local file that is sent by one request of the resumable upload process
+ * 
+ * <p>
+ * Chunks are handed out by a {@link ChunkSource} and must be closed after they were sent, 
+ * so that the source can reuse the underlying buffer.
+ * </p>
+ */
+abstract class Chunk implements Closeable {
+
+	/**
+	 * The offset of the first byte of this chunk
+	 */
+	private final long position;
+	
+	/**
+	 * The number of bytes of this chunk
+	 */
+	private final int length;
+	
+	/**
+	 * Whether this is the final chunk of the upload
+	 */
+	private final boolean last;
+	
+	protected Chunk(long position, int length, boolean last) {
+		this.position = position;
+		this.length = length;
+		this.last = last;
+	}
+	
+	public long getPosition() {
+		return position;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+	
+	/**
+	 * Write the content of this chunk to given output stream
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public abstract void writeTo(OutputStream out) throws IOException;
+	
+	/**
+	 * Release the resources held by this chunk
+	 */
+	@Override
+	public void close() {
+	}
+	
+	//-----------------------------------------------------------------------
+	/**
+	 * Chunk backed by a heap or direct byte buffer
+	 */
+	static class BufferChunk extends Chunk {
+		
+		private final ByteBuffer buffer;
+		
+		private final BufferRecycler recycler;
+		
+		private boolean closed = false;
+		
+		BufferChunk(long position, ByteBuffer buffer, int length, boolean last, BufferRecycler recycler) {
+			super(position, length, last);
+			this.buffer = buffer;
+			this.recycler = recycler;
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			if (buffer.hasArray()) {
+				out.write(buffer.array(), buffer.arrayOffset(), getLength());
+			} else {
+				ByteBuffer content = buffer.duplicate();
+				content.position(0).limit(getLength());
+				WritableByteChannel channel = Channels.newChannel(out);
+				while (content.hasRemaining()) {
+					channel.write(content);
+				}
+			}
+		}
+		
+		/**
+		 * Get the rest of this chunk from given position, sharing the buffer
+		 * 
+		 * <p>
+		 * The returned chunk does not give the buffer back, this chunk must still be closed.
+		 * </p>
+		 * 
+		 * @param position - A position within this chunk, or its end
+		 * @return
+		 */
+		BufferChunk from(long position) {
+			int skipped = (int) (position - getPosition());
+			ByteBuffer rest = buffer.duplicate();
+			rest.limit(getLength()).position(skipped);
+			return new BufferChunk(position, rest.slice(), getLength() - skipped, isLast(), null);
+		}
+		
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				if (recycler != null) {
+					recycler.recycle(buffer);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Callback to give a buffer back to its owner once the chunk is closed
+	 */
+	interface BufferRecycler {
+		void recycle(ByteBuffer buffer);
+	}
+}
@@ -0,0 +1,148 @@
+package com.twinzom.gdfu;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Bounded pool of the buffers that chunks are read into before they are uploaded
+ *
+ * <p>
+ * Buffers are allocated on first use, up to the maximum count, and reused afterwards. When all
+ * of them are in use, {@link #acquire(int)} blocks until one is released, so the memory used by
+ * the concurrent uploads of a {@link GDFileUtils} never goes over <code>maxBuffers</code> times
+ * the chunk size (the max chunk size, with adaptive chunk size).
+ * </p>
+ *
+ * <p>
+ * Direct buffers live off the Java heap. They avoid a copy when the chunk is written to the
+ * socket and do not weigh on the garbage collector, but they are slower to allocate, so they
+ * pay off when the pool is shared by many uploads.
+ * </p>
+ */
+public class ChunkBufferPool {
+
+	private final int maxBuffers;
+
+	private final boolean direct;
+
+	private final Deque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * The number of buffers allocated, free or in use
+	 */
+	private int allocated = 0;
+
+	private long waitCount = 0;
+
+	/**
+	 * @param maxBuffers - The maximum number of buffers
+	 * @param direct - Whether the buffers are allocated off-heap
+	 */
+	public ChunkBufferPool(int maxBuffers, boolean direct) {
+		if (maxBuffers < 1) {
+			throw new IllegalArgumentException("Max buffers must be at least 1");
+		}
+		this.maxBuffers = maxBuffers;
+		this.direct = direct;
+	}
+
+	public int getMaxBuffers() {
+		return maxBuffers;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Take a buffer of at least given capacity, waiting while all buffers are in use
+	 *
+	 * <p>
+	 * A free buffer that is too small, after the chunk size grew, is replaced by a bigger one.
+	 * </p>
+	 *
+	 * @param capacity
+	 * @return A cleared buffer
+	 * @throws InterruptedIOException
+	 */
+	public ByteBuffer acquire(int capacity) throws InterruptedIOException {
+
+		ByteBuffer buffer;
+		synchronized (this) {
+			boolean waited = false;
+			while (freeBuffers.isEmpty() && allocated >= maxBuffers) {
+				if (!waited) {
+					waitCount++;
+					waited = true;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a chunk buffer");
+				}
+			}
+
+			buffer = freeBuffers.pollFirst();
+			if (buffer == null) {
+				allocated++;
+			} else if (buffer.capacity() < capacity) {
+				// dropped, the new one takes its place
+				buffer = null;
+			}
+		}
+
+		if (buffer == null) {
+			buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give back a buffer taken by {@link #acquire(int)}
+	 *
+	 * @param buffer
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		freeBuffers.addFirst(buffer);
+		notify();
+	}
+
+	/**
+	 * Drop the free buffers, e.g. after the chunk size was lowered
+	 */
+	public synchronized void trim() {
+		allocated -= freeBuffers.size();
+		freeBuffers.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Get the number of buffers in use
+	 *
+	 * @return
+	 */
+	public synchronized int getInUse() {
+		return allocated - freeBuffers.size();
+	}
+
+	/**
+	 * Get the number of times a caller had to wait for a buffer
+	 *
+	 * @return
+	 */
+	public synchronized long getWaitCount() {
+		return waitCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return (direct ? "direct" : "heap") + " buffers in use: " + getInUse() + "/" + maxBuffers
+				+ ", allocated: " + allocated + ", waits: " + waitCount;
+	}
+
+}
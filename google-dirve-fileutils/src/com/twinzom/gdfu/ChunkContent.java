@@ -0,0 +1,108 @@
+package com.twinzom.gdfu;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+
+import com.google.api.client.http.HttpContent;
+
+/**
+ * The content of a chunk request of the resumable upload process
+ *
+ * <p>
+ * The chunk is written in slices of 64 KB. With a write timeout, the request fails once a slice
+ * is written after the deadline of the chunk, so a stalled upload does not hang until the read
+ * timeout. The content can be written only once, a failed chunk is sent again from the offset
+ * acknowledged by Google Drive.
+ * </p>
+ */
+class ChunkContent implements HttpContent {
+
+	private static final int SLICE_SIZE = 64 * 1024;
+
+	private static final String TYPE = "application/octet-stream";
+
+	private final Chunk chunk;
+
+	/**
+	 * The time allowed to write the whole chunk (in milliseconds), 0 for no limit
+	 */
+	private final int writeTimeout;
+
+	ChunkContent(Chunk chunk, int writeTimeout) {
+		this.chunk = chunk;
+		this.writeTimeout = writeTimeout;
+	}
+
+	@Override
+	public long getLength() {
+		return chunk.getLength();
+	}
+
+	@Override
+	public String getType() {
+		return TYPE;
+	}
+
+	@Override
+	public boolean retrySupported() {
+		return false;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+
+		if (writeTimeout > 0) {
+			out = new DeadlineOutputStream(out, System.nanoTime() + writeTimeout * 1000000L);
+		}
+		chunk.writeTo(out);
+		out.flush();
+	}
+
+	//-----------------------------------------------------------------------
+	/**
+	 * Output stream that splits the writes in slices and checks the deadline before each of them
+	 */
+	private class DeadlineOutputStream extends FilterOutputStream {
+
+		private final long deadline;
+
+		DeadlineOutputStream(OutputStream out, long deadline) {
+			super(out);
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			checkDeadline();
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				checkDeadline();
+				int n = Math.min(len, SLICE_SIZE);
+				out.write(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			// the transport closes the stream of the connection
+			flush();
+		}
+
+		private void checkDeadline() throws SocketTimeoutException {
+			// a timeout, unlike other interrupted IO, is retried by the upload loop
+			if (System.nanoTime() - deadline > 0) {
+				throw new SocketTimeoutException("Write timed out after " + writeTimeout
+						+ " ms at byte " + chunk.getPosition());
+			}
+		}
+	}
+
+}
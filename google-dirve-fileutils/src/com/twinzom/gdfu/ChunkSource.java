@@ -0,0 +1,32 @@
+package com.twinzom.gdfu;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Supplies the chunks of a resumable upload, in order
+ */
+interface ChunkSource extends Closeable {
+
+	/**
+	 * Get the total number of bytes to be uploaded
+	 * 
+	 * @return
+	 */
+	long getLength();
+	
+	/**
+	 * Get the next chunk
+	 * 
+	 * <p>
+	 * The size is a hint, the returned chunk may be shorter (e.g. the last chunk or when 
+	 * the buffers are smaller) or sized by an earlier hint when the chunk was read ahead.
+	 * </p>
+	 * 
+	 * @param size - The preferred chunk size in bytes
+	 * @return
+	 * @throws IOException
+	 */
+	Chunk nextChunk(int size) throws IOException;
+	
+}
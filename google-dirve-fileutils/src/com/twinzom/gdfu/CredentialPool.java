@@ -0,0 +1,362 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+
+/**
+ * Spreads the requests of a {@link GDFileUtils} across several credentials
+ *
+ * <p>
+ * Google Drive counts its quota per user, so one credential caps the throughput of all threads.
+ * With a pool, each attempt of a request is authorized by one of the credentials, picked in turn
+ * or by the lowest recent load. Each credential has its own {@link RequestThrottle}, which limits
+ * and counts the requests sent with it.
+ * </p>
+ *
+ * <p>
+ * A credential whose request was rejected for a rate limit is set aside for the cool-off time,
+ * or the <code>Retry-After</code> of the response when it is longer, and the request is retried at
+ * once with another credential. Only when all credentials are set aside does the request wait for
+ * the backoff of the throttle of {@link GDFileUtils}.
+ * </p>
+ *
+ * <p>
+ * Every credential must have access to the files, e.g. service accounts that are members of the
+ * same team drive, or service accounts impersonating users the files are shared with (see
+ * {@link GoogleCredential#createDelegated(String)}).
+ * </p>
+ */
+public class CredentialPool implements HttpRequestInitializer {
+
+	/**
+	 * How a credential is picked for a request
+	 */
+	public enum Strategy {
+		/**
+		 * Each credential in turn
+		 */
+		ROUND_ROBIN,
+		/**
+		 * The credential that sent the fewest requests lately
+		 */
+		LEAST_LOADED
+	}
+
+	/**
+	 * Default cool-off time of a throttled credential is 30 seconds
+	 */
+	private static final long DEFAULT_COOL_OFF = 30 * 1000;
+
+	/**
+	 * The load of a credential decays by e after 1 second
+	 */
+	private static final double LOAD_DECAY = TimeUnit.SECONDS.toNanos(1);
+
+	private final List<Member> members = new CopyOnWriteArrayList<Member>();
+
+	private volatile Strategy strategy = Strategy.LEAST_LOADED;
+
+	private volatile long coolOff = DEFAULT_COOL_OFF;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private final AtomicLong setAsideCount = new AtomicLong();
+
+	/**
+	 * Add a credential without rate limit
+	 *
+	 * @param credential
+	 * @return This pool
+	 */
+	public CredentialPool add(GoogleCredential credential) {
+		return add(credential, new RequestThrottle());
+	}
+
+	/**
+	 * Add a credential, limiting its requests by given throttle
+	 *
+	 * <p>
+	 * Only the rate limit of the throttle applies, the retries are made by the throttle
+	 * of {@link GDFileUtils}.
+	 * </p>
+	 *
+	 * @param credential
+	 * @param throttle
+	 * @return This pool
+	 */
+	public CredentialPool add(GoogleCredential credential, RequestThrottle throttle) {
+		members.add(new Member(credential, throttle));
+		return this;
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Set how a credential is picked for a request, default is least loaded
+	 *
+	 * @param strategy
+	 * @return This pool
+	 */
+	public CredentialPool setStrategy(Strategy strategy) {
+		this.strategy = strategy;
+		return this;
+	}
+
+	public long getCoolOff() {
+		return coolOff;
+	}
+
+	/**
+	 * Set how long a throttled credential is set aside (in milliseconds), default is 30 seconds
+	 *
+	 * @param coolOff
+	 * @return This pool
+	 */
+	public CredentialPool setCoolOff(long coolOff) {
+		this.coolOff = coolOff;
+		return this;
+	}
+
+	/**
+	 * Get the number of credentials
+	 *
+	 * @return
+	 */
+	public int size() {
+		return members.size();
+	}
+
+	/**
+	 * Get the credential at given index, in the order they were added
+	 *
+	 * @param index
+	 * @return
+	 */
+	public GoogleCredential getCredential(int index) {
+		return members.get(index).tokenManager.getCredential();
+	}
+
+	/**
+	 * Get the throttle of the credential at given index, which counts the requests sent with it
+	 *
+	 * @param index
+	 * @return
+	 */
+	public RequestThrottle getThrottle(int index) {
+		return members.get(index).throttle;
+	}
+
+	/**
+	 * Tell whether the credential at given index is set aside
+	 *
+	 * @param index
+	 * @return
+	 */
+	public boolean isSetAside(int index) {
+		return members.get(index).isSetAside(System.nanoTime());
+	}
+
+	/**
+	 * Get the number of times a credential was set aside
+	 *
+	 * @return
+	 */
+	public long getSetAsideCount() {
+		return setAsideCount.get();
+	}
+
+	/**
+	 * Stop the background token refreshes of all credentials
+	 */
+	public void close() {
+		for (Member member : members) {
+			member.tokenManager.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(strategy + ", set aside: " + setAsideCount);
+		long now = System.nanoTime();
+		for (int i = 0; i < members.size(); i++) {
+			Member member = members.get(i);
+			sb.append("\n").append(i).append(": ").append(member.throttle)
+			  .append(member.isSetAside(now) ? " (set aside)" : "");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Authorize each attempt of the request with the credential picked for it
+	 */
+	@Override
+	public void initialize(HttpRequest request) throws IOException {
+
+		if (members.isEmpty()) {
+			throw new IOException("Credential pool is empty");
+		}
+
+		final Lease lease = new Lease();
+		request.setInterceptor(lease);
+		request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+			@Override
+			public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+				// a rejected token is refreshed by its credential
+				Member member = lease.member;
+				return member != null && response.getStatusCode() == HttpURLConnection.HTTP_UNAUTHORIZED
+						&& member.tokenManager.getCredential().handleResponse(request, response, supportsRetry);
+			}
+		});
+	}
+
+	/**
+	 * Pick the credential of an attempt
+	 *
+	 * <p>
+	 * The credentials set aside are skipped, unless all of them are, then the one
+	 * that is back the soonest is picked.
+	 * </p>
+	 *
+	 * @return
+	 */
+	private Member pick() {
+
+		long now = System.nanoTime();
+		int size = members.size();
+		int start = Math.abs(next.getAndIncrement() % size);
+
+		Member picked = null;
+		for (int i = 0; i < size; i++) {
+			Member member = members.get((start + i) % size);
+			if (member.isSetAside(now)) {
+				continue;
+			}
+			if (strategy == Strategy.ROUND_ROBIN) {
+				return member;
+			}
+			if (picked == null || member.getLoad(now) < picked.getLoad(now)) {
+				picked = member;
+			}
+		}
+
+		if (picked == null) {
+			for (Member member : members) {
+				if (picked == null || member.setAsideUntil < picked.setAsideUntil) {
+					picked = member;
+				}
+			}
+		}
+
+		return picked;
+	}
+
+	/**
+	 * Tell whether a credential other than given one can be used now
+	 *
+	 * @param excluded
+	 * @return
+	 */
+	private boolean hasAvailable(Member excluded) {
+		long now = System.nanoTime();
+		for (Member member : members) {
+			if (member != excluded && !member.isSetAside(now)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//-----------------------------------------------------------------------
+	/**
+	 * The credential used by the current attempt of a request
+	 */
+	class Lease implements HttpExecuteInterceptor {
+
+		private volatile Member member;
+
+		@Override
+		public void intercept(HttpRequest request) throws IOException {
+			Member member = pick();
+			this.member = member;
+			member.throttle.acquire();
+			member.addLoad();
+			request.getHeaders().setAuthorization("Bearer " + member.tokenManager.getAccessToken());
+		}
+
+		/**
+		 * Set aside the credential of the attempt rejected for a rate limit
+		 *
+		 * @param retryAfter - The delay asked by the server (in milliseconds), 0 if none
+		 * @return Whether the next attempt can go to another credential at once
+		 */
+		boolean setAside(long retryAfter) {
+			Member member = this.member;
+			if (member == null) {
+				return false;
+			}
+			member.setAside(Math.max(coolOff, retryAfter));
+			setAsideCount.incrementAndGet();
+			return hasAvailable(member);
+		}
+	}
+
+	/**
+	 * A credential of the pool
+	 */
+	private static class Member {
+
+		private final TokenManager tokenManager;
+
+		private final RequestThrottle throttle;
+
+		/**
+		 * The time (System.nanoTime) until when the credential is set aside
+		 */
+		private volatile long setAsideUntil = System.nanoTime();
+
+		/**
+		 * The number of recent requests, decaying over time
+		 */
+		private double load = 0;
+
+		private long loadTime = System.nanoTime();
+
+		Member(GoogleCredential credential, RequestThrottle throttle) {
+			this.tokenManager = new TokenManager(credential);
+			this.throttle = throttle;
+		}
+
+		boolean isSetAside(long now) {
+			return setAsideUntil - now > 0;
+		}
+
+		void setAside(long delay) {
+			setAsideUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		}
+
+		synchronized double getLoad(long now) {
+			return load * Math.exp(-(now - loadTime) / LOAD_DECAY);
+		}
+
+		synchronized void addLoad() {
+			long now = System.nanoTime();
+			load = getLoad(now) + 1;
+			loadTime = now;
+		}
+	}
+
+}
@@ -0,0 +1,29 @@
+package com.twinzom.gdfu;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, background work must never keep the JVM alive
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+	
+	private final AtomicInteger count = new AtomicInteger();
+	
+	/**
+	 * @param prefix - The prefix of thread names, e.g. "gdfu-download"
+	 */
+	DaemonThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+	
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+}
@@ -0,0 +1,92 @@
+package com.twinzom.gdfu;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Basic attributes of a file of a {@link DriveFileSystem}, read from its metadata
+ *
+ * <p>
+ * Folders are directories, all other files are regular files. Google Docs have no content,
+ * their size is 0. The file key is the id of the file.
+ * </p>
+ */
+public class DriveFileAttributes implements BasicFileAttributes {
+
+	private final File file;
+
+	DriveFileAttributes(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Get the id of the file
+	 *
+	 * @return
+	 */
+	public String getFileId() {
+		return file.getId();
+	}
+
+	/**
+	 * Get the mime-type of the file
+	 *
+	 * @return
+	 */
+	public String getMimeType() {
+		return file.getMimeType();
+	}
+
+	@Override
+	public FileTime lastModifiedTime() {
+		return toFileTime(file.getModifiedTime());
+	}
+
+	@Override
+	public FileTime lastAccessTime() {
+		return lastModifiedTime();
+	}
+
+	@Override
+	public FileTime creationTime() {
+		return toFileTime(file.getCreatedTime());
+	}
+
+	@Override
+	public boolean isRegularFile() {
+		return !isDirectory();
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return GDFileUtils.MIME_TYPE_FOLDER.equals(file.getMimeType());
+	}
+
+	@Override
+	public boolean isSymbolicLink() {
+		return false;
+	}
+
+	@Override
+	public boolean isOther() {
+		return false;
+	}
+
+	@Override
+	public long size() {
+		return file.getSize() != null ? file.getSize() : 0;
+	}
+
+	@Override
+	public Object fileKey() {
+		return file.getId();
+	}
+
+	private static FileTime toFileTime(DateTime dateTime) {
+		return FileTime.fromMillis(dateTime != null ? dateTime.getValue() : 0);
+	}
+
+}
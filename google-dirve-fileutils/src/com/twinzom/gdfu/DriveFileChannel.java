@@ -0,0 +1,368 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Read-only random access to the content of a Drive file
+ *
+ * <p>
+ * The file is read in blocks fetched with HTTP Range requests, only the blocks that are read
+ * are transferred. The last blocks read are kept in a bounded LRU cache, so reading around the
+ * same position, e.g. the footer of a ZIP or Parquet file, is served from memory.
+ * </p>
+ *
+ * <p>
+ * When the reads go through consecutive blocks, the following blocks are fetched ahead in the
+ * same request: the read-ahead doubles with each sequential block, up to the max read-ahead,
+ * and drops back to one block on a seek elsewhere.
+ * </p>
+ *
+ * <p>
+ * The channel is safe for use by several threads, the reads are serialized.
+ * </p>
+ */
+public class DriveFileChannel implements SeekableByteChannel {
+
+	private static final int HTTP_PARTIAL_CONTENT = 206;
+
+	/**
+	 * Default max read-ahead is 8 blocks
+	 */
+	private static final int DEFAULT_MAX_READ_AHEAD = 8;
+
+	private final Drive drive;
+
+	private final String fileId;
+
+	private final long size;
+
+	private final int blockSize;
+
+	private final int retries;
+
+	private final int cacheBlocks;
+
+	/**
+	 * The blocks by index, in access order
+	 */
+	private final LinkedHashMap<Long, byte[]> cache;
+
+	private long position = 0;
+
+	private boolean open = true;
+
+	private int maxReadAhead = DEFAULT_MAX_READ_AHEAD;
+
+	/**
+	 * The number of blocks fetched by the next sequential miss
+	 */
+	private int readAhead = 1;
+
+	/**
+	 * The index of the last block read, -1 if none
+	 */
+	private long lastBlock = -1;
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	private long fetchCount = 0;
+
+	private long fetchedBytes = 0;
+
+	/**
+	 * @param drive
+	 * @param fileId - The file to be read
+	 * @param size - The size of the file
+	 * @param blockSize - The number of bytes of a block
+	 * @param cacheBlocks - The maximum number of blocks kept in memory
+	 * @param retries - The number of retries of a failed block fetch
+	 */
+	DriveFileChannel(Drive drive, String fileId, long size, int blockSize, final int cacheBlocks, int retries) {
+		if (blockSize < 1 || cacheBlocks < 1) {
+			throw new IllegalArgumentException("Invalid block size " + blockSize + " or cache blocks " + cacheBlocks);
+		}
+		this.drive = drive;
+		this.fileId = fileId;
+		this.size = size;
+		this.blockSize = blockSize;
+		this.retries = retries;
+		this.cacheBlocks = cacheBlocks;
+		this.cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > cacheBlocks;
+			}
+		};
+		this.maxReadAhead = Math.min(maxReadAhead, cacheBlocks);
+	}
+
+	public String getFileId() {
+		return fileId;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public synchronized int getMaxReadAhead() {
+		return maxReadAhead;
+	}
+
+	/**
+	 * Set the maximum number of blocks fetched ahead of sequential reads, 1 to disable read-ahead
+	 *
+	 * <p>
+	 * It is bounded by the number of blocks the cache holds.
+	 * </p>
+	 *
+	 * @param maxReadAhead
+	 * @return This channel
+	 */
+	public synchronized DriveFileChannel setMaxReadAhead(int maxReadAhead) {
+		if (maxReadAhead < 1) {
+			throw new IllegalArgumentException("Max read-ahead must be at least 1");
+		}
+		this.maxReadAhead = Math.min(maxReadAhead, cacheBlocks);
+		return this;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+
+		ensureOpen();
+		if (position >= size) {
+			return -1;
+		}
+
+		int count = 0;
+		while (dst.hasRemaining() && position < size) {
+			long index = position / blockSize;
+			byte[] block = getBlock(index);
+			int offset = (int) (position - index * blockSize);
+			int n = Math.min(dst.remaining(), block.length - offset);
+			dst.put(block, offset, n);
+			position += n;
+			count += n;
+		}
+
+		return count;
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized DriveFileChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position " + newPosition);
+		}
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Close the channel and drop its cache
+	 */
+	@Override
+	public synchronized void close() {
+		open = false;
+		cache.clear();
+	}
+
+	/**
+	 * Get the number of block reads served from the cache
+	 *
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Get the number of block reads that needed a fetch
+	 *
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Get the number of Range requests sent
+	 *
+	 * @return
+	 */
+	public synchronized long getFetchCount() {
+		return fetchCount;
+	}
+
+	/**
+	 * Get the number of bytes transferred
+	 *
+	 * @return
+	 */
+	public synchronized long getFetchedBytes() {
+		return fetchedBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return fileId + " size: " + size + ", hits: " + hitCount + ", misses: " + missCount
+				+ ", fetches: " + fetchCount + ", fetched: " + fetchedBytes + " bytes";
+	}
+
+	/**
+	 * Get a block from the cache, fetching it and the blocks read ahead on a miss
+	 *
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] getBlock(long index) throws IOException {
+
+		boolean sequential = index == lastBlock + 1;
+		lastBlock = index;
+
+		byte[] block = cache.get(index);
+		if (block != null) {
+			hitCount++;
+			return block;
+		}
+		missCount++;
+
+		if (sequential) {
+			readAhead = Math.min(readAhead * 2, maxReadAhead);
+		} else {
+			readAhead = 1;
+		}
+
+		long blockCount = (size + blockSize - 1) / blockSize;
+		// a range is fetched into one array
+		long end = Math.min(index + Math.min(readAhead, Math.max(1, Integer.MAX_VALUE / blockSize)), blockCount);
+		// the blocks read ahead that are cached already end the range
+		for (long i = index + 1; i < end; i++) {
+			if (cache.containsKey(i)) {
+				end = i;
+				break;
+			}
+		}
+
+		byte[] content = fetch(index * blockSize, Math.min(end * blockSize, size));
+		for (long i = index; i < end; i++) {
+			int offset = (int) ((i - index) * blockSize);
+			byte[] b = new byte[Math.min(blockSize, content.length - offset)];
+			System.arraycopy(content, offset, b, 0, b.length);
+			cache.put(i, b);
+		}
+
+		// the block read is the most recently used one
+		return cache.get(index);
+	}
+
+	/**
+	 * Fetch the bytes [start, end), retrying from the beginning when the transfer fails
+	 *
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] fetch(long start, long end) throws IOException {
+
+		int attempt = 0;
+		while (true) {
+			try {
+				return fetchRange(start, end);
+			} catch (IOException e) {
+				if (++attempt > retries || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private byte[] fetchRange(long start, long end) throws IOException {
+
+		Drive.Files.Get request = drive.files().get(fileId).setSupportsTeamDrives(true);
+		request.getRequestHeaders().setRange("bytes=" + start + "-" + (end - 1));
+
+		HttpResponse response = request.executeMedia();
+		fetchCount++;
+		boolean completed = false;
+		try {
+			if (response.getStatusCode() != HTTP_PARTIAL_CONTENT && !(start == 0 && end == size)) {
+				throw new IOException("Range request of file " + fileId + " was not honoured: "
+						+ response.getStatusCode());
+			}
+
+			byte[] content = new byte[(int) (end - start)];
+			InputStream in = response.getContent();
+			int offset = 0;
+			while (offset < content.length) {
+				int read = in.read(content, offset, content.length - offset);
+				if (read < 0) {
+					throw new IOException("Range of file " + fileId + " ended at byte " + (start + offset)
+							+ " instead of " + end);
+				}
+				offset += read;
+			}
+			fetchedBytes += content.length;
+			completed = true;
+
+			return content;
+		} finally {
+			if (completed) {
+				// the connection goes back to the pool
+				response.ignore();
+			} else {
+				response.disconnect();
+			}
+		}
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+}
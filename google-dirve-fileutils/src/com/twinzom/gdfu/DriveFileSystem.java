@@ -0,0 +1,336 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/**
+ * File system view of My Drive, or of the Team Drive was set, for the <code>java.nio.file</code> API
+ *
+ * <p>
+ * Paths start from the root folder, e.g. <code>fs.getPath("/reports/2026/q3.csv")</code>, and work with
+ * {@link java.nio.file.Files}: reading and writing, listing and walking folders, copying, moving and
+ * deleting files and reading their basic attributes.
+ * </p>
+ *
+ * <p>
+ * The files seen are kept for a short time (5 seconds by default) by their path, so that checking a
+ * path right after listing its folder, as <code>Files.walk</code> does, costs no request. Changes made
+ * through this file system update the cache, changes made by others are seen once it expired.
+ * </p>
+ *
+ * <p>
+ * Google Drive allows several files of the same name in a folder, a path leads to one of them. Files
+ * whose name contains "/" cannot be reached by path and are left out of the listings.
+ * </p>
+ */
+public class DriveFileSystem extends FileSystem {
+
+	/**
+	 * The fields of the files read by the file system
+	 */
+	static final java.util.List<String> ATTRIBUTE_FIELDS = Arrays.asList("id", "name", "mimeType", "parents",
+			"size", "modifiedTime", "createdTime");
+
+	/**
+	 * Default time to live of the cached files is 5 seconds
+	 */
+	private static final long DEFAULT_CACHE_TTL = 5 * 1000;
+
+	/**
+	 * The expired entries are dropped when the cache holds more entries than this
+	 */
+	private static final int CACHE_CLEAN_UP_SIZE = 100000;
+
+	private final DriveFileSystemProvider provider;
+
+	private final Drive drive;
+
+	private final GDFileUtils gdfu;
+
+	/**
+	 * The files by absolute path, sorted so that a folder is followed by its content
+	 */
+	private final ConcurrentSkipListMap<String, CachedFile> cache = new ConcurrentSkipListMap<String, CachedFile>();
+
+	private volatile long cacheTtl = DEFAULT_CACHE_TTL;
+
+	private volatile boolean open = true;
+
+	DriveFileSystem(Drive drive, GDFileUtils gdfu) {
+		this.provider = new DriveFileSystemProvider(this);
+		this.drive = drive;
+		this.gdfu = gdfu;
+	}
+
+	/**
+	 * Get the time to live of the cached files (in milliseconds)
+	 *
+	 * @return
+	 */
+	public long getCacheTtl() {
+		return cacheTtl;
+	}
+
+	/**
+	 * Set the time to live of the cached files (in milliseconds), 0 to disable the cache
+	 *
+	 * @param cacheTtl
+	 */
+	public void setCacheTtl(long cacheTtl) {
+		this.cacheTtl = cacheTtl;
+		if (cacheTtl <= 0) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Get the id of the file at given path
+	 *
+	 * @param path
+	 * @return
+	 * @throws NoSuchFileException
+	 * @throws IOException
+	 */
+	public String getFileId(Path path) throws IOException {
+		return getFile(provider.toDrivePath(path)).getId();
+	}
+
+	@Override
+	public DriveFileSystemProvider provider() {
+		return provider;
+	}
+
+	/**
+	 * Close the file system and drop its cache, the {@link GDFileUtils} stays usable
+	 */
+	@Override
+	public void close() {
+		open = false;
+		cache.clear();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return false;
+	}
+
+	@Override
+	public String getSeparator() {
+		return "/";
+	}
+
+	@Override
+	public Iterable<Path> getRootDirectories() {
+		return Collections.<Path>singletonList(new DrivePath(this, "/"));
+	}
+
+	@Override
+	public Iterable<FileStore> getFileStores() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public Set<String> supportedFileAttributeViews() {
+		return Collections.singleton("basic");
+	}
+
+	@Override
+	public DrivePath getPath(String first, String... more) {
+		StringBuilder sb = new StringBuilder(first);
+		for (String segment : more) {
+			if (!segment.isEmpty()) {
+				sb.append('/').append(segment);
+			}
+		}
+		return new DrivePath(this, sb.toString());
+	}
+
+	/**
+	 * The paths are matched as strings, with the syntax of the default file system
+	 */
+	@Override
+	public PathMatcher getPathMatcher(String syntaxAndPattern) {
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+		return new PathMatcher() {
+			@Override
+			public boolean matches(Path path) {
+				return matcher.matches(FileSystems.getDefault().getPath(path.toString()));
+			}
+		};
+	}
+
+	@Override
+	public UserPrincipalLookupService getUserPrincipalLookupService() {
+		throw new UnsupportedOperationException("Drive file system has no user principals");
+	}
+
+	@Override
+	public WatchService newWatchService() {
+		throw new UnsupportedOperationException("Drive paths cannot be watched, use GDFileUtils.newChangeWatcher");
+	}
+
+	@Override
+	public String toString() {
+		return DriveFileSystemProvider.SCHEME + ":/ cached: " + cache.size();
+	}
+
+	Drive getDrive() {
+		return drive;
+	}
+
+	GDFileUtils getFileUtils() {
+		return gdfu;
+	}
+
+	/**
+	 * Get the file at given path
+	 *
+	 * @param path
+	 * @return
+	 * @throws NoSuchFileException
+	 * @throws IOException
+	 */
+	File getFile(DrivePath path) throws IOException {
+		File file = lookup(path);
+		if (file == null) {
+			throw new NoSuchFileException(path.toString());
+		}
+		return file;
+	}
+
+	/**
+	 * Find the file at given path, from the cache or with one query for each folder that was not seen
+	 *
+	 * @param path
+	 * @return The file, or null if there is none
+	 * @throws IOException
+	 */
+	File lookup(DrivePath path) throws IOException {
+
+		ensureOpen();
+		path = path.toAbsolutePath().normalize();
+
+		if (path.getNameCount() == 0) {
+			return new File().setId(gdfu.getRootId()).setName("").setMimeType(GDFileUtils.MIME_TYPE_FOLDER);
+		}
+
+		String key = path.toString();
+		CachedFile cached = cache.get(key);
+		if (cached != null && cached.expires - System.nanoTime() > 0) {
+			return cached.file;
+		}
+
+		File parent = lookup(path.getParent());
+		File file = null;
+		if (parent != null && GDFileUtils.MIME_TYPE_FOLDER.equals(parent.getMimeType())) {
+			String name = path.getFileName().toString();
+			String q = "and name = '" + Util.escapeQueryValue(name) + "' and trashed != true";
+			for (File child : gdfu.listFiles(parent.getId(), q, ATTRIBUTE_FIELDS)) {
+				if (name.equals(child.getName())) {
+					file = child;
+					break;
+				}
+			}
+		}
+
+		put(key, file);
+		return file;
+	}
+
+	/**
+	 * Cache a file seen at given path
+	 *
+	 * @param path
+	 * @param file - The file, or null if there is none
+	 */
+	void put(DrivePath path, File file) {
+		put(path.toAbsolutePath().normalize().toString(), file);
+	}
+
+	/**
+	 * Forget the files at given path and below
+	 *
+	 * @param path
+	 */
+	void invalidate(DrivePath path) {
+		String key = path.toAbsolutePath().normalize().toString();
+		if ("/".equals(key)) {
+			cache.clear();
+			return;
+		}
+		cache.remove(key);
+		// '0' follows '/', the sub-map holds the paths below
+		cache.subMap(key + "/", key + "0").clear();
+	}
+
+	private void put(String key, File file) {
+
+		long ttl = cacheTtl;
+		if (ttl <= 0) {
+			return;
+		}
+
+		if (cache.size() > CACHE_CLEAN_UP_SIZE) {
+			cleanUp();
+		}
+		cache.put(key, new CachedFile(file, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl)));
+	}
+
+	private void cleanUp() {
+		long now = System.nanoTime();
+		Iterator<Map.Entry<String, CachedFile>> it = cache.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().expires - now <= 0) {
+				it.remove();
+			}
+		}
+	}
+
+	void ensureOpen() {
+		if (!open) {
+			throw new ClosedFileSystemException();
+		}
+	}
+
+	/**
+	 * A file seen at a path, or the absence of a file
+	 */
+	private static class CachedFile {
+
+		private final File file;
+
+		/**
+		 * The time (System.nanoTime) the entry expires
+		 */
+		private final long expires;
+
+		CachedFile(File file, long expires) {
+			this.file = file;
+			this.expires = expires;
+		}
+	}
+
+}
@@ -0,0 +1,604 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Provider of the <code>gdrive</code> scheme, backing the operations of a {@link DriveFileSystem}
+ *
+ * <p>
+ * Each file system has its own provider, get one with {@link GDFileUtils#newFileSystem()}. The provider
+ * is not installed, so <code>Paths.get(URI)</code> does not resolve <code>gdrive:</code> URIs; use
+ * {@link #getPath(URI)} of the provider instead.
+ * </p>
+ *
+ * <p>
+ * Files are read through a {@link DriveFileChannel}. Files opened for writing are written to a temporary
+ * local file, which is uploaded when the channel is closed. Copies and moves are made by Google Drive,
+ * no content is transferred. Deleted files are deleted permanently, not trashed.
+ * </p>
+ */
+public class DriveFileSystemProvider extends FileSystemProvider {
+
+	/**
+	 * The URI scheme of Drive paths
+	 */
+	public static final String SCHEME = "gdrive";
+
+	private final DriveFileSystem fileSystem;
+
+	DriveFileSystemProvider(DriveFileSystem fileSystem) {
+		this.fileSystem = fileSystem;
+	}
+
+	@Override
+	public String getScheme() {
+		return SCHEME;
+	}
+
+	/**
+	 * A Drive file system is made by {@link GDFileUtils#newFileSystem()}
+	 */
+	@Override
+	public FileSystem newFileSystem(URI uri, Map<String, ?> env) {
+		throw new UnsupportedOperationException("Use GDFileUtils.newFileSystem() to open a Drive file system");
+	}
+
+	@Override
+	public DriveFileSystem getFileSystem(URI uri) {
+		checkUri(uri);
+		if (!fileSystem.isOpen()) {
+			throw new FileSystemNotFoundException(uri.toString());
+		}
+		return fileSystem;
+	}
+
+	@Override
+	public Path getPath(URI uri) {
+		checkUri(uri);
+		return fileSystem.getPath(uri.getPath());
+	}
+
+	@Override
+	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+			FileAttribute<?>... attrs) throws IOException {
+
+		DrivePath drivePath = toDrivePath(path);
+		GDFileUtils gdfu = fileSystem.getFileUtils();
+
+		if (!options.contains(StandardOpenOption.WRITE) && !options.contains(StandardOpenOption.APPEND)) {
+			File file = fileSystem.getFile(drivePath);
+			if (isFolder(file)) {
+				throw new IOException("Is a directory: " + path);
+			}
+			return gdfu.openChannel(file.getId());
+		}
+
+		File file = fileSystem.lookup(drivePath);
+		if (file != null && options.contains(StandardOpenOption.CREATE_NEW)) {
+			throw new FileAlreadyExistsException(path.toString());
+		}
+		if (file == null && !options.contains(StandardOpenOption.CREATE) && !options.contains(StandardOpenOption.CREATE_NEW)) {
+			throw new NoSuchFileException(path.toString());
+		}
+		if (file != null && isFolder(file)) {
+			throw new IOException("Is a directory: " + path);
+		}
+		File parent = getParentFolder(drivePath);
+
+		java.io.File localFile = Files.createTempFile("gdfu", ".upload").toFile();
+		try {
+			if (file != null && !options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+				// the bytes not written keep their content
+				gdfu.download(file.getId(), localFile);
+			}
+			FileChannel channel = FileChannel.open(localFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (options.contains(StandardOpenOption.APPEND)) {
+				channel.position(channel.size());
+			}
+			return new UploadOnCloseChannel(channel, localFile, drivePath, file, parent);
+		} catch (IOException e) {
+			localFile.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * List the folder page by page, caching the files seen
+	 */
+	@Override
+	public DirectoryStream<Path> newDirectoryStream(Path dir, final DirectoryStream.Filter<? super Path> filter) throws IOException {
+
+		final DrivePath drivePath = toDrivePath(dir);
+		File folder = fileSystem.getFile(drivePath);
+		if (!isFolder(folder)) {
+			throw new NotDirectoryException(dir.toString());
+		}
+
+		final FileIterator files = fileSystem.getFileUtils().iterateFiles(folder.getId(), "and trashed != true",
+				DriveFileSystem.ATTRIBUTE_FIELDS);
+
+		return new DirectoryStream<Path>() {
+
+			private boolean iterated = false;
+
+			@Override
+			public Iterator<Path> iterator() {
+				if (iterated) {
+					throw new IllegalStateException("Directory stream was already iterated");
+				}
+				iterated = true;
+				return new Iterator<Path>() {
+
+					private Path next;
+
+					@Override
+					public boolean hasNext() {
+						try {
+							while (next == null && files.hasNext()) {
+								File file = files.next();
+								if (file.getName().indexOf('/') >= 0) {
+									continue;
+								}
+								DrivePath child = drivePath.resolve(file.getName());
+								fileSystem.put(child, file);
+								if (filter == null || filter.accept(child)) {
+									next = child;
+								}
+							}
+						} catch (UncheckedIOException e) {
+							throw new DirectoryIteratorException(e.getCause());
+						} catch (IOException e) {
+							throw new DirectoryIteratorException(e);
+						}
+						return next != null;
+					}
+
+					@Override
+					public Path next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						Path path = next;
+						next = null;
+						return path;
+					}
+				};
+			}
+
+			@Override
+			public void close() {
+				files.close();
+			}
+		};
+	}
+
+	@Override
+	public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+
+		DrivePath drivePath = toDrivePath(dir);
+		if (fileSystem.lookup(drivePath) != null) {
+			throw new FileAlreadyExistsException(dir.toString());
+		}
+		File parent = getParentFolder(drivePath);
+
+		File folder = fileSystem.getFileUtils().mkFolder(drivePath.getFileName().toString(), parent.getId());
+		fileSystem.invalidate(drivePath);
+		fileSystem.put(drivePath, folder);
+	}
+
+	/**
+	 * Delete the file permanently, a folder only if it is empty
+	 */
+	@Override
+	public void delete(Path path) throws IOException {
+
+		DrivePath drivePath = toDrivePath(path);
+		File file = fileSystem.getFile(drivePath);
+		if (drivePath.toAbsolutePath().getNameCount() == 0) {
+			throw new IOException("Cannot delete the root folder");
+		}
+		if (isFolder(file)) {
+			FileIterator children = fileSystem.getFileUtils().iterateFiles(file.getId(), "and trashed != true",
+					Arrays.asList("id"));
+			try {
+				if (children.hasNext()) {
+					throw new DirectoryNotEmptyException(path.toString());
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				children.close();
+			}
+		}
+
+		fileSystem.getFileUtils().deleteFile(file.getId());
+		fileSystem.invalidate(drivePath);
+	}
+
+	/**
+	 * Copy the file on Google Drive, a folder is copied without its content
+	 */
+	@Override
+	public void copy(Path source, Path target, CopyOption... options) throws IOException {
+
+		DrivePath sourcePath = toDrivePath(source);
+		DrivePath targetPath = toDrivePath(target);
+		File file = fileSystem.getFile(sourcePath);
+		if (isSamePath(sourcePath, targetPath)) {
+			return;
+		}
+		prepareTarget(targetPath, options);
+		File parent = getParentFolder(targetPath);
+
+		if (isFolder(file)) {
+			createDirectory(targetPath);
+			return;
+		}
+
+		File content = new File();
+		content.setName(targetPath.getFileName().toString());
+		content.setParents(Collections.singletonList(parent.getId()));
+
+		File copy = fileSystem.getDrive().files().copy(file.getId(), content)
+												.setFields(Util.listToString(DriveFileSystem.ATTRIBUTE_FIELDS, ",", ""))
+												.setSupportsTeamDrives(true)
+												.execute();
+		fileSystem.invalidate(targetPath);
+		fileSystem.put(targetPath, copy);
+	}
+
+	/**
+	 * Move or rename the file on Google Drive, with its content if it is a folder
+	 */
+	@Override
+	public void move(Path source, Path target, CopyOption... options) throws IOException {
+
+		DrivePath sourcePath = toDrivePath(source);
+		DrivePath targetPath = toDrivePath(target);
+		File file = fileSystem.getFile(sourcePath);
+		if (isSamePath(sourcePath, targetPath)) {
+			return;
+		}
+		if (targetPath.toAbsolutePath().normalize().startsWith(sourcePath.toAbsolutePath().normalize())) {
+			throw new IOException("Cannot move " + source + " into itself");
+		}
+		prepareTarget(targetPath, options);
+		File fromParent = getParentFolder(sourcePath);
+		File toParent = getParentFolder(targetPath);
+
+		File content = new File();
+		content.setName(targetPath.getFileName().toString());
+
+		Drive.Files.Update update = fileSystem.getDrive().files().update(file.getId(), content)
+														  .setFields(Util.listToString(GDFileUtils.PATH_FIELDS, ",", ""))
+														  .setSupportsTeamDrives(true);
+		if (!fromParent.getId().equals(toParent.getId())) {
+			update.setAddParents(toParent.getId())
+				  .setRemoveParents(fromParent.getId());
+		}
+		fileSystem.getFileUtils().invalidate(update.execute());
+		fileSystem.invalidate(sourcePath);
+		fileSystem.invalidate(targetPath);
+	}
+
+	@Override
+	public boolean isSameFile(Path path, Path path2) throws IOException {
+		if (path.equals(path2)) {
+			return true;
+		}
+		if (!(path2 instanceof DrivePath) || path2.getFileSystem() != fileSystem) {
+			return false;
+		}
+		return fileSystem.getFile(toDrivePath(path)).getId().equals(fileSystem.getFile(toDrivePath(path2)).getId());
+	}
+
+	@Override
+	public boolean isHidden(Path path) {
+		return false;
+	}
+
+	@Override
+	public FileStore getFileStore(Path path) {
+		throw new UnsupportedOperationException("Drive file system has no file store");
+	}
+
+	/**
+	 * Check that the file exists, the access rights are checked by Google Drive on use
+	 */
+	@Override
+	public void checkAccess(Path path, AccessMode... modes) throws IOException {
+		fileSystem.getFile(toDrivePath(path));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <V extends FileAttributeView> V getFileAttributeView(final Path path, Class<V> type, LinkOption... options) {
+
+		if (type != BasicFileAttributeView.class) {
+			return null;
+		}
+
+		return (V) new BasicFileAttributeView() {
+
+			@Override
+			public String name() {
+				return "basic";
+			}
+
+			@Override
+			public BasicFileAttributes readAttributes() throws IOException {
+				return DriveFileSystemProvider.this.readAttributes(path, BasicFileAttributes.class);
+			}
+
+			/**
+			 * Only the last modified time can be set
+			 */
+			@Override
+			public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+				if (lastModifiedTime != null) {
+					setLastModifiedTime(toDrivePath(path), lastModifiedTime);
+				}
+			}
+		};
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+
+		if (type != BasicFileAttributes.class && type != DriveFileAttributes.class) {
+			throw new UnsupportedOperationException("Drive file system has no " + type.getSimpleName());
+		}
+
+		return (A) new DriveFileAttributes(fileSystem.getFile(toDrivePath(path)));
+	}
+
+	@Override
+	public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+
+		String names = attributes;
+		int colon = attributes.indexOf(':');
+		if (colon >= 0) {
+			if (!"basic".equals(attributes.substring(0, colon))) {
+				throw new UnsupportedOperationException("Drive file system has no view " + attributes.substring(0, colon));
+			}
+			names = attributes.substring(colon + 1);
+		}
+
+		DriveFileAttributes attrs = readAttributes(path, DriveFileAttributes.class);
+		Map<String, Object> all = new HashMap<String, Object>();
+		all.put("lastModifiedTime", attrs.lastModifiedTime());
+		all.put("lastAccessTime", attrs.lastAccessTime());
+		all.put("creationTime", attrs.creationTime());
+		all.put("size", attrs.size());
+		all.put("isRegularFile", attrs.isRegularFile());
+		all.put("isDirectory", attrs.isDirectory());
+		all.put("isSymbolicLink", attrs.isSymbolicLink());
+		all.put("isOther", attrs.isOther());
+		all.put("fileKey", attrs.fileKey());
+
+		if ("*".equals(names)) {
+			return all;
+		}
+		Map<String, Object> selected = new HashMap<String, Object>();
+		for (String name : names.split(",")) {
+			if (!all.containsKey(name)) {
+				throw new IllegalArgumentException("Unknown attribute " + name);
+			}
+			selected.put(name, all.get(name));
+		}
+		return selected;
+	}
+
+	/**
+	 * Only <code>lastModifiedTime</code> can be set
+	 */
+	@Override
+	public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+		if (!"lastModifiedTime".equals(attribute) && !"basic:lastModifiedTime".equals(attribute)) {
+			throw new UnsupportedOperationException("Drive file system cannot set " + attribute);
+		}
+		setLastModifiedTime(toDrivePath(path), (FileTime) value);
+	}
+
+	DrivePath toDrivePath(Path path) {
+		if (!(path instanceof DrivePath) || path.getFileSystem() != fileSystem) {
+			throw new ProviderMismatchException("Not a path of this Drive file system: " + path);
+		}
+		return (DrivePath) path;
+	}
+
+	private void setLastModifiedTime(DrivePath path, FileTime time) throws IOException {
+
+		File file = fileSystem.getFile(path);
+		File content = new File();
+		content.setModifiedTime(new DateTime(time.toMillis()));
+
+		fileSystem.getDrive().files().update(file.getId(), content)
+							  .setSupportsTeamDrives(true)
+							  .execute();
+
+		fileSystem.getFileUtils().invalidate(file.getId());
+		fileSystem.invalidate(path);
+	}
+
+	/**
+	 * Get the folder a path is in
+	 *
+	 * @param path
+	 * @return
+	 * @throws NoSuchFileException - If the parent does not exist
+	 * @throws NotDirectoryException - If the parent is not a folder
+	 */
+	private File getParentFolder(DrivePath path) throws IOException {
+		DrivePath parentPath = path.toAbsolutePath().normalize().getParent();
+		if (parentPath == null) {
+			throw new IOException("The root folder has no parent");
+		}
+		File parent = fileSystem.getFile(parentPath);
+		if (!isFolder(parent)) {
+			throw new NotDirectoryException(parentPath.toString());
+		}
+		return parent;
+	}
+
+	/**
+	 * Make room for a copy or a move, deleting the existing target when it may be replaced
+	 *
+	 * @param target
+	 * @param options
+	 * @throws IOException
+	 */
+	private void prepareTarget(DrivePath target, CopyOption... options) throws IOException {
+		if (fileSystem.lookup(target) == null) {
+			return;
+		}
+		if (!Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING)) {
+			throw new FileAlreadyExistsException(target.toString());
+		}
+		delete(target);
+	}
+
+	private boolean isSamePath(DrivePath path, DrivePath path2) {
+		return path.toAbsolutePath().normalize().equals(path2.toAbsolutePath().normalize());
+	}
+
+	private void checkUri(URI uri) {
+		if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+			throw new IllegalArgumentException("URI scheme is not " + SCHEME + ": " + uri);
+		}
+	}
+
+	private static boolean isFolder(File file) {
+		return GDFileUtils.MIME_TYPE_FOLDER.equals(file.getMimeType());
+	}
+
+	//-----------------------------------------------------------------------
+	/**
+	 * Channel writing to a temporary local file, uploaded when the channel is closed
+	 */
+	private class UploadOnCloseChannel implements SeekableByteChannel {
+
+		private final FileChannel channel;
+
+		private final java.io.File localFile;
+
+		private final DrivePath path;
+
+		/**
+		 * The file to be updated, null to create a new one
+		 */
+		private final File file;
+
+		private final File parent;
+
+		UploadOnCloseChannel(FileChannel channel, java.io.File localFile, DrivePath path, File file, File parent) {
+			this.channel = channel;
+			this.localFile = localFile;
+			this.path = path;
+			this.file = file;
+			this.parent = parent;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return channel.read(dst);
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return channel.write(src);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return channel.position();
+		}
+
+		@Override
+		public SeekableByteChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		public SeekableByteChannel truncate(long size) throws IOException {
+			channel.truncate(size);
+			return this;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			if (!channel.isOpen()) {
+				return;
+			}
+
+			try {
+				channel.close();
+				GDFileUtils gdfu = fileSystem.getFileUtils();
+				if (file != null) {
+					gdfu.update(file.getId(), localFile);
+				} else {
+					File metadata = new File();
+					metadata.setName(path.getFileName().toString());
+					gdfu.upload(metadata, localFile, Collections.singletonList(parent.getId()));
+				}
+				fileSystem.invalidate(path);
+			} finally {
+				localFile.delete();
+			}
+		}
+	}
+
+}
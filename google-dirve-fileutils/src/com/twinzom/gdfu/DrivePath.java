@@ -0,0 +1,336 @@
+package com.twinzom.gdfu;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Path of a {@link DriveFileSystem}, e.g. "/reports/2026/q3.csv"
+ *
+ * <p>
+ * Paths are plain strings, like the paths of {@link GDFileUtils#getPaths(String)}. They are resolved
+ * to files only when the file system accesses them.
+ * </p>
+ */
+final class DrivePath implements Path {
+
+	private final DriveFileSystem fileSystem;
+
+	/**
+	 * The path without repeated or trailing separators, "/" for the root and "" for the empty path
+	 */
+	private final String path;
+
+	private String[] names;
+
+	DrivePath(DriveFileSystem fileSystem, String path) {
+		this.fileSystem = fileSystem;
+		this.path = normalizeSeparators(path);
+	}
+
+	@Override
+	public DriveFileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	@Override
+	public boolean isAbsolute() {
+		return path.startsWith("/");
+	}
+
+	@Override
+	public DrivePath getRoot() {
+		return isAbsolute() ? new DrivePath(fileSystem, "/") : null;
+	}
+
+	@Override
+	public DrivePath getFileName() {
+		String[] names = names();
+		if (names.length == 0) {
+			return isAbsolute() ? null : this;
+		}
+		return new DrivePath(fileSystem, names[names.length - 1]);
+	}
+
+	@Override
+	public DrivePath getParent() {
+		String[] names = names();
+		if (names.length == 0 || names.length == 1 && !isAbsolute()) {
+			return null;
+		}
+		return new DrivePath(fileSystem, path.substring(0, Math.max(path.lastIndexOf('/'), isAbsolute() ? 1 : 0)));
+	}
+
+	@Override
+	public int getNameCount() {
+		return names().length;
+	}
+
+	@Override
+	public DrivePath getName(int index) {
+		String[] names = names();
+		if (index < 0 || index >= names.length) {
+			throw new IllegalArgumentException("Invalid name index " + index + " of " + path);
+		}
+		return new DrivePath(fileSystem, names[index]);
+	}
+
+	@Override
+	public DrivePath subpath(int beginIndex, int endIndex) {
+		String[] names = names();
+		if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex) {
+			throw new IllegalArgumentException("Invalid subpath " + beginIndex + "-" + endIndex + " of " + path);
+		}
+		return new DrivePath(fileSystem, join(Arrays.asList(names).subList(beginIndex, endIndex), false));
+	}
+
+	@Override
+	public boolean startsWith(Path other) {
+		DrivePath that = toDrivePath(other);
+		if (that.isAbsolute() != isAbsolute() || that.getNameCount() > getNameCount()) {
+			return false;
+		}
+		String[] names = names();
+		String[] otherNames = that.names();
+		for (int i = 0; i < otherNames.length; i++) {
+			if (!otherNames[i].equals(names[i])) {
+				return false;
+			}
+		}
+		return otherNames.length > 0 || that.isAbsolute() || names.length == 0;
+	}
+
+	@Override
+	public boolean startsWith(String other) {
+		return startsWith(new DrivePath(fileSystem, other));
+	}
+
+	@Override
+	public boolean endsWith(Path other) {
+		DrivePath that = toDrivePath(other);
+		if (that.isAbsolute()) {
+			return equals(that);
+		}
+		String[] names = names();
+		String[] otherNames = that.names();
+		if (otherNames.length > names.length || otherNames.length == 0 && names.length > 0) {
+			return false;
+		}
+		for (int i = 1; i <= otherNames.length; i++) {
+			if (!otherNames[otherNames.length - i].equals(names[names.length - i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endsWith(String other) {
+		return endsWith(new DrivePath(fileSystem, other));
+	}
+
+	@Override
+	public DrivePath normalize() {
+		List<String> normalized = new ArrayList<String>();
+		for (String name : names()) {
+			if (".".equals(name)) {
+				continue;
+			}
+			if ("..".equals(name)) {
+				if (!normalized.isEmpty() && !"..".equals(normalized.get(normalized.size() - 1))) {
+					normalized.remove(normalized.size() - 1);
+					continue;
+				}
+				if (isAbsolute()) {
+					// there is nothing above the root
+					continue;
+				}
+			}
+			normalized.add(name);
+		}
+		return new DrivePath(fileSystem, join(normalized, isAbsolute()));
+	}
+
+	@Override
+	public DrivePath resolve(Path other) {
+		DrivePath that = toDrivePath(other);
+		if (that.isAbsolute()) {
+			return that;
+		}
+		if (that.path.isEmpty()) {
+			return this;
+		}
+		if (path.isEmpty()) {
+			return that;
+		}
+		return new DrivePath(fileSystem, path + "/" + that.path);
+	}
+
+	@Override
+	public DrivePath resolve(String other) {
+		return resolve(new DrivePath(fileSystem, other));
+	}
+
+	@Override
+	public Path resolveSibling(Path other) {
+		DrivePath parent = getParent();
+		return parent == null ? toDrivePath(other) : parent.resolve(other);
+	}
+
+	@Override
+	public Path resolveSibling(String other) {
+		return resolveSibling(new DrivePath(fileSystem, other));
+	}
+
+	@Override
+	public DrivePath relativize(Path other) {
+		DrivePath that = toDrivePath(other);
+		if (that.isAbsolute() != isAbsolute()) {
+			throw new IllegalArgumentException("Cannot relativize " + that + " against " + this);
+		}
+		String[] names = names();
+		String[] otherNames = that.names();
+		int common = 0;
+		while (common < names.length && common < otherNames.length && names[common].equals(otherNames[common])) {
+			common++;
+		}
+		List<String> relative = new ArrayList<String>();
+		for (int i = common; i < names.length; i++) {
+			relative.add("..");
+		}
+		relative.addAll(Arrays.asList(otherNames).subList(common, otherNames.length));
+		return new DrivePath(fileSystem, join(relative, false));
+	}
+
+	/**
+	 * @return The URI of the absolute path, e.g. "gdrive:/reports/2026/q3.csv"
+	 */
+	@Override
+	public URI toUri() {
+		try {
+			return new URI(DriveFileSystemProvider.SCHEME, null, toAbsolutePath().path, null);
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException("Invalid path " + path, e);
+		}
+	}
+
+	/**
+	 * The paths are relative to the root folder
+	 */
+	@Override
+	public DrivePath toAbsolutePath() {
+		return isAbsolute() ? this : new DrivePath(fileSystem, "/" + path);
+	}
+
+	@Override
+	public DrivePath toRealPath(LinkOption... options) throws IOException {
+		DrivePath real = toAbsolutePath().normalize();
+		fileSystem.provider().checkAccess(real);
+		return real;
+	}
+
+	@Override
+	public File toFile() {
+		throw new UnsupportedOperationException("Drive path has no local file: " + path);
+	}
+
+	@Override
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+		throw new UnsupportedOperationException("Drive paths cannot be watched, use GDFileUtils.newChangeWatcher");
+	}
+
+	@Override
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+		return register(watcher, events, new WatchEvent.Modifier[0]);
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		List<Path> paths = new ArrayList<Path>();
+		for (String name : names()) {
+			paths.add(new DrivePath(fileSystem, name));
+		}
+		return paths.iterator();
+	}
+
+	@Override
+	public int compareTo(Path other) {
+		return path.compareTo(toDrivePath(other).path);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof DrivePath)) {
+			return false;
+		}
+		DrivePath that = (DrivePath) obj;
+		return fileSystem == that.fileSystem && path.equals(that.path);
+	}
+
+	@Override
+	public int hashCode() {
+		return path.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	private String[] names() {
+		if (names == null) {
+			List<String> list = new ArrayList<String>();
+			for (String name : path.split("/")) {
+				if (!name.isEmpty()) {
+					list.add(name);
+				}
+			}
+			names = list.toArray(new String[list.size()]);
+		}
+		return names;
+	}
+
+	private DrivePath toDrivePath(Path other) {
+		if (!(other instanceof DrivePath) || ((DrivePath) other).fileSystem != fileSystem) {
+			throw new ProviderMismatchException("Not a path of this Drive file system: " + other);
+		}
+		return (DrivePath) other;
+	}
+
+	private static String join(List<String> names, boolean absolute) {
+		StringBuilder sb = new StringBuilder(absolute ? "/" : "");
+		for (String name : names) {
+			if (sb.length() > 1 || sb.length() == 1 && !absolute) {
+				sb.append('/');
+			}
+			sb.append(name);
+		}
+		return sb.toString();
+	}
+
+	private static String normalizeSeparators(String path) {
+		StringBuilder sb = new StringBuilder(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c != '/' || sb.length() == 0 || sb.charAt(sb.length() - 1) != '/') {
+				sb.append(c);
+			}
+		}
+		if (sb.length() > 1 && sb.charAt(sb.length() - 1) == '/') {
+			sb.setLength(sb.length() - 1);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.twinzom.gdfu;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams chunks straight from a file channel
+ * 
+ * <p>
+ * No chunk buffer is held on the heap, each chunk is transferred from its position of 
+ * the file into the request body when it is sent. The heap usage does not depend on 
+ * the chunk size.
+ * </p>
+ */
+class FileChannelChunkSource implements ChunkSource {
+
+	private final FileChannel channel;
+	
+	private final long length;
+	
+	private long position = 0;
+	
+	/**
+	 * @param localFile - The file to be read
+	 * @param start - The offset of the first chunk
+	 * @throws IOException
+	 */
+	FileChannelChunkSource(java.io.File localFile, long start) throws IOException {
+		this.channel = FileChannel.open(localFile.toPath(), StandardOpenOption.READ);
+		this.length = channel.size();
+		this.position = start;
+	}
+	
+	@Override
+	public long getLength() {
+		return length;
+	}
+	
+	@Override
+	public Chunk nextChunk(int size) throws IOException {
+		
+		int chunkLength = (int) Math.min(size, length - position);
+		
+		Chunk chunk = new ChannelChunk(position, chunkLength, position + chunkLength >= length);
+		position += chunkLength;
+		
+		return chunk;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	//-----------------------------------------------------------------------
+	/**
+	 * Chunk that is read by positional transfer, it does not move the channel position
+	 */
+	private class ChannelChunk extends Chunk {
+		
+		ChannelChunk(long position, int length, boolean last) {
+			super(position, length, last);
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			
+			WritableByteChannel target = Channels.newChannel(out);
+			
+			long transferred = 0;
+			while (transferred < getLength()) {
+				long count = channel.transferTo(getPosition() + transferred, getLength() - transferred, target);
+				if (count <= 0 && getPosition() + transferred >= channel.size()) {
+					throw new EOFException("File was truncated at byte " + (getPosition() + transferred) + " of " + length);
+				}
+				transferred += count;
+			}
+		}
+	}
+	
+}
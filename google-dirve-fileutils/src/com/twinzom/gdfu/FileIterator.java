@@ -0,0 +1,155 @@
+package com.twinzom.gdfu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+
+/**
+ * Iterates over all results of a file listing, page by page
+ * 
+ * <p>
+ * Pages are fetched lazily by following the page tokens. As soon as a page is handed out, 
+ * the next page is fetched in the background, so it is usually ready when the caller gets 
+ * to the end of the current one. At most two pages are held in memory.
+ * </p>
+ * 
+ * <p>
+ * Failures of page requests are thrown as {@link UncheckedIOException}. Close the iterator 
+ * when it is not read to the end, to cancel the page that is being fetched.
+ * </p>
+ */
+public class FileIterator implements Iterator<File>, Closeable {
+
+	private final Drive.Files.List query;
+	
+	private final ExecutorService executor;
+	
+	/**
+	 * The index where the folders found are recorded, may be null
+	 */
+	private final PathIndex pathIndex;
+	
+	private Iterator<File> page = Collections.<File>emptyList().iterator();
+	
+	private Future<FileList> nextPage;
+	
+	private int pageCount = 0;
+	
+	/**
+	 * @param query - The prepared query, its fields must include nextPageToken
+	 * @param executor - The executor fetching the pages
+	 * @param pathIndex - The index where the folders found are recorded, may be null
+	 */
+	FileIterator(Drive.Files.List query, ExecutorService executor, PathIndex pathIndex) {
+		this.query = query;
+		this.executor = executor;
+		this.pathIndex = pathIndex;
+		this.nextPage = fetch(null);
+	}
+	
+	@Override
+	public boolean hasNext() {
+		
+		while (!page.hasNext()) {
+			if (nextPage == null) {
+				return false;
+			}
+			
+			FileList fileList = await(nextPage);
+			pageCount++;
+			
+			String pageToken = fileList.getNextPageToken();
+			nextPage = pageToken != null ? fetch(pageToken) : null;
+			
+			if (fileList.getFiles() != null) {
+				if (pathIndex != null) {
+					pathIndex.addAll(fileList.getFiles());
+				}
+				page = fileList.getFiles().iterator();
+			}
+		}
+		
+		return true;
+	}
+	
+	@Override
+	public File next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.next();
+	}
+	
+	/**
+	 * Get the number of pages received so far
+	 * 
+	 * @return
+	 */
+	public int getPageCount() {
+		return pageCount;
+	}
+	
+	/**
+	 * Get the remaining files as a sequential stream, closing the stream closes this iterator
+	 * 
+	 * @return
+	 */
+	public Stream<File> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, 
+					Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(new Runnable() {
+					@Override
+					public void run() {
+						close();
+					}
+				});
+	}
+	
+	@Override
+	public void close() {
+		if (nextPage != null) {
+			nextPage.cancel(true);
+			nextPage = null;
+		}
+		page = Collections.<File>emptyList().iterator();
+	}
+	
+	private Future<FileList> fetch(final String pageToken) {
+		return executor.submit(new Callable<FileList>() {
+			@Override
+			public FileList call() throws IOException {
+				return query.setPageToken(pageToken).execute();
+			}
+		});
+	}
+	
+	private static FileList await(Future<FileList> page) {
+		try {
+			return page.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw new UncheckedIOException((IOException) e.getCause());
+			}
+			throw new UncheckedIOException(new IOException("Cannot list files", e.getCause()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new IOException("Interrupted while listing files", e));
+		}
+	}
+	
+}
@@ -0,0 +1,495 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * Copies the content of a folder tree to another folder, on Google Drive
+ *
+ * <p>
+ * The source tree is walked first, then the folders are created level by level and the files
+ * are copied by Google Drive, no content is transferred. Both are sent as batch requests,
+ * several batches at the same time.
+ * </p>
+ *
+ * <p>
+ * Each folder created and each file copied is marked with the id of its source in an app
+ * property. When a copy failed or was interrupted, running it again with the same source and
+ * destination resumes it: the items found with a mark in the destination are not copied again.
+ * An item with several parents in the source tree is copied once, under the first one found.
+ * </p>
+ *
+ * <pre>
+ * FolderCopy.Progress progress = gdfu.newFolderCopy()
+ *     .setParallelism(8)
+ *     .setListener(new FolderCopy.Listener() {
+ *         public void onProgress(FolderCopy.Progress progress) {
+ *             System.out.println(progress);
+ *         }
+ *     })
+ *     .copy("0B64VHJrvrPWHc09wdHh0aXFOYjg", "0B64VHJrvrPWHSU1NTklHYVZrQTQ");
+ * </pre>
+ */
+public class FolderCopy {
+
+	/**
+	 * Receives the progress of a copy
+	 */
+	public interface Listener {
+
+		/**
+		 * Called once the tree was walked and after each batch, the calls are serialized
+		 *
+		 * @param progress
+		 */
+		void onProgress(Progress progress);
+	}
+
+	/**
+	 * The app property holding the id of the source of a copy
+	 */
+	static final String COPY_OF_PROPERTY = "gdfuCopyOf";
+
+	private static final int DEFAULT_PARALLELISM = 4;
+
+	private static final int DEFAULT_BATCH_SIZE = 20;
+
+	private static final java.util.List<String> MARK_FIELDS = Arrays.asList("appProperties");
+
+	private final GDFileUtils gdfu;
+
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private Listener listener;
+
+	FolderCopy(GDFileUtils gdfu) {
+		this.gdfu = gdfu;
+	}
+
+	/**
+	 * Set the number of batch requests sent at the same time
+	 *
+	 * @param parallelism
+	 * @return
+	 */
+	public FolderCopy setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Set the number of copies in one batch request, up to 100
+	 *
+	 * @param batchSize
+	 * @return
+	 */
+	public FolderCopy setBatchSize(int batchSize) {
+		if (batchSize < 1 || batchSize > BulkOperations.MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("Batch size must be between 1 and " + BulkOperations.MAX_BATCH_SIZE);
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Set the listener of the progress, null for none
+	 *
+	 * @param listener
+	 * @return
+	 */
+	public FolderCopy setListener(Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Copy the content of a folder tree into a folder, skipping the items copied by a previous run
+	 *
+	 * <p>
+	 * A failed item does not stop the others, the failures are thrown together at the end.
+	 * The items under a folder that could not be created are counted as failed.
+	 * </p>
+	 *
+	 * @param srcFolderId
+	 * @param destFolderId
+	 * @return The final progress
+	 * @throws IOException
+	 */
+	public Progress copy(String srcFolderId, String destFolderId) throws IOException {
+		return new Copy().run(srcFolderId, destFolderId);
+	}
+
+	//-----------------------------------------------------------------------
+	/**
+	 * The state of one copy
+	 */
+	private class Copy {
+
+		private final Progress progress = new Progress();
+
+		private final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+
+		/**
+		 * The source folders by depth, with the files found in the tree
+		 */
+		private final TreeMap<Integer, List<Item>> folders = new TreeMap<Integer, List<Item>>();
+
+		private final List<Item> files = new ArrayList<Item>();
+
+		/**
+		 * The ids of the copies by the ids of their sources, the folders created and the files copied
+		 */
+		private final Map<String, String> copies = new ConcurrentHashMap<String, String>();
+
+		Progress run(String srcFolderId, String destFolderId) throws IOException {
+
+			walkSource(srcFolderId);
+			findCopies(destFolderId);
+			copies.put(srcFolderId, destFolderId);
+
+			synchronized (this) {
+				for (List<Item> level : folders.values()) {
+					progress.folderCount += level.size();
+				}
+				progress.fileCount = files.size();
+				notifyListener();
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("gdfu-copy"));
+			try {
+				// parents are created before their children
+				for (List<Item> level : folders.values()) {
+					execute(executor, level, true);
+				}
+				execute(executor, files, false);
+			} finally {
+				executor.shutdownNow();
+			}
+
+			if (!failures.isEmpty()) {
+				IOException failure = new IOException(failures.size() + " copies failed, first: "
+						+ failures.get(0).getMessage(), failures.get(0));
+				for (int i=1; i<failures.size(); i++) {
+					failure.addSuppressed(failures.get(i));
+				}
+				throw failure;
+			}
+
+			return progress;
+		}
+
+		private void walkSource(String srcFolderId) throws IOException {
+
+			// the depth of the folders walked, a folder is created with the level of its depth
+			final Map<String, Integer> walked = new HashMap<String, Integer>();
+			final Set<String> seen = new HashSet<String>();
+			walked.put(srcFolderId, 0);
+
+			gdfu.newFolderWalker()
+				.setQ("trashed != true")
+				.setFields(null)
+				.walk(srcFolderId, new FolderWalker.Visitor() {
+					@Override
+					public boolean visit(File file, int depth, String parentPath) {
+						if (!seen.add(file.getId())) {
+							return true;
+						}
+						// the shallowest parent walked, no deeper than the one it was listed from, so it is created first
+						String parentId = null;
+						for (String id : file.getParents()) {
+							Integer parentDepth = walked.get(id);
+							if (parentDepth != null && (parentId == null || parentDepth < walked.get(parentId))) {
+								parentId = id;
+							}
+						}
+						Item item = new Item(file, parentId);
+						if (GDFileUtils.MIME_TYPE_FOLDER.equals(file.getMimeType())) {
+							walked.put(file.getId(), depth);
+							List<Item> level = folders.get(depth);
+							if (level == null) {
+								level = new ArrayList<Item>();
+								folders.put(depth, level);
+							}
+							level.add(item);
+						} else {
+							files.add(item);
+						}
+						return true;
+					}
+				});
+		}
+
+		/**
+		 * Find the copies made by previous runs in the destination tree
+		 *
+		 * @param destFolderId
+		 * @throws IOException
+		 */
+		private void findCopies(String destFolderId) throws IOException {
+
+			gdfu.newFolderWalker()
+				.setQ("trashed != true")
+				.setFields(MARK_FIELDS)
+				.walk(destFolderId, new FolderWalker.Visitor() {
+					@Override
+					public boolean visit(File file, int depth, String parentPath) {
+						Map<String, String> properties = file.getAppProperties();
+						if (properties != null && properties.get(COPY_OF_PROPERTY) != null) {
+							copies.put(properties.get(COPY_OF_PROPERTY), file.getId());
+						}
+						return true;
+					}
+				});
+		}
+
+		/**
+		 * Create the folders or copy the files in batches, at most parallelism batches at the same time
+		 *
+		 * @param executor
+		 * @param items
+		 * @param folder
+		 * @throws IOException
+		 */
+		private void execute(ExecutorService executor, List<Item> items, final boolean folder) throws IOException {
+
+			List<Item> pending = new ArrayList<Item>();
+			for (Item item : items) {
+				if (copies.containsKey(item.sourceId)) {
+					skipped(folder);
+				} else if (copies.get(item.parentId) == null) {
+					failed(folder, new IOException("Cannot copy " + item.name + " (" + item.sourceId
+							+ "), its parent folder " + item.parentId + " was not copied"));
+				} else {
+					pending.add(item);
+				}
+			}
+
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int from = 0; from < pending.size(); from += batchSize) {
+				final List<Item> batch = pending.subList(from, Math.min(from + batchSize, pending.size()));
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						copy(batch, folder);
+						return null;
+					}
+				}));
+			}
+
+			try {
+				for (Future<Void> result : results) {
+					try {
+						result.get();
+					} catch (ExecutionException e) {
+						failures.add(e.getCause() instanceof IOException ? (IOException) e.getCause()
+								: new IOException(e.getCause()));
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while copying folder content");
+			}
+		}
+
+		private void copy(List<Item> batch, boolean folder) throws IOException {
+
+			BulkOperations bulk = gdfu.newBulkOperations();
+			for (Item item : batch) {
+				File metadata = new File();
+				metadata.setName(item.name);
+				metadata.setParents(Collections.singletonList(copies.get(item.parentId)));
+				metadata.setAppProperties(Collections.singletonMap(COPY_OF_PROPERTY, item.sourceId));
+				if (folder) {
+					metadata.setMimeType(GDFileUtils.MIME_TYPE_FOLDER);
+					bulk.create(metadata);
+				} else {
+					bulk.copy(item.sourceId, metadata);
+				}
+			}
+
+			List<BulkOperations.Result> results = bulk.execute();
+
+			synchronized (this) {
+				for (int i=0; i<results.size(); i++) {
+					BulkOperations.Result result = results.get(i);
+					Item item = batch.get(i);
+					if (result.isSuccess()) {
+						copies.put(item.sourceId, result.getFile().getId());
+						if (folder) {
+							progress.foldersCreated++;
+						} else {
+							progress.filesCopied++;
+						}
+					} else {
+						failed(folder, new IOException("Cannot copy " + item.name + " (" + item.sourceId + "): "
+								+ (result.getError() != null ? result.getError().getMessage() : "unknown error")));
+					}
+				}
+				notifyListener();
+			}
+		}
+
+		private synchronized void skipped(boolean folder) {
+			if (folder) {
+				progress.foldersSkipped++;
+			} else {
+				progress.filesSkipped++;
+			}
+		}
+
+		private synchronized void failed(boolean folder, IOException e) {
+			failures.add(e);
+			if (folder) {
+				progress.foldersFailed++;
+			} else {
+				progress.filesFailed++;
+			}
+		}
+
+		private void notifyListener() {
+			if (listener != null) {
+				listener.onProgress(progress.snapshot());
+			}
+		}
+	}
+
+	/**
+	 * A folder or file of the source tree
+	 */
+	private static class Item {
+
+		private final String sourceId;
+
+		private final String name;
+
+		private final String parentId;
+
+		Item(File file, String parentId) {
+			this.sourceId = file.getId();
+			this.name = file.getName();
+			this.parentId = parentId;
+		}
+	}
+
+	//-----------------------------------------------------------------------
+	/**
+	 * The counts of a copy
+	 */
+	public static class Progress {
+
+		private int folderCount;
+		private int foldersCreated;
+		private int foldersSkipped;
+		private int foldersFailed;
+		private int fileCount;
+		private int filesCopied;
+		private int filesSkipped;
+		private int filesFailed;
+
+		Progress snapshot() {
+			Progress copy = new Progress();
+			copy.folderCount = folderCount;
+			copy.foldersCreated = foldersCreated;
+			copy.foldersSkipped = foldersSkipped;
+			copy.foldersFailed = foldersFailed;
+			copy.fileCount = fileCount;
+			copy.filesCopied = filesCopied;
+			copy.filesSkipped = filesSkipped;
+			copy.filesFailed = filesFailed;
+			return copy;
+		}
+
+		/**
+		 * Get the number of folders of the source tree
+		 *
+		 * @return
+		 */
+		public int getFolderCount() {
+			return folderCount;
+		}
+
+		public int getFoldersCreated() {
+			return foldersCreated;
+		}
+
+		/**
+		 * Get the number of folders created by a previous run
+		 *
+		 * @return
+		 */
+		public int getFoldersSkipped() {
+			return foldersSkipped;
+		}
+
+		public int getFoldersFailed() {
+			return foldersFailed;
+		}
+
+		/**
+		 * Get the number of files of the source tree
+		 *
+		 * @return
+		 */
+		public int getFileCount() {
+			return fileCount;
+		}
+
+		public int getFilesCopied() {
+			return filesCopied;
+		}
+
+		/**
+		 * Get the number of files copied by a previous run
+		 *
+		 * @return
+		 */
+		public int getFilesSkipped() {
+			return filesSkipped;
+		}
+
+		public int getFilesFailed() {
+			return filesFailed;
+		}
+
+		/**
+		 * Whether every folder and file was handled
+		 *
+		 * @return
+		 */
+		public boolean isDone() {
+			return foldersCreated + foldersSkipped + foldersFailed == folderCount
+					&& filesCopied + filesSkipped + filesFailed == fileCount;
+		}
+
+		@Override
+		public String toString() {
+			return "Progress [folders=" + (foldersCreated + foldersSkipped) + "/" + folderCount
+					+ ", files=" + (filesCopied + filesSkipped) + "/" + fileCount
+					+ ", skipped=" + (foldersSkipped + filesSkipped)
+					+ ", failed=" + (foldersFailed + filesFailed) + "]";
+		}
+	}
+
+}
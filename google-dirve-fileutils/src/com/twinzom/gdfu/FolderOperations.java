@@ -0,0 +1,348 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Deletes or moves the content of folders with a pipeline of batch requests
+ *
+ * <p>
+ * The content of a folder is listed page by page, the next page being fetched while the current
+ * one is handled, and each page feeds batch requests sent by a bounded pool of workers. A folder
+ * is listed again until no file is left to handle, since the pages can skip files while the
+ * folder content changes.
+ * </p>
+ *
+ * <p>
+ * A sub-folder is deleted together with its content in one call. When Google Drive refuses it,
+ * e.g. for a folder shared by another user, its content is cleaned instead, and the folder is
+ * kept. Deleting a folder does not delete the files of other owners it contains, they are left
+ * without parent.
+ * </p>
+ *
+ * <pre>
+ * long deleted = gdfu.newFolderOperations()
+ *     .setTrash(true)
+ *     .setParallelism(8)
+ *     .clean("0B64VHJrvrPWHc09wdHh0aXFOYjg");
+ * </pre>
+ */
+public class FolderOperations {
+
+	private static final int DEFAULT_PARALLELISM = 4;
+
+	private static final int HTTP_FORBIDDEN = 403;
+
+	private static final int HTTP_NOT_FOUND = 404;
+
+	private static final java.util.List<String> LIST_FIELDS = Arrays.asList("id", "name", "mimeType");
+
+	private final GDFileUtils gdfu;
+
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	private int batchSize = BulkOperations.MAX_BATCH_SIZE;
+
+	private boolean trash = false;
+
+	private boolean keepFolders = false;
+
+	FolderOperations(GDFileUtils gdfu) {
+		this.gdfu = gdfu;
+	}
+
+	/**
+	 * Set the number of batch requests sent at the same time
+	 *
+	 * @param parallelism
+	 * @return
+	 */
+	public FolderOperations setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * Set the number of operations in one batch request, up to 100
+	 *
+	 * @param batchSize
+	 * @return
+	 */
+	public FolderOperations setBatchSize(int batchSize) {
+		if (batchSize < 1 || batchSize > BulkOperations.MAX_BATCH_SIZE) {
+			throw new IllegalArgumentException("Batch size must be between 1 and " + BulkOperations.MAX_BATCH_SIZE);
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * Move the files to the trash instead of deleting them permanently, default is false
+	 *
+	 * @param trash
+	 * @return
+	 */
+	public FolderOperations setTrash(boolean trash) {
+		this.trash = trash;
+		return this;
+	}
+
+	/**
+	 * Keep the sub-folders when cleaning, only the files of the whole tree are deleted, default is false
+	 *
+	 * @param keepFolders
+	 * @return
+	 */
+	public FolderOperations setKeepFolders(boolean keepFolders) {
+		this.keepFolders = keepFolders;
+		return this;
+	}
+
+	/**
+	 * Delete, or trash, all files and folders of a folder, the folder itself is kept
+	 *
+	 * <p>
+	 * A failed file does not stop the others, the failures are thrown together at the end.
+	 * </p>
+	 *
+	 * @param folderId
+	 * @return The number of files and folders deleted, a folder deleted with its content counts as one
+	 * @throws IOException
+	 */
+	public long clean(String folderId) throws IOException {
+		return new Pipeline(folderId, null).run();
+	}
+
+	/**
+	 * Move all files and folders of a folder to another folder
+	 *
+	 * <p>
+	 * Only the source folder is removed from the parents of the files, their other parents are kept.
+	 * A failed file does not stop the others, the failures are thrown together at the end.
+	 * </p>
+	 *
+	 * @param srcFolderId
+	 * @param destFolderId
+	 * @return The number of files and folders moved
+	 * @throws IOException
+	 */
+	public long move(String srcFolderId, String destFolderId) throws IOException {
+		return new Pipeline(srcFolderId, destFolderId).run();
+	}
+
+	//-----------------------------------------------------------------------
+	/**
+	 * The state of one clean or move
+	 */
+	private class Pipeline {
+
+		/**
+		 * The folder to be moved to, null to clean
+		 */
+		private final String destFolderId;
+
+		private final ConcurrentLinkedQueue<String> folders = new ConcurrentLinkedQueue<String>();
+
+		/**
+		 * The files that failed or were gone, and the folders queued, they are skipped when listed again
+		 */
+		private final Set<String> skipped = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		private final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+				new DaemonThreadFactory("gdfu-folder"));
+
+		/**
+		 * Bounds the batches listed ahead of the workers
+		 */
+		private final Semaphore slots = new Semaphore(parallelism * 2);
+
+		Pipeline(String folderId, String destFolderId) {
+			this.destFolderId = destFolderId;
+			folders.add(folderId);
+		}
+
+		long run() throws IOException {
+
+			try {
+				while (true) {
+					String folderId = folders.poll();
+					if (folderId == null) {
+						// the batches running can queue folders that could not be deleted
+						awaitBatches();
+						folderId = folders.poll();
+						if (folderId == null) {
+							break;
+						}
+					}
+					while (list(folderId)) {
+						awaitBatches();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while " + (destFolderId == null ? "cleaning" : "moving")
+						+ " folder content");
+			} finally {
+				executor.shutdownNow();
+			}
+
+			if (!failures.isEmpty()) {
+				IOException failure = new IOException(failures.size() + " files could not be "
+						+ (destFolderId == null ? "deleted" : "moved") + ", first: " + failures.get(0).getMessage(),
+						failures.get(0));
+				for (int i=1; i<failures.size(); i++) {
+					failure.addSuppressed(failures.get(i));
+				}
+				throw failure;
+			}
+
+			return count.get();
+		}
+
+		/**
+		 * List the folder and send its files to the workers, batch by batch
+		 *
+		 * @param folderId
+		 * @return Whether any file was sent, the folder is to be listed again then
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		private boolean list(final String folderId) throws IOException, InterruptedException {
+
+			boolean sent = false;
+			List<File> batch = new ArrayList<File>();
+
+			FileIterator files = gdfu.iterateFiles(folderId, "and trashed != true", LIST_FIELDS);
+			try {
+				while (files.hasNext()) {
+					File file = files.next();
+					if (file.getId().equals(destFolderId) || skipped.contains(file.getId())) {
+						continue;
+					}
+					if (keepFolders && destFolderId == null && GDFileUtils.MIME_TYPE_FOLDER.equals(file.getMimeType())) {
+						queueFolder(file.getId());
+						continue;
+					}
+					batch.add(file);
+					if (batch.size() == batchSize) {
+						submit(folderId, batch);
+						batch = new ArrayList<File>();
+						sent = true;
+					}
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				files.close();
+			}
+
+			if (!batch.isEmpty()) {
+				submit(folderId, batch);
+				sent = true;
+			}
+
+			return sent;
+		}
+
+		private void submit(final String folderId, final List<File> batch) throws InterruptedException {
+
+			slots.acquire();
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							execute(folderId, batch);
+						} catch (IOException e) {
+							failures.add(e);
+						} catch (RuntimeException e) {
+							failures.add(new IOException("Cannot handle files of folder " + folderId, e));
+						} finally {
+							slots.release();
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				slots.release();
+				throw e;
+			}
+		}
+
+		private void execute(String folderId, List<File> batch) throws IOException {
+
+			BulkOperations bulk = gdfu.newBulkOperations();
+			for (File file : batch) {
+				if (destFolderId != null) {
+					bulk.moveToFolder(file.getId(), folderId, destFolderId);
+				} else if (trash) {
+					bulk.trash(file.getId());
+				} else {
+					bulk.delete(file.getId());
+				}
+			}
+
+			List<BulkOperations.Result> results = bulk.execute();
+			RequestThrottle throttle = gdfu.getRequestThrottle();
+
+			for (int i=0; i<results.size(); i++) {
+				BulkOperations.Result result = results.get(i);
+				File file = batch.get(i);
+				GoogleJsonError error = result.getError();
+				if (result.isSuccess()) {
+					count.incrementAndGet();
+				} else if (error != null && error.getCode() == HTTP_NOT_FOUND) {
+					// deleted meanwhile, or still listed after it was handled
+					skipped.add(file.getId());
+				} else if (destFolderId == null && GDFileUtils.MIME_TYPE_FOLDER.equals(file.getMimeType())
+						&& error != null && error.getCode() == HTTP_FORBIDDEN && !throttle.isRetriable(error)) {
+					// the folder cannot be deleted as a whole, its content may be
+					queueFolder(file.getId());
+				} else {
+					skipped.add(file.getId());
+					failures.add(new IOException("Cannot " + (destFolderId != null ? "move" : trash ? "trash" : "delete")
+							+ " " + file.getName() + " (" + file.getId() + "): "
+							+ (error != null ? error.getMessage() : "unknown error")));
+				}
+			}
+		}
+
+		private void queueFolder(String folderId) {
+			if (skipped.add(folderId)) {
+				folders.add(folderId);
+			}
+		}
+
+		/**
+		 * Wait until the workers are idle
+		 *
+		 * @throws InterruptedException
+		 */
+		private void awaitBatches() throws InterruptedException {
+			slots.acquire(parallelism * 2);
+			slots.release(parallelism * 2);
+		}
+	}
+
+}
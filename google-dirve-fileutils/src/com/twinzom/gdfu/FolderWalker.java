@@ -0,0 +1,359 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * Walks a folder tree breadth-first with a bounded pool of workers
+ * 
+ * <p>
+ * Several folders of the same depth are listed by one query 
+ * ({@code 'a' in parents or 'b' in parents ...}), and the queries run in parallel. Shallower 
+ * folders are always listed first. Each file found is given to the {@link Visitor} with its 
+ * depth and the path of its parent folder, the visitor calls are serialized.
+ * </p>
+ * 
+ * <p>
+ * A folder with several parents in the tree is descended only once.
+ * </p>
+ * 
+ * <pre>
+ * gdfu.newFolderWalker()
+ *     .setMaxDepth(3)
+ *     .setMimeType("application/pdf")
+ *     .walk("0B64VHJrvrPWHc09wdHh0aXFOYjg", new FolderWalker.Visitor() {
+ *         public boolean visit(File file, int depth, String parentPath) {
+ *             System.out.println(parentPath + "/" + file.getName());
+ *             return true;
+ *         }
+ *     });
+ * </pre>
+ */
+public class FolderWalker {
+
+	/**
+	 * Receives the files found by the walker
+	 */
+	public interface Visitor {
+		
+		/**
+		 * Visit a file or folder
+		 * 
+		 * @param file
+		 * @param depth - 1 for the children of the root folder
+		 * @param parentPath - The path of the parent folder from the root folder, "/" for the root folder
+		 * @return false to stop the walk
+		 */
+		boolean visit(File file, int depth, String parentPath);
+	}
+	
+	private static final int DEFAULT_PARALLELISM = 4;
+	
+	private static final int DEFAULT_PARENTS_PER_QUERY = 20;
+	
+	private static final java.util.List<String> WALK_FIELDS = Arrays.asList("id", "name", "mimeType", "parents");
+	
+	private final GDFileUtils gdfu;
+	
+	private int maxDepth = Integer.MAX_VALUE;
+	
+	private String mimeType;
+	
+	private String q;
+	
+	private java.util.List<String> fields = GDFileUtils.DEFAULT_FILE_FIELDS;
+	
+	private int parallelism = DEFAULT_PARALLELISM;
+	
+	private int parentsPerQuery = DEFAULT_PARENTS_PER_QUERY;
+	
+	FolderWalker(GDFileUtils gdfu) {
+		this.gdfu = gdfu;
+	}
+	
+	/**
+	 * Set the maximum depth to be visited, 1 visits the children of the root folder only
+	 * 
+	 * @param maxDepth
+	 * @return
+	 */
+	public FolderWalker setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+		return this;
+	}
+	
+	/**
+	 * Visit only the files of given mime type, the folders are still walked
+	 * 
+	 * @param mimeType
+	 * @return
+	 */
+	public FolderWalker setMimeType(String mimeType) {
+		this.mimeType = mimeType;
+		return this;
+	}
+	
+	/**
+	 * Set an extra query condition, e.g. "trashed != true"
+	 * 
+	 * @param q
+	 * @return
+	 */
+	public FolderWalker setQ(String q) {
+		this.q = q;
+		return this;
+	}
+	
+	/**
+	 * Set the fields of visited files, id, name, mimeType and parents are always fetched
+	 * 
+	 * @param fields
+	 * @return
+	 */
+	public FolderWalker setFields(java.util.List<String> fields) {
+		this.fields = fields;
+		return this;
+	}
+	
+	/**
+	 * Set the number of queries that run at the same time
+	 * 
+	 * @param parallelism
+	 * @return
+	 */
+	public FolderWalker setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+	
+	/**
+	 * Set the maximum number of folders listed by one query
+	 * 
+	 * @param parentsPerQuery
+	 * @return
+	 */
+	public FolderWalker setParentsPerQuery(int parentsPerQuery) {
+		if (parentsPerQuery < 1) {
+			throw new IllegalArgumentException("Parents per query must be at least 1");
+		}
+		this.parentsPerQuery = parentsPerQuery;
+		return this;
+	}
+	
+	/**
+	 * Walk the tree under given folder
+	 * 
+	 * @param rootFolderId
+	 * @param visitor
+	 * @return true if the whole tree was walked, false if the visitor stopped it
+	 * @throws IOException
+	 */
+	public boolean walk(String rootFolderId, Visitor visitor) throws IOException {
+		return new Walk(visitor).run(rootFolderId);
+	}
+	
+	//-----------------------------------------------------------------------
+	/**
+	 * The state of one walk
+	 */
+	private class Walk {
+		
+		private final Visitor visitor;
+		
+		private final Set<String> walkedFolders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		
+		private final ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 
+				0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), 
+				new DaemonThreadFactory("gdfu-walker"));
+		
+		private final String listFields;
+		
+		private int pendingQueries = 0;
+		
+		private boolean stopped = false;
+		
+		private IOException failure;
+		
+		Walk(Visitor visitor) {
+			this.visitor = visitor;
+			Set<String> allFields = new LinkedHashSet<String>(WALK_FIELDS);
+			if (fields != null) {
+				allFields.addAll(fields);
+			}
+			this.listFields = Util.listToString(new ArrayList<String>(allFields), ",", "");
+		}
+		
+		boolean run(String rootFolderId) throws IOException {
+			
+			walkedFolders.add(rootFolderId);
+			submit(Collections.singletonMap(rootFolderId, "/"), 1);
+			
+			try {
+				synchronized (this) {
+					while (pendingQueries > 0 && !stopped && failure == null) {
+						wait();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while walking folder " + rootFolderId);
+			} finally {
+				executor.shutdownNow();
+			}
+			
+			if (failure != null) {
+				throw failure;
+			}
+			
+			return !stopped;
+		}
+		
+		/**
+		 * @param folders - The folders to be listed, with their paths
+		 * @param depth - The depth of their children
+		 */
+		private synchronized void submit(final Map<String, String> folders, final int depth) {
+			
+			if (stopped || failure != null) {
+				return;
+			}
+			
+			pendingQueries++;
+			executor.execute(new Query(depth) {
+				@Override
+				public void run() {
+					try {
+						list(folders, depth);
+					} catch (UncheckedIOException e) {
+						fail(e.getCause());
+					} catch (IOException e) {
+						fail(e);
+					} catch (RuntimeException e) {
+						fail(new IOException("Cannot walk folders " + folders.keySet(), e));
+					} finally {
+						done();
+					}
+				}
+			});
+		}
+		
+		private void list(Map<String, String> folders, int depth) throws IOException {
+			
+			StringBuilder query = new StringBuilder("(");
+			for (String folderId : folders.keySet()) {
+				if (query.length() > 1) {
+					query.append(" or ");
+				}
+				query.append("'").append(folderId).append("' in parents");
+			}
+			query.append(")");
+			if (q != null) {
+				query.append(" and ").append(q);
+			}
+			
+			Map<String, String> subFolders = new LinkedHashMap<String, String>();
+			
+			FileIterator files = new FileIterator(gdfu.prepareListQuery("", query.toString(), 
+					Arrays.asList(listFields)), gdfu.getBackgroundExecutor(), gdfu.getPathIndex());
+			try {
+				while (files.hasNext() && !isStopped()) {
+					File file = files.next();
+					if (file.getParents() == null) {
+						continue;
+					}
+					boolean folder = GDFileUtils.MIME_TYPE_FOLDER.equals(file.getMimeType());
+					
+					for (String parentId : file.getParents()) {
+						String parentPath = folders.get(parentId);
+						if (parentPath == null) {
+							continue;
+						}
+						
+						if ((mimeType == null || mimeType.equals(file.getMimeType())) 
+								&& !visit(file, depth, parentPath)) {
+							return;
+						}
+						
+						if (folder && depth < maxDepth && walkedFolders.add(file.getId())) {
+							subFolders.put(file.getId(), 
+									("/".equals(parentPath) ? "" : parentPath) + "/" + file.getName());
+							if (subFolders.size() == parentsPerQuery) {
+								submit(subFolders, depth + 1);
+								subFolders = new LinkedHashMap<String, String>();
+							}
+						}
+					}
+				}
+			} finally {
+				files.close();
+			}
+			
+			if (!subFolders.isEmpty()) {
+				submit(subFolders, depth + 1);
+			}
+		}
+		
+		private synchronized boolean visit(File file, int depth, String parentPath) {
+			if (stopped) {
+				return false;
+			}
+			if (!visitor.visit(file, depth, parentPath)) {
+				stopped = true;
+				notifyAll();
+			}
+			return !stopped;
+		}
+		
+		private synchronized boolean isStopped() {
+			return stopped || failure != null;
+		}
+		
+		private synchronized void fail(IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+			notifyAll();
+		}
+		
+		private synchronized void done() {
+			pendingQueries--;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * A query task, shallower folders are listed first
+	 */
+	private abstract static class Query implements Runnable, Comparable<Query> {
+		
+		private final int depth;
+		
+		Query(int depth) {
+			this.depth = depth;
+		}
+		
+		@Override
+		public int compareTo(Query other) {
+			return Integer.compare(depth, other.depth);
+		}
+	}
+	
+}
@@ -3,18 +3,42 @@ package com.twinzom.gdfu;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+
+import com.google.api.client.googleapis.GoogleUtils;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.json.JsonHttpContent;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.Drive.Files;
@@ -48,6 +72,10 @@ import com.google.api.services.drive.model.TeamDriveList;
  * <li>listing Team Drives 
  * </ul>
  * <p>
+ * One instance can be shared by many threads. Concurrent uploads take their chunk buffers 
+ * from a bounded {@link ChunkBufferPool}.
+ * </p>
+ * <p>
  * @version v0.1
  */
 public class GDFileUtils {
@@ -62,11 +90,66 @@ public class GDFileUtils {
 	 */
 	private static final int  DEFAULT_CHUNK_SIZE = 10 * 1024 * 1024;
 	
+	/** 
+	 * Default number of pooled chunk buffers is 8, i.e. 80 mb with default chunk size 
+	 */
+	private static final int  DEFAULT_CHUNK_BUFFERS = 8;
+	
 	/** 
 	 * Default upload chunk timeout is 30 seconds 
 	 */
 	private static final int  DEFAULT_CHUNK_TIMEOUT = 1000 * 30;
 	
+	/** 
+	 * Default read timeout of upload requests is 60 seconds, Google Drive may take a while to commit a chunk 
+	 */
+	private static final int  DEFAULT_UPLOAD_READ_TIMEOUT = 1000 * 60;
+	
+	/** 
+	 * Default maximum number of pooled connections of {@link #newPooledTransport(int)} per host 
+	 */
+	private static final int  DEFAULT_MAX_CONNECTIONS = 20;
+	
+	/** 
+	 * Default upper bound of adaptive chunk size is 128 mb 
+	 */
+	private static final int  DEFAULT_MAX_CHUNK_SIZE = 128 * 1024 * 1024;
+	
+	/** 
+	 * Default target duration of a chunk request with adaptive chunk size is 5 seconds 
+	 */
+	private static final int  DEFAULT_CHUNK_TARGET_DURATION = 1000 * 5;
+	
+	/** 
+	 * Default upload pipeline depth is 1, chunks are read only when they are sent 
+	 */
+	private static final int  DEFAULT_UPLOAD_PIPELINE_DEPTH = 1;
+	
+	/** 
+	 * Default download parallelism is 1, file is downloaded on a single connection 
+	 */
+	private static final int  DEFAULT_DOWNLOAD_PARALLELISM = 1;
+	
+	/** 
+	 * Default download segment size is 16 mb 
+	 */
+	private static final long DEFAULT_DOWNLOAD_SEGMENT_SIZE = 16 * 1024 * 1024;
+	
+	/** 
+	 * Default number of retries of a failed download segment 
+	 */
+	private static final int  DEFAULT_DOWNLOAD_SEGMENT_RETRIES = 3;
+	
+	/** 
+	 * Default block size of random access reads is 1 mb 
+	 */
+	private static final int  DEFAULT_READ_BLOCK_SIZE = 1024 * 1024;
+	
+	/** 
+	 * Default number of blocks cached by a channel is 32 
+	 */
+	private static final int  DEFAULT_READ_CACHE_BLOCKS = 32;
+	
     /**
      * The UTF-8 character set, used to decode octets in URLs.
      */
@@ -75,7 +158,7 @@ public class GDFileUtils {
     /**
      * The mime-type of folder
      */
-    private static final String MIME_TYPE_FOLDER = "application/vnd.google-apps.folder";
+    static final String MIME_TYPE_FOLDER = "application/vnd.google-apps.folder";
     
     /**
      * HTTP status code Permanent Redirect
@@ -85,38 +168,154 @@ public class GDFileUtils {
     /**
      * The default file fields  
      */
-    private static final java.util.List<String> DEFAULT_FILE_FIELDS = Arrays.asList("id", "name", "kind", "mimeType", "parents");
+    static final java.util.List<String> DEFAULT_FILE_FIELDS = Arrays.asList("id", "name", "kind", "mimeType", "parents", "trashed");
+    
+    /**
+     * The file fields needed to resolve paths
+     */
+    static final java.util.List<String> PATH_FIELDS = Arrays.asList("id", "name", "mimeType", "parents", "trashed");
+    
+    /**
+     * The maximum page size of file listing
+     */
+    static final int MAX_PAGE_SIZE = 1000;
     
     //-----------------------------------------------------------------------
 	/** 
 	 * The chunk size for each chunk of resumable upload process 
 	 */
-	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
 
 	/** 
-	 * The buffer byte array for resumable upload process 
+	 * The buffers that chunks of resumable upload process are read into, shared by concurrent uploads 
 	 */
-	private byte[] chunkBuffer = new byte[(int) chunkSize];
+	private volatile ChunkBufferPool chunkBufferPool = new ChunkBufferPool(DEFAULT_CHUNK_BUFFERS, false);
 	
 	/**
 	 * The chunk timeout value for each chunk of resumable upload process
 	 */
-	private int chunkTimeout = DEFAULT_CHUNK_TIMEOUT;
+	private volatile int chunkTimeout = DEFAULT_CHUNK_TIMEOUT;
+	
+	/**
+	 * The read timeout of the requests of resumable upload process
+	 */
+	private volatile int uploadReadTimeout = DEFAULT_UPLOAD_READ_TIMEOUT;
+	
+	/**
+	 * The time allowed to send the content of a chunk, 0 for no limit
+	 */
+	private volatile int uploadWriteTimeout = 0;
+	
+	/**
+	 * Whether the chunk size is adapted to the measured throughput
+	 */
+	private volatile boolean adaptiveChunkSize = false;
+	
+	/**
+	 * The upper bound of adaptive chunk size
+	 */
+	private volatile int maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+	
+	/**
+	 * The duration of a chunk request that adaptive chunk size aims at
+	 */
+	private volatile int chunkTargetDuration = DEFAULT_CHUNK_TARGET_DURATION;
+	
+	/**
+	 * The number of chunks of resumable upload process that are buffered at the same time
+	 */
+	private volatile int uploadPipelineDepth = DEFAULT_UPLOAD_PIPELINE_DEPTH;
+	
+	/**
+	 * Whether the chunks of resumable upload process are streamed from the file channel
+	 */
+	private volatile boolean zeroCopyUpload = false;
+	
+	/**
+	 * The journal where resumable upload sessions are checkpointed
+	 */
+	private volatile UploadJournal uploadJournal;
+	
+	/**
+	 * The cache of the checksums of local files
+	 */
+	private volatile ChecksumCache checksumCache;
+	
+	/**
+	 * Whether the uploads look for an identical file in the parents first
+	 */
+	private volatile boolean deduplicateUploads = false;
+	
+	/**
+	 * The number of byte ranges of a file that are downloaded at the same time
+	 */
+	private volatile int downloadParallelism = DEFAULT_DOWNLOAD_PARALLELISM;
+	
+	/**
+	 * The size of each byte range of parallel download process
+	 */
+	private volatile long downloadSegmentSize = DEFAULT_DOWNLOAD_SEGMENT_SIZE;
+	
+	/**
+	 * The cache of file metadata, no caching when null
+	 */
+	private volatile MetadataCache metadataCache;
+	
+	/**
+	 * The index of folder names, used to resolve paths
+	 */
+	private final PathIndex pathIndex = new PathIndex();
+	
+	/**
+	 * The id of the root folder of My Drive, resolved on first use
+	 */
+	private volatile String rootFolderId;
 	
 	/** 
 	 * The service definition of Google Drive 
 	 */
 	private Drive drive;
 	
+	/**
+	 * Builds the calls of batch requests, which are authorized only: the throttle and the retries 
+	 * are applied by {@link BulkOperations}, once per call
+	 */
+	private Drive batchCallDrive;
+	
 	/** 
 	 * The Google Credential provided by consumer 
 	 */
-	private GoogleCredential credential;
+	private volatile GoogleCredential credential;
+	
+	/**
+	 * Keeps the access token of the credential valid
+	 */
+	private volatile TokenManager tokenManager;
+	
+	/**
+	 * The credentials the requests are spread across, null to use the credential only
+	 */
+	private volatile CredentialPool credentialPool;
+	
+	/**
+	 * Reports every request to the operation listeners
+	 */
+	private final RequestMetrics requestMetrics = new RequestMetrics();
 	
 	/**
 	 *  The Team Drive that is pointed to
 	 */
-	private TeamDrive teamDrive;
+	private volatile TeamDrive teamDrive;
+	
+	/**
+	 * The rate limit and retry policy of all requests
+	 */
+	private volatile RequestThrottle requestThrottle = new RequestThrottle();
+	
+	/**
+	 * The threads doing background work, e.g. fetching the next page of a listing
+	 */
+	private ExecutorService backgroundExecutor;
 
     
     //-----------------------------------------------------------------------
@@ -133,14 +332,93 @@ public class GDFileUtils {
      */
 	public GDFileUtils(GoogleCredential credential)
 			throws GeneralSecurityException, IOException {
+		
+		this(credential, GoogleNetHttpTransport.newTrustedTransport());
+	}
+	
+	/**
+	 * Construct GDFileUtils sending the requests through given HTTP transport
+	 * 
+	 * <p>
+	 * The transport is used by every request, including the chunks of resumable upload process, 
+	 * so its connections are kept alive between requests and shared by concurrent uploads. 
+	 * See {@link #newPooledTransport(int)} for a transport with a bounded connection pool.
+	 * </p>
+	 * 
+	 * @param credential
+	 * @param transport
+	 */
+	public GDFileUtils(GoogleCredential credential, HttpTransport transport) {
 
 		this.credential = credential;
+		this.tokenManager = new TokenManager(credential);
 
-		this.drive = new Drive.Builder(GoogleNetHttpTransport.newTrustedTransport(),
-				JacksonFactory.getDefaultInstance(), credential).build();
+		final JacksonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+		
+		// the throttle and the credentials are read on each request, so they can be replaced later
+		this.drive = new Drive.Builder(transport, jsonFactory, 
+				new HttpRequestInitializer() {
+					@Override
+					public void initialize(HttpRequest request) throws IOException {
+						CredentialPool pool = credentialPool;
+						requestThrottle.initialize(request, pool != null ? pool : tokenManager, jsonFactory);
+						requestMetrics.initialize(request);
+					}
+				}).build();
+		
+		// a handler of a call must not throw, it would abort the whole batch
+		this.batchCallDrive = new Drive.Builder(transport, jsonFactory, 
+				new HttpRequestInitializer() {
+					@Override
+					public void initialize(HttpRequest request) throws IOException {
+						CredentialPool pool = credentialPool;
+						(pool != null ? pool : tokenManager).initialize(request);
+					}
+				}).build();
 
 	}
 	
+	/**
+	 * Build an HTTP transport keeping up to 20 connections alive per host
+	 * 
+	 * @return
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	public static HttpTransport newPooledTransport() throws GeneralSecurityException, IOException {
+		return newPooledTransport(DEFAULT_MAX_CONNECTIONS);
+	}
+	
+	/**
+	 * Build an HTTP transport keeping connections alive in a bounded pool
+	 * 
+	 * <p>
+	 * The transport is backed by Apache HTTP client and trusts the certificates of Google only. 
+	 * Requests wait for a free connection when the pool is exhausted, so <code>maxConnections</code> 
+	 * should not be lower than the number of concurrent uploads and downloads.
+	 * </p>
+	 * 
+	 * @param maxConnections - The maximum number of connections per host
+	 * @return
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	public static HttpTransport newPooledTransport(int maxConnections) 
+			throws GeneralSecurityException, IOException {
+		
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("Max connections must be at least 1");
+		}
+		
+		ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+				.trustCertificates(GoogleUtils.getCertificateTrustStore());
+		// every request goes to googleapis.com, so the total is the per route limit
+		ConnManagerParams.setMaxTotalConnections(builder.getHttpParams(), maxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(builder.getHttpParams(), new ConnPerRouteBean(maxConnections));
+		
+		return builder.build();
+	}
+	
 	/**
 	 * Get the chunk size was set 
 	 * 
@@ -153,11 +431,42 @@ public class GDFileUtils {
 	/**
 	 * Set the chunk size (in bytes) 
 	 * 
+	 * <p>
+	 * The pooled buffers are grown on their next use when the chunk size grew.
+	 * </p>
+	 * 
 	 * @param chunkSize
 	 */
 	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
 		this.chunkSize = chunkSize;
 	}
+	
+	/**
+	 * Get the pool of chunk buffers
+	 * 
+	 * @return
+	 */
+	public ChunkBufferPool getChunkBufferPool() {
+		return chunkBufferPool;
+	}
+
+	/**
+	 * Set the pool of chunk buffers
+	 * 
+	 * <p>
+	 * The pool bounds the memory used by concurrent uploads: an upload waits for a buffer when 
+	 * all of them are in use. Each upload holds up to upload pipeline depth buffers. The pool is 
+	 * not used in zero-copy mode. 
+	 * </p>
+	 * 
+	 * @param chunkBufferPool
+	 */
+	public void setChunkBufferPool(ChunkBufferPool chunkBufferPool) {
+		this.chunkBufferPool = chunkBufferPool;
+	}
 
 	/**
 	 * Get timeout value of each upload chunk was set (in milliseconds) 
@@ -171,179 +480,1300 @@ public class GDFileUtils {
 	/**
 	 * Set timeout value of each upload chunk (in milliseconds)
 	 * 
+	 * <p>
+	 * It is the connect timeout of the requests of resumable upload process, see 
+	 * {@link #setUploadReadTimeout(int)} and {@link #setUploadWriteTimeout(int)} for the transfer.
+	 * </p>
+	 * 
 	 * @param chunkTimeout
 	 */
 	public void setChunkTimeout(int chunkTimeout) {
 		this.chunkTimeout = chunkTimeout;
 	}
 	
-	
 	/**
-	 * Get GoogleCredential object was set
+	 * Get the read timeout of upload requests was set (in milliseconds)
 	 * 
 	 * @return
 	 */
-	public GoogleCredential getCredential() {
-		return credential;
+	public int getUploadReadTimeout() {
+		return uploadReadTimeout;
 	}
 
 	/**
-	 * Set credential
+	 * Set the read timeout of upload requests (in milliseconds)
 	 * 
-	 * @param credential
+	 * <p>
+	 * It is the time waited for the response of a request once it was sent, including the time 
+	 * Google Drive takes to commit a chunk. Chunk timeout is the connect timeout of these requests.
+	 * </p>
+	 * 
+	 * @param uploadReadTimeout
 	 */
-	public void setCredential(GoogleCredential credential) {
-		this.credential = credential;
+	public void setUploadReadTimeout(int uploadReadTimeout) {
+		this.uploadReadTimeout = uploadReadTimeout;
 	}
-    
+
 	/**
-	 * Uploads file to Google Drive in resumable mode
-	 * 
-     * <p>
-     * This utils class doesn't support Simple upload and Multipart upload, but Resumable upload.
-     * </p>
-     * 
-     * <p>
-     * What Google Drive API guide said, "For more reliable transfer, especially important with 
-     * large files. Resumable uploads are a good choice for most applications, since they also work 
-     * for small files at the cost of one additional HTTP request per upload." 
-     * </p>
+	 * Get the write timeout of upload chunks was set (in milliseconds)
 	 * 
-	 * @param metadata
-	 * @param localFile
-	 * @param parents
-	 * @throws IOException
+	 * @return
 	 */
-    public void upload (File metadata, java.io.File localFile,
-			java.util.List<String> parentIds) throws IOException {
-    	
-    	String uploadUrlStr = GOOGLE_DRIVE_UPLOAD_URL+"?uploadType=resumable&supportsTeamDrives=true";
-
-		URL url = new URL(uploadUrlStr);
-		HttpURLConnection request = (HttpURLConnection) url.openConnection();
-		request.setRequestMethod("POST");
-		request.setDoInput(true);
-		request.setDoOutput(true);
-		request.setRequestProperty("Authorization",
-				"Bearer " + Authorization.getAccessToken(credential));
-		request.setRequestProperty("Content-Type",
-				"application/json; charset="+UTF8);
-		
-		// TODO: Remove handcode and handle metadata
-		String body = "{\"name\": \"" + localFile.getName()
-				+ "\", \"parents\": [" + Util.listToString(parentIds, ",", "\"")
-				+ "]}";
-		OutputStream outputStream = request.getOutputStream();
-		outputStream.write(body.getBytes());
-		outputStream.close();
-		request.connect();
-
-		if (request.getResponseCode() != HttpURLConnection.HTTP_OK) {
-			// TODO: Exception handling
-			// Oops... got some problem
-			// Throw exception
-			System.out.println("Cannot get URL");
-		}
-
-		long startChunk = 0;
-		String sessionUri = request.getHeaderField("location");
-		int responseCode = 308;
-		FileInputStream fileInputStream = new FileInputStream(localFile);
-		while (startChunk <= localFile.length() && responseCode==HTTP_PERM_REDIR) {
-			responseCode = uploadChunk(sessionUri, fileInputStream, localFile.length(), startChunk);
-			startChunk += chunkSize;
-		}
-		fileInputStream.close();
-    }
-    
-    /**
-     * This method is helping process each chunk for resumable update
-     * 
-     * @param sessionUri
-     * @param fileInputStream
-     * @param localFileSize
-     * @param chunkStart
-     * @return
-     * @throws IOException
-     */
-    private int uploadChunk(String sessionUri, FileInputStream fileInputStream, long localFileSize,
-			long chunkStart) throws IOException {
-
-		URL uploadUrl = new URL(sessionUri);
-		HttpURLConnection uploadRequest = (HttpURLConnection) uploadUrl
-				.openConnection();
-		uploadRequest.setRequestMethod("PUT");
-		uploadRequest.setDoOutput(true);
-		uploadRequest.setConnectTimeout(chunkTimeout);
-
-		long uploadedBytes = chunkSize;
-		byte[] buffer = chunkBuffer;
-
-		if (chunkStart + uploadedBytes > localFileSize) {
-			uploadedBytes = localFileSize - chunkStart;
-			buffer = new byte[(int) uploadedBytes];
-		}
-
-		uploadRequest.setRequestProperty("Content-Length", "" + localFileSize);
-		uploadRequest.setRequestProperty("Content-Range", "bytes " + chunkStart
-				+ "-" + (chunkStart + uploadedBytes - 1) + "/" + localFileSize);
-
-		
-		OutputStream uploadOutputStream = uploadRequest.getOutputStream();
+	public int getUploadWriteTimeout() {
+		return uploadWriteTimeout;
+	}
 
-		fileInputStream.read(buffer);
-		uploadOutputStream.write(buffer);
-		uploadOutputStream.flush();
-		
-		uploadOutputStream.close();
-		return uploadRequest.getResponseCode();
+	/**
+	 * Set the time allowed to send the content of a chunk (in milliseconds), 0 for no limit (default)
+	 * 
+	 * <p>
+	 * A chunk that is not sent in time fails like a read timeout: it is sent again from the offset 
+	 * acknowledged by Google Drive, up to the max attempts of the request throttle. It should leave 
+	 * room for the largest chunk on a slow link.
+	 * </p>
+	 * 
+	 * @param uploadWriteTimeout
+	 */
+	public void setUploadWriteTimeout(int uploadWriteTimeout) {
+		this.uploadWriteTimeout = uploadWriteTimeout;
 	}
-    
-    
-    /**
-     * Download file from Google Drive
-     * 
-     * <p>
-     * With given file id.
-     * </p>
-     * 
-     * @param file
-     * @param localFile
-     * @throws IOException
-     */
-    public void download (String fileId, java.io.File localFile) throws IOException {
-		
-    	if (!localFile.exists()) {
-			localFile.createNewFile();
-		}
-    	
-		FileOutputStream fos = new FileOutputStream(localFile);
-		drive.files().get(fileId).executeMediaAndDownloadTo(fos);
-		fos.flush();
-    	
-    }
 	
 	/**
-	 * Makes a new folder
+	 * Check if adaptive chunk size was enabled
 	 * 
-	 * @param folderName
-	 * @param parentId
 	 * @return
-	 * @throws IOException
 	 */
-	public File mkFolder (String folderName, String parentId) throws IOException {
-		
-		File content = new File();
-		content.setName(folderName);
-		content.setParents(Arrays.asList(parentId));
-		content.setMimeType(MIME_TYPE_FOLDER);
-		
+	public boolean isAdaptiveChunkSize() {
+		return adaptiveChunkSize;
+	}
 
-		File file = drive.files()
-						.create(content)
-						.setFields(Util.listToString(DEFAULT_FILE_FIELDS, ",", ""))
-						.setSupportsTeamDrives(true)
-						.execute();
+	/**
+	 * Enable or disable adaptive chunk size
+	 * 
+	 * <p>
+	 * When enabled, the first chunk has the chunk size that was set, then the throughput of each 
+	 * chunk is measured and the next chunk grows or shrinks toward the size that can be sent in 
+	 * the chunk target duration. Sizes are kept between 256 KB and the max chunk size, in steps of 
+	 * 256 KB. The chosen sizes can be seen in {@link UploadStats}.
+	 * </p>
+	 * 
+	 * @param adaptiveChunkSize
+	 */
+	public void setAdaptiveChunkSize(boolean adaptiveChunkSize) {
+		this.adaptiveChunkSize = adaptiveChunkSize;
+	}
+
+	/**
+	 * Get the upper bound of adaptive chunk size was set (in bytes)
+	 * 
+	 * @return
+	 */
+	public int getMaxChunkSize() {
+		return maxChunkSize;
+	}
+
+	/**
+	 * Set the upper bound of adaptive chunk size (in bytes)
+	 * 
+	 * @param maxChunkSize
+	 */
+	public void setMaxChunkSize(int maxChunkSize) {
+		this.maxChunkSize = maxChunkSize;
+	}
+
+	/**
+	 * Get the target duration of a chunk request was set (in milliseconds)
+	 * 
+	 * @return
+	 */
+	public int getChunkTargetDuration() {
+		return chunkTargetDuration;
+	}
+
+	/**
+	 * Set the target duration of a chunk request with adaptive chunk size (in milliseconds)
+	 * 
+	 * @param chunkTargetDuration
+	 */
+	public void setChunkTargetDuration(int chunkTargetDuration) {
+		this.chunkTargetDuration = chunkTargetDuration;
+	}
+	
+	/**
+	 * Get the upload pipeline depth was set
+	 * 
+	 * @return
+	 */
+	public int getUploadPipelineDepth() {
+		return uploadPipelineDepth;
+	}
+
+	/**
+	 * Set the upload pipeline depth
+	 * 
+	 * <p>
+	 * With depth 1 (default) each chunk is read from the local file only after the previous 
+	 * chunk was sent. With depth 2 or more, a background thread reads the next chunks while 
+	 * the current one is being sent (double or N-way buffering). Each level lets an upload 
+	 * hold one more buffer of the chunk buffer pool.
+	 * </p>
+	 * 
+	 * @param uploadPipelineDepth
+	 */
+	public void setUploadPipelineDepth(int uploadPipelineDepth) {
+		if (uploadPipelineDepth < 1) {
+			throw new IllegalArgumentException("Upload pipeline depth must be at least 1");
+		}
+		this.uploadPipelineDepth = uploadPipelineDepth;
+	}
+	
+	/**
+	 * Check if zero-copy upload was enabled
+	 * 
+	 * @return
+	 */
+	public boolean isZeroCopyUpload() {
+		return zeroCopyUpload;
+	}
+
+	/**
+	 * Enable or disable zero-copy upload
+	 * 
+	 * <p>
+	 * When enabled, each chunk is transferred from the file channel straight into the request 
+	 * body instead of being copied into a chunk buffer first, so the heap usage stays flat 
+	 * whatever chunk size was set. The upload pipeline depth is not used in this mode, 
+	 * read-ahead is left to the operating system.
+	 * </p>
+	 * 
+	 * @param zeroCopyUpload
+	 */
+	public void setZeroCopyUpload(boolean zeroCopyUpload) {
+		this.zeroCopyUpload = zeroCopyUpload;
+	}
+	
+	/**
+	 * Get the upload journal was set
+	 * 
+	 * @return
+	 */
+	public UploadJournal getUploadJournal() {
+		return uploadJournal;
+	}
+
+	/**
+	 * Set the upload journal
+	 * 
+	 * <p>
+	 * When a journal was set, the resumable upload sessions are checkpointed to it after each chunk. 
+	 * If an upload fails or the JVM stops, uploading the same file to the same parents again asks 
+	 * Google Drive for the committed range and continues from there.
+	 * </p>
+	 * 
+	 * @param uploadJournal
+	 */
+	public void setUploadJournal(UploadJournal uploadJournal) {
+		this.uploadJournal = uploadJournal;
+	}
+	
+	/**
+	 * Get the checksum cache was set
+	 * 
+	 * @return
+	 */
+	public ChecksumCache getChecksumCache() {
+		return checksumCache;
+	}
+
+	/**
+	 * Set the cache of the checksums of local files, used by deduplicated uploads and sync engines
+	 * 
+	 * @param checksumCache
+	 */
+	public void setChecksumCache(ChecksumCache checksumCache) {
+		this.checksumCache = checksumCache;
+	}
+	
+	/**
+	 * Check if new files are compared with the files of their parents before they are uploaded
+	 * 
+	 * @return
+	 */
+	public boolean isDeduplicateUploads() {
+		return deduplicateUploads;
+	}
+
+	/**
+	 * Enable or disable deduplicated uploads of local files
+	 * 
+	 * <p>
+	 * When enabled, a new file is compared with the files of the same size in its parents by MD5 
+	 * checksum before it is uploaded. If a file of the same name is identical, the upload is skipped. 
+	 * If a file of another name is identical, it is copied by Google Drive with the metadata given. 
+	 * The local checksum is computed while the parents are listed, set a {@link ChecksumCache} to 
+	 * keep it across uploads.
+	 * </p>
+	 * 
+	 * @param deduplicateUploads
+	 */
+	public void setDeduplicateUploads(boolean deduplicateUploads) {
+		this.deduplicateUploads = deduplicateUploads;
+	}
+	
+	/**
+	 * Get the download parallelism was set
+	 * 
+	 * @return
+	 */
+	public int getDownloadParallelism() {
+		return downloadParallelism;
+	}
+
+	/**
+	 * Set the download parallelism
+	 * 
+	 * <p>
+	 * With parallelism 1 (default) a file is downloaded as one stream. With 2 or more, the file is 
+	 * split into byte ranges that are downloaded over that many connections and written at their 
+	 * offsets of the pre-allocated local file. A failed range is retried on its own.
+	 * </p>
+	 * 
+	 * @param downloadParallelism
+	 */
+	public void setDownloadParallelism(int downloadParallelism) {
+		if (downloadParallelism < 1) {
+			throw new IllegalArgumentException("Download parallelism must be at least 1");
+		}
+		this.downloadParallelism = downloadParallelism;
+	}
+
+	/**
+	 * Get the download segment size was set
+	 * 
+	 * @return
+	 */
+	public long getDownloadSegmentSize() {
+		return downloadSegmentSize;
+	}
+
+	/**
+	 * Set the size (in bytes) of each byte range of parallel download
+	 * 
+	 * @param downloadSegmentSize
+	 */
+	public void setDownloadSegmentSize(long downloadSegmentSize) {
+		if (downloadSegmentSize < 1) {
+			throw new IllegalArgumentException("Download segment size must be positive");
+		}
+		this.downloadSegmentSize = downloadSegmentSize;
+	}
+	
+	
+	/**
+	 * Get the metadata cache was set
+	 * 
+	 * @return
+	 */
+	public MetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+
+	/**
+	 * Set the metadata cache
+	 * 
+	 * <p>
+	 * When a cache was set, {@link #getFileById(String, java.util.List)} (also used by move, add and 
+	 * remove operations) is served from the cache. Changes made by this utils class invalidate or 
+	 * update the cached entries.
+	 * </p>
+	 * 
+	 * @param metadataCache
+	 */
+	public void setMetadataCache(MetadataCache metadataCache) {
+		this.metadataCache = metadataCache;
+	}
+	
+	/**
+	 * Get the index of folder names used to resolve paths
+	 * 
+	 * @return
+	 */
+	public PathIndex getPathIndex() {
+		return pathIndex;
+	}
+	
+	/**
+	 * Get the Team Drive was set
+	 * 
+	 * @return
+	 */
+	public TeamDrive getTeamDrive() {
+		return teamDrive;
+	}
+
+	/**
+	 * Set the Team Drive to be pointed to, null for My Drive
+	 * 
+	 * @param teamDrive
+	 */
+	public void setTeamDrive(TeamDrive teamDrive) {
+		this.teamDrive = teamDrive;
+	}
+	
+	/**
+	 * Get the rate limit and retry policy
+	 * 
+	 * @return
+	 */
+	public RequestThrottle getRequestThrottle() {
+		return requestThrottle;
+	}
+
+	/**
+	 * Set the rate limit and retry policy of all requests
+	 * 
+	 * <p>
+	 * By default requests are retried with backoff, without rate limit. A throttle may be 
+	 * shared by several utils classes to keep them within one quota.
+	 * </p>
+	 * 
+	 * @param requestThrottle
+	 */
+	public void setRequestThrottle(RequestThrottle requestThrottle) {
+		this.requestThrottle = requestThrottle;
+	}
+	
+	/**
+	 * Get GoogleCredential object was set
+	 * 
+	 * @return
+	 */
+	public GoogleCredential getCredential() {
+		return credential;
+	}
+	
+	/**
+	 * Get the manager refreshing the access token of the credential
+	 * 
+	 * @return
+	 */
+	public TokenManager getTokenManager() {
+		return tokenManager;
+	}
+
+	/**
+	 * Set credential
+	 * 
+	 * @param credential
+	 */
+	public void setCredential(GoogleCredential credential) {
+		TokenManager previous = this.tokenManager;
+		this.credential = credential;
+		this.tokenManager = new TokenManager(credential);
+		if (previous != null) {
+			previous.close();
+		}
+	}
+	
+	/**
+	 * Get the credential pool was set
+	 * 
+	 * @return
+	 */
+	public CredentialPool getCredentialPool() {
+		return credentialPool;
+	}
+
+	/**
+	 * Set the credentials the requests are spread across, null to go back to the credential
+	 * 
+	 * <p>
+	 * While a pool is set, the credential of this instance is not used. The request throttle 
+	 * still applies to all requests, the throttle of each credential of the pool to its own.
+	 * </p>
+	 * 
+	 * @param credentialPool
+	 */
+	public void setCredentialPool(CredentialPool credentialPool) {
+		this.credentialPool = credentialPool;
+	}
+	
+	/**
+	 * Add a listener of the requests sent to Google Drive
+	 * 
+	 * <p>
+	 * Each request is reported once it ended, with its type, latency, bytes, HTTP status and 
+	 * retries: the upload sessions and chunks, the downloads, the list pages, the metadata calls, 
+	 * the mutations and the batches. Use a {@link MetricsRecorder} for latency histograms exposed 
+	 * through JMX. The requests are not traced while there is no listener.
+	 * </p>
+	 * 
+	 * @param listener
+	 */
+	public void addOperationListener(OperationListener listener) {
+		requestMetrics.addListener(listener);
+	}
+	
+	/**
+	 * Remove a listener of the requests
+	 * 
+	 * @param listener
+	 */
+	public void removeOperationListener(OperationListener listener) {
+		requestMetrics.removeListener(listener);
+	}
+    
+	/**
+	 * Uploads file to Google Drive in resumable mode
+	 * 
+     * <p>
+     * This utils class doesn't support Simple upload and Multipart upload, but Resumable upload.
+     * </p>
+     * 
+     * <p>
+     * What Google Drive API guide said, "For more reliable transfer, especially important with 
+     * large files. Resumable uploads are a good choice for most applications, since they also work 
+     * for small files at the cost of one additional HTTP request per upload." 
+     * </p>
+	 * 
+	 * @param metadata
+	 * @param localFile
+	 * @param parents
+	 * @throws IOException
+	 */
+    public void upload (File metadata, java.io.File localFile,
+			java.util.List<String> parentIds) throws IOException {
+    	upload(metadata, localFile, parentIds, null);
+    }
+    
+    /**
+     * Uploads file to Google Drive in resumable mode, recording the chunks sent to given stats
+     * 
+     * @param metadata
+     * @param localFile
+     * @param parentIds
+     * @param stats - The stats to be filled, may be null
+     * @throws IOException
+     */
+    public void upload (File metadata, java.io.File localFile,
+			java.util.List<String> parentIds, UploadStats stats) throws IOException {
+    	transfer(metadata, localFile, parentIds, null, stats);
+    }
+    
+    /**
+     * Uploads new content of an existing file in resumable mode
+     * 
+     * <p>
+     * The file keeps its id, name and parents.
+     * </p>
+     * 
+     * @param fileId - The file to be updated
+     * @param localFile - The new content
+     * @throws IOException
+     */
+    public void update (String fileId, java.io.File localFile) throws IOException {
+    	transfer(null, localFile, null, fileId, null);
+    	// the size, checksum and modified time changed
+    	invalidate(fileId);
+    }
+    
+    /**
+     * Uploads the content of a stream of unknown length in resumable mode
+     * 
+     * @param metadata - The name should be given, the file is named "Untitled" otherwise
+     * @param in - The content, it is closed when the upload ends
+     * @param parentIds
+     * @throws IOException
+     */
+    public void upload (File metadata, InputStream in,
+			java.util.List<String> parentIds) throws IOException {
+    	upload(metadata, in, parentIds, false, null);
+    }
+    
+    /**
+     * Uploads the content of a channel of unknown length in resumable mode
+     * 
+     * @param metadata - The name should be given, the file is named "Untitled" otherwise
+     * @param channel - The content, it is closed when the upload ends
+     * @param parentIds
+     * @throws IOException
+     */
+    public void upload (File metadata, ReadableByteChannel channel,
+			java.util.List<String> parentIds) throws IOException {
+    	upload(metadata, Channels.newInputStream(channel), parentIds, false, null);
+    }
+    
+    /**
+     * Uploads the content of a stream of unknown length in resumable mode, optionally gzip compressed
+     * 
+     * <p>
+     * The stream is read chunk by chunk while it is uploaded, the total size is sent with the last 
+     * chunk only. So a generated content, e.g. an export, is not written to a temporary file first. 
+     * With gzip, the content is compressed on the fly, the metadata should give a name and mime-type 
+     * that fit (e.g. "export.csv.gz" and "application/gzip").
+     * </p>
+     * 
+     * <p>
+     * As the stream cannot be read again, each chunk is kept in memory until Google Drive acknowledged 
+     * it, the chunks are not read ahead and the upload is not recorded to the upload journal. When a 
+     * failure lost bytes of a chunk that was already acknowledged, the upload fails.
+     * </p>
+     * 
+     * @param metadata - The name should be given, the file is named "Untitled" otherwise
+     * @param in - The content, it is closed when the upload ends
+     * @param parentIds
+     * @param gzip - Whether the content is gzip compressed before it is uploaded
+     * @param stats - The stats to be filled, may be null
+     * @throws IOException
+     */
+    public void upload (File metadata, InputStream in, java.util.List<String> parentIds, 
+    		boolean gzip, UploadStats stats) throws IOException {
+    	
+    	InputStreamChunkSource chunkSource = new InputStreamChunkSource(
+    			gzip ? new GzipCompressingInputStream(in) : in, -1, 0, chunkBufferPool, 1);
+    	try {
+    		String sessionUri = createUploadSession(metadata, null, parentIds, null);
+    		uploadStreamChunks(sessionUri, chunkSource, stats);
+    	} finally {
+    		chunkSource.close();
+    	}
+    }
+    
+    /**
+     * Uploads a new file, or new content of an existing file when file id is given
+     * 
+     * @param metadata
+     * @param localFile
+     * @param parentIds
+     * @param fileId
+     * @param stats
+     * @throws IOException
+     */
+    private void transfer (File metadata, java.io.File localFile, java.util.List<String> parentIds, 
+    		String fileId, UploadStats stats) throws IOException {
+    	
+    	if (fileId == null && deduplicateUploads && parentIds != null && !parentIds.isEmpty() 
+    			&& deduplicate(metadata, localFile, parentIds, stats)) {
+    		return;
+    	}
+    	
+    	// an update is journaled under the id of its file, which is never a parent folder
+    	java.util.List<String> journalKey = fileId != null ? Collections.singletonList(fileId) : parentIds;
+    	
+    	UploadJournal.Entry journalEntry = null;
+    	String sessionUri = null;
+    	long offset = 0;
+    	
+    	if (uploadJournal != null) {
+    		journalEntry = uploadJournal.find(localFile, journalKey);
+    		if (journalEntry != null) {
+    			offset = queryUploadedBytes(journalEntry.getSessionUri(), localFile.length());
+    			if (offset < 0) {
+    				// session expired, start over
+    				uploadJournal.remove(journalEntry);
+    				journalEntry = null;
+    				offset = 0;
+    			} else if (offset == localFile.length() && offset > 0) {
+    				// completed before the journal was updated
+    				uploadJournal.remove(journalEntry);
+    				return;
+    			} else {
+    				sessionUri = journalEntry.getSessionUri();
+    			}
+    		}
+    	}
+    	
+    	if (sessionUri == null) {
+    		sessionUri = createUploadSession(metadata, localFile.getName(), parentIds, fileId);
+    		if (uploadJournal != null) {
+    			journalEntry = uploadJournal.create(sessionUri, localFile, journalKey);
+    		}
+    	}
+    	
+    	uploadChunks(sessionUri, localFile, offset, journalEntry, stats);
+    }
+    
+    /**
+     * Look for a file identical to the local file in the parents, and copy it if its name differs
+     * 
+     * <p>
+     * The files of the same name are queried first, then all files of the parents, only the 
+     * files of the same size are compared.
+     * </p>
+     * 
+     * @param metadata
+     * @param localFile
+     * @param parentIds
+     * @param stats - May be null
+     * @return Whether an identical file was found, the upload is not needed then
+     * @throws IOException
+     */
+    private boolean deduplicate (File metadata, final java.io.File localFile, java.util.List<String> parentIds, 
+    		UploadStats stats) throws IOException {
+    	
+    	long size = localFile.length();
+    	String name = metadata != null && metadata.getName() != null ? metadata.getName() : localFile.getName();
+    	
+    	// the checksum is computed while the parents are listed
+    	Future<String> md5 = getBackgroundExecutor().submit(new Callable<String>() {
+    		@Override
+    		public String call() throws IOException {
+    			return Checksums.md5(localFile, checksumCache);
+    		}
+    	});
+    	
+    	try {
+    		StringBuilder q = new StringBuilder("(");
+    		for (String parentId : parentIds) {
+    			if (q.length() > 1) {
+    				q.append(" or ");
+    			}
+    			q.append("'").append(parentId).append("' in parents");
+    		}
+    		q.append(") and trashed != true and mimeType != '").append(MIME_TYPE_FOLDER).append("'");
+    		
+    		java.util.List<String> fields = Arrays.asList("id", "name", "size", "md5Checksum");
+    		
+    		File sameName = findDuplicate(q + " and name = '" + Util.escapeQueryValue(name) + "'", fields, 
+    				name, size, md5);
+    		if (sameName != null) {
+    			if (stats != null) {
+    				stats.setDuplicateOf(sameName.getId(), false);
+    			}
+    			return true;
+    		}
+    		
+    		File other = findDuplicate(q.toString(), fields, null, size, md5);
+    		if (other == null) {
+    			return false;
+    		}
+    		
+    		File content = metadata != null ? metadata.clone() : new File();
+    		content.setName(name);
+    		content.setParents(parentIds);
+    		String copyFields = Util.listToString(DEFAULT_FILE_FIELDS, ",", "");
+    		File copy = drive.files().copy(other.getId(), content)
+    								 .setFields(copyFields)
+    								 .setSupportsTeamDrives(true)
+    								 .execute();
+    		if (metadataCache != null) {
+    			metadataCache.put(copy.getId(), copyFields, copy);
+    		}
+    		if (stats != null) {
+    			stats.setDuplicateOf(other.getId(), true);
+    		}
+    		return true;
+    	} finally {
+    		md5.cancel(true);
+    	}
+    }
+    
+    /**
+     * Find a file of given size and MD5, the checksum is waited for only when a file has the same size
+     * 
+     * @param q
+     * @param fields
+     * @param name - The name the file must have, null for any name
+     * @param size
+     * @param md5
+     * @return The file, or null if there is none
+     * @throws IOException
+     */
+    private File findDuplicate (String q, java.util.List<String> fields, String name, long size, 
+    		Future<String> md5) throws IOException {
+    	
+    	FileIterator files = new FileIterator(prepareListQuery("", q, fields), getBackgroundExecutor(), pathIndex);
+    	try {
+    		while (files.hasNext()) {
+    			File file = files.next();
+    			if (file.getSize() == null || file.getSize() != size || file.getMd5Checksum() == null
+    					|| name != null && !name.equals(file.getName())) {
+    				continue;
+    			}
+    			if (file.getMd5Checksum().equalsIgnoreCase(md5.get())) {
+    				return file;
+    			}
+    		}
+    		return null;
+    	} catch (UncheckedIOException e) {
+    		throw e.getCause();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("Interrupted while computing the checksum of upload");
+    	} catch (ExecutionException e) {
+    		throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    	} finally {
+    		files.close();
+    	}
+    }
+    
+    /**
+     * Start a resumable upload session
+     * 
+     * <p>
+     * The name of local file is used when metadata has no name.
+     * </p>
+     * 
+     * @param metadata
+     * @param name - The name of the local file, may be null
+     * @param parentIds
+     * @param fileId - The file to be updated, null to create a new file
+     * @return The session URI
+     * @throws IOException
+     */
+    private String createUploadSession (File metadata, String name,
+			java.util.List<String> parentIds, String fileId) throws IOException {
+    	
+    	String uploadUrlStr = GOOGLE_DRIVE_UPLOAD_URL+"?uploadType=resumable&supportsTeamDrives=true";
+    	if (fileId != null) {
+    		uploadUrlStr = GOOGLE_DRIVE_UPLOAD_URL+"/"+fileId+"?uploadType=resumable&supportsTeamDrives=true";
+    	}
+		
+		File content = metadata != null ? metadata.clone() : new File();
+		if (fileId == null) {
+			if (content.getName() == null && name != null) {
+				content.setName(name);
+			}
+			if (parentIds != null) {
+				content.setParents(parentIds);
+			}
+		}
+		
+		HttpRequest request = drive.getRequestFactory().buildPostRequest(new GenericUrl(uploadUrlStr), 
+				new JsonHttpContent(drive.getJsonFactory(), content));
+		if (fileId != null) {
+			// not every transport supports PATCH
+			request.getHeaders().set("X-HTTP-Method-Override", "PATCH");
+		}
+		
+		HttpResponse response = executeUploadRequest(request);
+		try {
+			String sessionUri = response.getHeaders().getLocation();
+			if (response.getStatusCode() != HttpURLConnection.HTTP_OK || sessionUri == null) {
+				throw new IOException("Cannot start upload session of " + content.getName() + ": " 
+						+ response.getStatusCode() + " " + response.getStatusMessage());
+			}
+			return sessionUri;
+		} finally {
+			response.ignore();
+		}
+    }
+    
+    /**
+     * Send the chunks of local file from given offset until the upload is completed
+     * 
+     * <p>
+     * With adaptive chunk size, the size of each chunk is picked from the throughput of the previous 
+     * ones. The chunks that were read ahead keep the size picked when they were read.
+     * </p>
+     * 
+     * <p>
+     * After each chunk, the offset acknowledged by Google Drive is taken from the Range header 
+     * and recorded to the upload journal. When Google Drive kept fewer bytes than were sent, 
+     * the chunks are read again from the acknowledged offset.
+     * </p>
+     * 
+     * @param sessionUri
+     * @param localFile
+     * @param offset
+     * @param journalEntry
+     * @param stats
+     * @throws IOException
+     */
+    private void uploadChunks(String sessionUri, java.io.File localFile, long offset, 
+    		UploadJournal.Entry journalEntry, UploadStats stats) throws IOException {
+    	
+    	AdaptiveChunkSizer chunkSizer = null;
+    	if (adaptiveChunkSize) {
+    		chunkSizer = new AdaptiveChunkSizer(chunkSize, maxChunkSize, chunkTargetDuration);
+    	}
+    	
+    	boolean completed = false;
+    	// the failed attempts since the last progress
+    	int failures = 0;
+    	while (!completed) {
+    		ChunkSource chunkSource = openChunkSource(localFile, offset);
+    		try {
+    			boolean inSync = true;
+    			while (!completed && inSync) {
+    				Chunk chunk = chunkSource.nextChunk(chunkSizer != null ? chunkSizer.getChunkSize() : chunkSize);
+    				long started = System.nanoTime();
+    				HttpResponse response;
+    				try {
+    					response = uploadChunk(sessionUri, chunk, chunkSource.getLength());
+    				} catch (IOException e) {
+    					// the server may have kept a part of the chunk
+    					backoffFailedChunk(e, ++failures);
+    					offset = resumeOffset(sessionUri, chunkSource.getLength());
+    					completed = offset == chunkSource.getLength() && offset > 0;
+    					inSync = false;
+    					continue;
+    				} finally {
+    					chunk.close();
+    				}
+    				
+    				try {
+    					int responseCode = response.getStatusCode();
+    					long elapsed = System.nanoTime() - started;
+    					if (chunkSizer != null) {
+    						chunkSizer.update(chunk.getLength(), elapsed);
+    					}
+    					if (stats != null) {
+    						stats.addChunk(chunk.getLength(), elapsed);
+    					}
+    					if (responseCode == HTTP_PERM_REDIR) {
+    						failures = 0;
+    						long chunkEnd = chunk.getPosition() + chunk.getLength();
+    						offset = getUploadedBytes(response);
+    						if (offset <= chunk.getPosition() || chunk.isLast() && offset >= chunkEnd) {
+    							throw new IOException("Upload session made no progress at byte " + offset);
+    						}
+    						if (journalEntry != null) {
+    							uploadJournal.checkpoint(journalEntry, offset);
+    						}
+    						inSync = offset == chunkEnd;
+    					} else if (responseCode == HttpURLConnection.HTTP_OK 
+    							|| responseCode == HttpURLConnection.HTTP_CREATED) {
+    						completed = true;
+    					} else if (requestThrottle.isRetriable(response, drive.getJsonFactory()) 
+    							&& ++failures < requestThrottle.getMaxAttempts()) {
+    						requestThrottle.backoff(failures, RequestThrottle.parseRetryAfter(
+    								response.getHeaders().getFirstHeaderStringValue("Retry-After")));
+    						offset = resumeOffset(sessionUri, chunkSource.getLength());
+    						completed = offset == chunkSource.getLength() && offset > 0;
+    						inSync = false;
+    					} else {
+    						requestThrottle.recordFailure();
+    						throw new IOException("Cannot upload chunk at byte " + chunk.getPosition() 
+    								+ ": " + responseCode + " " + response.getStatusMessage());
+    					}
+    				} finally {
+    					// read to the end, so the connection goes back to the pool
+    					response.ignore();
+    				}
+    			}
+    		} finally {
+    			chunkSource.close();
+    		}
+    	}
+    	
+    	if (journalEntry != null) {
+    		uploadJournal.remove(journalEntry);
+    	}
+    }
+    
+    /**
+     * Send the chunks of a stream until its end, the total size is given with the last chunk
+     * 
+     * <p>
+     * A chunk is kept until Google Drive acknowledged all of its bytes. When it kept only a part, 
+     * or after a failure, the rest of the chunk is sent again from the acknowledged offset.
+     * </p>
+     * 
+     * @param sessionUri
+     * @param chunkSource
+     * @param stats
+     * @throws IOException
+     */
+    private void uploadStreamChunks(String sessionUri, InputStreamChunkSource chunkSource, 
+    		UploadStats stats) throws IOException {
+    	
+    	AdaptiveChunkSizer chunkSizer = null;
+    	if (adaptiveChunkSize) {
+    		chunkSizer = new AdaptiveChunkSizer(chunkSize, maxChunkSize, chunkTargetDuration);
+    	}
+    	
+    	boolean completed = false;
+    	// the failed attempts since the last progress
+    	int failures = 0;
+    	while (!completed) {
+    		Chunk.BufferChunk chunk = chunkSource.nextChunk(chunkSizer != null ? chunkSizer.getChunkSize() : chunkSize);
+    		try {
+    			long chunkEnd = chunk.getPosition() + chunk.getLength();
+    			// the part of the chunk not acknowledged yet
+    			Chunk.BufferChunk pending = chunk;
+    			while (pending != null) {
+    				long started = System.nanoTime();
+    				HttpResponse response;
+    				try {
+    					response = uploadChunk(sessionUri, pending, -1);
+    				} catch (IOException e) {
+    					backoffFailedChunk(e, ++failures);
+    					pending = resumeStreamChunk(sessionUri, chunk);
+    					completed = pending == null && chunk.isLast();
+    					continue;
+    				}
+    				
+    				try {
+    					int responseCode = response.getStatusCode();
+    					long elapsed = System.nanoTime() - started;
+    					if (chunkSizer != null) {
+    						chunkSizer.update(pending.getLength(), elapsed);
+    					}
+    					if (stats != null) {
+    						stats.addChunk(pending.getLength(), elapsed);
+    					}
+    					if (responseCode == HTTP_PERM_REDIR) {
+    						failures = 0;
+    						long offset = getUploadedBytes(response);
+    						if (offset <= pending.getPosition() || chunk.isLast() && offset >= chunkEnd) {
+    							throw new IOException("Upload session made no progress at byte " + offset);
+    						}
+    						pending = offset < chunkEnd ? chunk.from(offset) : null;
+    					} else if (responseCode == HttpURLConnection.HTTP_OK 
+    							|| responseCode == HttpURLConnection.HTTP_CREATED) {
+    						completed = true;
+    						pending = null;
+    					} else if (requestThrottle.isRetriable(response, drive.getJsonFactory()) 
+    							&& ++failures < requestThrottle.getMaxAttempts()) {
+    						requestThrottle.backoff(failures, RequestThrottle.parseRetryAfter(
+    								response.getHeaders().getFirstHeaderStringValue("Retry-After")));
+    						pending = resumeStreamChunk(sessionUri, chunk);
+    						completed = pending == null && chunk.isLast();
+    					} else {
+    						requestThrottle.recordFailure();
+    						throw new IOException("Cannot upload chunk at byte " + pending.getPosition() 
+    								+ ": " + responseCode + " " + response.getStatusMessage());
+    					}
+    				} finally {
+    					// read to the end, so the connection goes back to the pool
+    					response.ignore();
+    				}
+    			}
+    		} finally {
+    			chunk.close();
+    		}
+    	}
+    }
+    
+    /**
+     * Wait before a chunk that failed to be sent is sent again
+     * 
+     * <p>
+     * A read or write timeout fails the chunk like a broken connection, it is sent again from the 
+     * offset acknowledged by Google Drive. Other interruptions cancel the upload.
+     * </p>
+     * 
+     * @param e - The failure
+     * @param failures - The number of failed attempts since the last progress
+     * @throws IOException - The failure, if the upload was interrupted or failed too many times
+     */
+    private void backoffFailedChunk(IOException e, int failures) throws IOException {
+    	
+    	if (e instanceof InterruptedIOException 
+    			&& (!(e instanceof SocketTimeoutException) || Thread.currentThread().isInterrupted())) {
+    		throw e;
+    	}
+    	if (failures >= requestThrottle.getMaxAttempts()) {
+    		requestThrottle.recordFailure();
+    		throw e;
+    	}
+    	
+    	requestThrottle.backoff(failures, 0);
+    }
+    
+    /**
+     * Find the part of the current chunk of a stream to be sent again after a failure
+     * 
+     * @param sessionUri
+     * @param chunk
+     * @return The part not acknowledged, null if the chunk was acknowledged or the upload completed
+     * @throws IOException - If the session does not exist anymore or lost bytes before the chunk
+     */
+    private Chunk.BufferChunk resumeStreamChunk(String sessionUri, Chunk.BufferChunk chunk) throws IOException {
+    	
+    	long offset = resumeOffset(sessionUri, -1);
+    	if (offset == Long.MAX_VALUE) {
+    		return null;
+    	}
+    	if (offset < chunk.getPosition()) {
+    		throw new IOException("Upload session lost bytes from " + offset 
+    				+ ", the stream cannot be read again before " + chunk.getPosition());
+    	}
+    	
+    	long chunkEnd = chunk.getPosition() + chunk.getLength();
+    	// the last chunk is sent even if empty, it gives the total size
+    	return offset < chunkEnd || chunk.isLast() ? chunk.from(Math.min(offset, chunkEnd)) : null;
+    }
+    
+    /**
+     * Ask Google Drive how many bytes of an upload session were committed
+     * 
+     * @param sessionUri
+     * @param localFileSize - The size of the file, -1 if unknown
+     * @return The number of bytes committed, the file size (Long.MAX_VALUE when unknown) if the 
+     * 		   upload was completed or -1 if the session does not exist anymore
+     * @throws IOException
+     */
+    private long queryUploadedBytes(String sessionUri, long localFileSize) throws IOException {
+    	
+    	HttpRequest request = drive.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri), new EmptyContent());
+    	request.getHeaders().setContentRange("bytes */" + (localFileSize >= 0 ? localFileSize : "*"));
+    	
+    	HttpResponse response = executeUploadRequest(request);
+    	try {
+			int responseCode = response.getStatusCode();
+			if (responseCode == HTTP_PERM_REDIR) {
+				return getUploadedBytes(response);
+			} else if (responseCode == HttpURLConnection.HTTP_OK 
+					|| responseCode == HttpURLConnection.HTTP_CREATED) {
+				return localFileSize >= 0 ? localFileSize : Long.MAX_VALUE;
+			} else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND 
+					|| responseCode == HttpURLConnection.HTTP_GONE) {
+				return -1;
+			}
+			
+			throw new IOException("Cannot get status of upload session: " 
+					+ responseCode + " " + response.getStatusMessage());
+    	} finally {
+    		response.ignore();
+    	}
+    }
+    
+    /**
+     * Find the offset to resume from after a failed chunk
+     * 
+     * @param sessionUri
+     * @param localFileSize
+     * @return
+     * @throws IOException - If the session does not exist anymore
+     */
+    private long resumeOffset(String sessionUri, long localFileSize) throws IOException {
+    	
+    	long offset = queryUploadedBytes(sessionUri, localFileSize);
+    	if (offset < 0) {
+    		throw new IOException("Upload session expired: " + sessionUri);
+    	}
+    	
+    	return offset;
+    }
+    
+    /**
+     * Read the number of committed bytes from Range header (e.g. "bytes=0-1048575")
+     * 
+     * @param response
+     * @return
+     */
+    private static long getUploadedBytes(HttpResponse response) {
+    	
+    	String range = response.getHeaders().getRange();
+    	if (range == null) {
+    		return 0;
+    	}
+    	
+    	return Long.parseLong(range.substring(range.lastIndexOf('-') + 1).trim()) + 1;
+    }
+    
+    /**
+     * Open the chunk source of given local file
+     * 
+     * <p>
+     * The chunks are streamed from the file channel in zero-copy mode, otherwise they are 
+     * read ahead on a background thread when upload pipeline depth is more than 1.
+     * </p>
+     * 
+     * @param localFile
+     * @param offset - The position of the first chunk
+     * @return
+     * @throws IOException
+     */
+    private ChunkSource openChunkSource(java.io.File localFile, long offset) throws IOException {
+    	
+    	if (zeroCopyUpload) {
+    		return new FileChannelChunkSource(localFile, offset);
+    	}
+    	
+    	int depth = uploadPipelineDepth;
+    	
+    	ChunkSource chunkSource = new InputStreamChunkSource(new FileInputStream(localFile), localFile.length(), offset, 
+    			chunkBufferPool, depth);
+    	
+    	if (depth > 1) {
+    		chunkSource = new PipelinedChunkSource(chunkSource, depth, chunkSize);
+    	}
+    	
+    	return chunkSource;
+    }
+    
+    /**
+     * This method is helping process each chunk for resumable update
+     * 
+     * <p>
+     * The chunk is sent once, the upload loop handles the failures from the status of the session.
+     * </p>
+     * 
+     * @param sessionUri
+     * @param chunk
+     * @param localFileSize - The size of the file, -1 if unknown
+     * @return
+     * @throws IOException
+     */
+    private HttpResponse uploadChunk(String sessionUri, Chunk chunk, long localFileSize) throws IOException {
+
+		HttpRequest request = drive.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri), 
+				new ChunkContent(chunk, uploadWriteTimeout));
+
+		// the total size of a stream is known with its last chunk only
+		String total = localFileSize >= 0 ? String.valueOf(localFileSize) 
+				: chunk.isLast() ? String.valueOf(chunk.getPosition() + chunk.getLength()) : "*";
+		if (chunk.getLength() == 0) {
+			request.getHeaders().setContentRange("bytes */" + total);
+		} else {
+			request.getHeaders().setContentRange("bytes " + chunk.getPosition()
+					+ "-" + (chunk.getPosition() + chunk.getLength() - 1) + "/" + total);
+		}
+		
+		// the rate limit still applies, the retries do not
+		request.setNumberOfRetries(0);
+		request.setUnsuccessfulResponseHandler(null);
+		request.setIOExceptionHandler(null);
+
+		return executeUploadRequest(request);
+	}
+    
+    /**
+     * Send a request of the resumable upload process, the response is returned whatever its status
+     * 
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    private HttpResponse executeUploadRequest(HttpRequest request) throws IOException {
+    	
+    	request.setConnectTimeout(chunkTimeout);
+    	request.setReadTimeout(uploadReadTimeout);
+    	// 308 tells the progress of the session, it is not a redirect
+    	request.setFollowRedirects(false);
+    	request.setThrowExceptionOnExecuteError(false);
+    	
+    	try {
+    		return request.execute();
+    	} catch (IOException e) {
+    		// the chunks have no IO exception handler to report the failure
+    		RequestMetrics.failed(request, e);
+    		throw e;
+    	}
+    }
+    
+    
+    /**
+     * Download file from Google Drive
+     * 
+     * <p>
+     * With given file id. When download parallelism is more than 1, the file is downloaded 
+     * in byte ranges over several connections.
+     * </p>
+     * 
+     * @param file
+     * @param localFile
+     * @throws IOException
+     */
+    public void download (String fileId, java.io.File localFile) throws IOException {
+		
+    	if (downloadParallelism > 1) {
+    		File file = getFileById(fileId, Arrays.asList("id", "size"));
+    		// Google Docs have no size, they cannot be downloaded by range
+    		if (file.getSize() != null) {
+    			new ParallelDownload(drive, requestThrottle, fileId, file.getSize(), downloadSegmentSize, 
+    					downloadParallelism, DEFAULT_DOWNLOAD_SEGMENT_RETRIES).downloadTo(localFile);
+    			return;
+    		}
+    	}
+    	
+    	if (!localFile.exists()) {
+			localFile.createNewFile();
+		}
+    	
+		FileOutputStream fos = new FileOutputStream(localFile);
+		try {
+			drive.files().get(fileId).executeMediaAndDownloadTo(fos);
+			fos.flush();
+		} finally {
+			fos.close();
+		}
+    	
+    }
+	
+	/**
+	 * Open a channel reading the content of a file at random positions
+	 * 
+	 * <p>
+	 * Only the blocks of 1 mb that are read are transferred, the last 32 of them are cached.
+	 * </p>
+	 * 
+	 * @param fileId
+	 * @return
+	 * @throws IOException - If the file has no content, e.g. a Google Doc
+	 */
+	public DriveFileChannel openChannel (String fileId) throws IOException {
+		return openChannel(fileId, DEFAULT_READ_BLOCK_SIZE, DEFAULT_READ_CACHE_BLOCKS);
+	}
+	
+	/**
+	 * Open a channel reading the content of a file at random positions
+	 * 
+	 * <p>
+	 * The file is read in blocks of given size, fetched with HTTP Range requests when they are 
+	 * first read. Small blocks transfer fewer bytes around each read, large blocks need fewer 
+	 * requests for sequential reads. The cache holds up to <code>cacheBlocks</code> blocks in memory.
+	 * </p>
+	 * 
+	 * @param fileId
+	 * @param blockSize - The number of bytes of a block
+	 * @param cacheBlocks - The maximum number of blocks cached
+	 * @return
+	 * @throws IOException - If the file has no content, e.g. a Google Doc
+	 */
+	public DriveFileChannel openChannel (String fileId, int blockSize, int cacheBlocks) throws IOException {
+		
+		File file = getFileById(fileId, Arrays.asList("id", "size"));
+		// Google Docs have no size, they cannot be read by range
+		if (file.getSize() == null) {
+			throw new IOException("File " + fileId + " has no content to be read by range");
+		}
+		
+		return new DriveFileChannel(drive, fileId, file.getSize(), blockSize, cacheBlocks, 
+				DEFAULT_DOWNLOAD_SEGMENT_RETRIES);
+	}
+	
+	/**
+	 * Open a stream reading the content of a file through a channel of {@link #openChannel(String)}
+	 * 
+	 * @param fileId
+	 * @return
+	 * @throws IOException - If the file has no content, e.g. a Google Doc
+	 */
+	public InputStream openInputStream (String fileId) throws IOException {
+		return Channels.newInputStream(openChannel(fileId));
+	}
+	
+	/**
+	 * Makes a new folder
+	 * 
+	 * @param folderName
+	 * @param parentId
+	 * @return
+	 * @throws IOException
+	 */
+	public File mkFolder (String folderName, String parentId) throws IOException {
+		
+		File content = new File();
+		content.setName(folderName);
+		content.setParents(Arrays.asList(parentId));
+		content.setMimeType(MIME_TYPE_FOLDER);
+		
+
+		String fields = Util.listToString(DEFAULT_FILE_FIELDS, ",", "");
+		File file = drive.files()
+						.create(content)
+						.setFields(fields)
+						.setSupportsTeamDrives(true)
+						.execute();
+		
+		if (metadataCache != null) {
+			metadataCache.put(file.getId(), fields, file);
+		}
+		pathIndex.add(file);
 		
 		return file;
 	}
@@ -355,27 +1785,87 @@ public class GDFileUtils {
 	 * If teamDrive was set, this method will return teamDrive's files.
 	 * </p>
 	 * 
-	 * @param folder
+	 * <p>
+	 * All pages of the result are fetched. For large folders, prefer {@link #iterateFiles(String, String, java.util.List)} 
+	 * which does not hold all the files in memory. To include the sub-folders, use {@link #newFolderWalker()}.
+	 * </p>
+	 * 
+	 * @param folder
+	 * @param q
+	 * @param fields
+	 * @return
+	 * @throws IOException 
+	 */
+	public Collection<File> listFiles(String folderId, String q, java.util.List<String> fields) throws IOException {
+		
+		java.util.List<File> files = new ArrayList<File>();
+		
+		FileIterator iterator = iterateFiles(folderId, q, fields);
+		try {
+			while (iterator.hasNext()) {
+				files.add(iterator.next());
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			iterator.close();
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Iterates over files within a given folder, page by page
+	 * 
+	 * <p>
+	 * Pages of the maximum size are fetched lazily, the next page is fetched in the background 
+	 * while the caller works on the current one. Use {@link FileIterator#stream()} to get a 
+	 * {@code Stream<File>}.
+	 * </p>
+	 * 
+	 * <p>
+	 * If teamDrive was set, this method will return teamDrive's files.
+	 * </p>
+	 * 
+	 * @param folderId
+	 * @param q
+	 * @param fields
+	 * @return
+	 * @throws IOException
+	 */
+	public FileIterator iterateFiles(String folderId, String q, java.util.List<String> fields) throws IOException {
+		return new FileIterator(prepareListQuery(folderId, q, fields), getBackgroundExecutor(), pathIndex);
+	}
+	
+	/**
+	 * Prepare the query of file listing
+	 * 
+	 * @param folderId
 	 * @param q
 	 * @param fields
 	 * @return
-	 * @throws IOException 
+	 * @throws IOException
 	 */
-	public Collection<File> listFiles(String folderId, String q, java.util.List<String> fields) throws IOException {
+	List prepareListQuery(String folderId, String q, java.util.List<String> fields) throws IOException {
 		
 		List preparedQuery = drive.files().list();
 		
 		if (fields == null || fields.isEmpty()) {
 			fields = DEFAULT_FILE_FIELDS;
+		} else if (!fields.contains("trashed")) {
+			// the path index records only the folders known not to be trashed
+			fields = new ArrayList<String>(fields);
+			fields.add("trashed");
 		}
-		preparedQuery.setFields("files("+Util.listToString(fields, ",", "")+")");
+		preparedQuery.setFields("nextPageToken, files("+Util.listToString(fields, ",", "")+")");
+		preparedQuery.setPageSize(MAX_PAGE_SIZE);
 		
 		if (!folderId.isEmpty()) {
 			preparedQuery.setQ("'"+folderId+"' in parents ");
 		}
 		
 		if (q != null) {
-			preparedQuery.setQ(preparedQuery.getQ() + " " + q);
+			preparedQuery.setQ(preparedQuery.getQ() != null ? preparedQuery.getQ() + " " + q : q);
 		}
 		
 		if (teamDrive != null) {
@@ -385,9 +1875,7 @@ public class GDFileUtils {
 						 .setCorpora("teamDrive");
 		}
 		
-		java.util.List<File> files = preparedQuery.execute().getFiles();
-		
-		return files;
+		return preparedQuery;
 	}
     
     /**
@@ -400,24 +1888,13 @@ public class GDFileUtils {
      */
     public java.util.List<File> getFilesByName (String fileName, String folderId) throws IOException {
     	
-    	
-    	List preparedQuery = drive.files().list();
-    	
+    	String q = "name = '" + Util.escapeQueryValue(fileName) + "'";
     	if (!folderId.isEmpty()) {
-			preparedQuery.setQ("'"+folderId+"' in parents ");
-		}
-
-		if (teamDrive != null) {
-			preparedQuery.setIncludeTeamDriveItems(true)
-						 .setTeamDriveId(teamDrive.getId())
-						 .setSupportsTeamDrives(true)
-						 .setCorpora("teamDrive");
-		}
-    	
-		java.util.List<File> files = preparedQuery.execute().getFiles();
+    		q = "and " + q;
+    	}
     	
 		java.util.List<File> matchedNameFiles = new ArrayList<File>();
-		for (File file: files) {
+		for (File file: listFiles(folderId, q, null)) {
 			if (file.getName().equals(fileName)) {
 				matchedNameFiles.add(file);
 			}
@@ -442,10 +1919,12 @@ public class GDFileUtils {
 		File content = new File();
 		content.setName(newName);
 		
-		drive.files().update(fileId, content)
-					 .setSupportsTeamDrives(true)
-					 .execute();
+		File file = drive.files().update(fileId, content)
+							 .setFields(Util.listToString(PATH_FIELDS, ",", ""))
+							 .setSupportsTeamDrives(true)
+							 .execute();
 		
+		invalidate(file);
 	}
     
 
@@ -482,12 +1961,26 @@ public class GDFileUtils {
 			fields = DEFAULT_FILE_FIELDS;
 		}
 		
+		String fieldsStr = Util.listToString(fields, ",", "");
+		
+		if (metadataCache != null) {
+			File cached = metadataCache.get(fileId, fieldsStr);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		
 		File file = preparedQuery
 						 .get(fileId)
-						 .setFields(Util.listToString(fields, ",", ""))
+						 .setFields(fieldsStr)
 						 .setSupportsTeamDrives(true)
 						 .execute();
 		
+		if (metadataCache != null) {
+			metadataCache.put(fileId, fieldsStr, file);
+		}
+		pathIndex.add(file);
+		
 		return file;
 		
 	}
@@ -504,6 +1997,7 @@ public class GDFileUtils {
 					 .setSupportsTeamDrives(true)
 					 .execute();
 		
+		invalidate(fileId);
 	}
 	
 	/**
@@ -526,10 +2020,79 @@ public class GDFileUtils {
 			content.setParents(Arrays.asList(destFolderId));
 		}
 		
-		drive.files().copy(fileId, content)
+		String fields = Util.listToString(DEFAULT_FILE_FIELDS, ",", "");
+		File copy = drive.files().copy(fileId, content)
+					 .setFields(fields)
 					 .setSupportsTeamDrives(true)
 					 .execute();
 		
+		if (metadataCache != null) {
+			metadataCache.put(copy.getId(), fields, copy);
+		}
+		
+	}
+	
+	/**
+	 * Copy all files and folders of a folder into another folder, keeping the folder structure
+	 * 
+	 * <p>
+	 * The copies are made by Google Drive, in parallel batch requests. If some copies failed, call 
+	 * it again to copy only the files that are missing. Use {@link #newFolderCopy()} to set the 
+	 * parallelism or follow the progress.
+	 * </p>
+	 * 
+	 * @param srcFolderId - The folder whose content is copied
+	 * @param destFolderId - The destination folder
+	 * @return The number of folders and files copied
+	 * @throws IOException
+	 */
+	public FolderCopy.Progress copyFolderContentToFolder(String srcFolderId, String destFolderId) throws IOException {
+		return newFolderCopy().copy(srcFolderId, destFolderId);
+	}
+	
+	/**
+	 * Move all files and folders of a folder to another folder
+	 * 
+	 * <p>
+	 * The folder is listed page by page and the files are moved by parallel batch requests, 
+	 * their parents are not fetched one by one. Use {@link #newFolderOperations()} to set the parallelism.
+	 * </p>
+	 * 
+	 * @param srcFolderId - The folder whose content is moved
+	 * @param destFolderId - The destination folder
+	 * @return The number of files and folders moved
+	 * @throws IOException
+	 */
+	public long moveFolderContentToFolder(String srcFolderId, String destFolderId) throws IOException {
+		return newFolderOperations().move(srcFolderId, destFolderId);
+	}
+	
+	/**
+	 * Delete all files and folders of a folder permanently, the folder itself is kept
+	 * 
+	 * @param folderId
+	 * @return The number of files and folders deleted, a folder deleted with its content counts as one
+	 * @throws IOException
+	 */
+	public long cleanFolder(String folderId) throws IOException {
+		return cleanFolder(folderId, false);
+	}
+	
+	/**
+	 * Delete all files and folders of a folder, the folder itself is kept
+	 * 
+	 * <p>
+	 * The sub-folders are deleted with their content in one call when Google Drive allows it. 
+	 * Use {@link #newFolderOperations()} to set the parallelism or keep the sub-folders.
+	 * </p>
+	 * 
+	 * @param folderId
+	 * @param trash - Whether the files are moved to the trash instead of deleted permanently
+	 * @return The number of files and folders deleted, a folder deleted with its content counts as one
+	 * @throws IOException
+	 */
+	public long cleanFolder(String folderId, boolean trash) throws IOException {
+		return newFolderOperations().setTrash(trash).clean(folderId);
 	}
 	
 	/**
@@ -548,11 +2111,13 @@ public class GDFileUtils {
 		File file = this.getFileById(fileId, null);
 		
 		if (file != null) {
-			drive.files().update(fileId, null)
-						 .setAddParents(folderId)
-						 .setRemoveParents(Util.listToString(file.getParents(), ",", ""))
-						 .setSupportsTeamDrives(true)
-						 .execute();
+			file = drive.files().update(fileId, null)
+								.setAddParents(folderId)
+								.setRemoveParents(Util.listToString(file.getParents(), ",", ""))
+								.setFields(Util.listToString(PATH_FIELDS, ",", ""))
+								.setSupportsTeamDrives(true)
+								.execute();
+			invalidate(file);
 		}
 		
 	}
@@ -573,10 +2138,12 @@ public class GDFileUtils {
 		File file = this.getFileById(fileId, null);
 		
 		if (file != null) {
-			drive.files().update(fileId, null)
-						 .setAddParents(folderId)
-						 .setSupportsTeamDrives(true)
-						 .execute();
+			file = drive.files().update(fileId, null)
+								.setAddParents(folderId)
+								.setFields(Util.listToString(PATH_FIELDS, ",", ""))
+								.setSupportsTeamDrives(true)
+								.execute();
+			invalidate(file);
 		}
 	}
 	
@@ -596,17 +2163,343 @@ public class GDFileUtils {
 		File file = this.getFileById(fileId, null);
 		
 		if (file != null) {
-			drive.files().update(fileId, null)
-						 .setRemoveParents(folderId)
-						 .setSupportsTeamDrives(true)
-						 .execute();
+			file = drive.files().update(fileId, null)
+								.setRemoveParents(folderId)
+								.setFields(Util.listToString(PATH_FIELDS, ",", ""))
+								.setSupportsTeamDrives(true)
+								.execute();
+			invalidate(file);
+		}
+	}
+
+	/**
+	 * Get the paths of a file
+	 * 
+	 * <p>
+	 * A file has one path for each chain of parents, e.g. "/reports/2026/q3/file.csv". Paths start 
+	 * from the root folder of My Drive or of the Team Drive was set, the path of the root folder is "/". 
+	 * Files outside of them (e.g. shared with me) get a path from their top-most visible folder.
+	 * </p>
+	 * 
+	 * <p>
+	 * The folders are looked up in the path index first, only the unknown ones are requested.
+	 * </p>
+	 * 
+	 * @param fileId
+	 * @return
+	 * @throws IOException
+	 */
+	public java.util.List<String> getPaths (String fileId) throws IOException {
+		return getPaths(fileId, new HashSet<String>());
+	}
+	
+	/**
+	 * @param fileId
+	 * @param descendants - The files on the way down to the original file, guards against cycles
+	 * @return
+	 * @throws IOException
+	 */
+	private java.util.List<String> getPaths (String fileId, Set<String> descendants) throws IOException {
+		
+		if (isRootFolder(fileId)) {
+			return Collections.singletonList("/");
+		}
+		
+		if (!descendants.add(fileId)) {
+			return Collections.emptyList();
+		}
+		
+		File file = pathIndex.get(fileId);
+		if (file == null) {
+			file = getFileById(fileId, PATH_FIELDS);
+		}
+		
+		java.util.List<String> paths = new ArrayList<String>();
+		if (file.getParents() == null || file.getParents().isEmpty()) {
+			paths.add("/" + file.getName());
+		} else {
+			for (String parentId : file.getParents()) {
+				for (String parentPath : getPaths(parentId, descendants)) {
+					paths.add(("/".equals(parentPath) ? "" : parentPath) + "/" + file.getName());
+				}
+			}
+		}
+		
+		descendants.remove(fileId);
+		return paths;
+	}
+	
+	/**
+	 * Get the id of the file at given path
+	 * 
+	 * @param path - The path from the root folder of My Drive or of the Team Drive was set
+	 * @return The id, or null if no file was found. If several files have the path, any of them.
+	 * @throws IOException
+	 */
+	public String getFileIdByPath (String path) throws IOException {
+		java.util.List<String> fileIds = getFileIdsByPath(path);
+		return fileIds.isEmpty() ? null : fileIds.get(0);
+	}
+	
+	/**
+	 * Get the ids of all files at given path
+	 * 
+	 * <p>
+	 * Google Drive allows several files of the same name in a folder, so a path may lead to several files. 
+	 * The leading folders are looked up in the path index first. A segment that is not known is resolved 
+	 * by a query for its name in the folders of the previous segment. The last segment is always queried, 
+	 * files are not indexed.
+	 * </p>
+	 * 
+	 * @param path - The path from the root folder of My Drive or of the Team Drive was set
+	 * @return
+	 * @throws IOException
+	 */
+	public java.util.List<String> getFileIdsByPath (String path) throws IOException {
+		
+		java.util.List<String> segments = new ArrayList<String>();
+		for (String segment : path.split("/")) {
+			if (!segment.isEmpty()) {
+				segments.add(segment);
+			}
+		}
+		
+		Set<String> current = Collections.singleton(getRootId());
+		
+		for (int i=0; i<segments.size() && !current.isEmpty(); i++) {
+			boolean last = i == segments.size() - 1;
+			Set<String> next = last ? null : getKnownChildren(current, segments.get(i));
+			if (next == null) {
+				next = resolvePathSegment(current, segments.get(i), last);
+			}
+			current = next;
 		}
+		
+		return new ArrayList<String>(current);
+	}
+	
+	/**
+	 * Get the child folders of given name from the path index
+	 * 
+	 * @param folderIds
+	 * @param name
+	 * @return The ids, or null if the children of a folder are not all known
+	 */
+	private Set<String> getKnownChildren (Set<String> folderIds, String name) {
+		
+		Set<String> children = new LinkedHashSet<String>();
+		for (String folderId : folderIds) {
+			Set<String> known = pathIndex.getChildren(folderId, name);
+			if (known == null) {
+				return null;
+			}
+			children.addAll(known);
+		}
+		return children;
+	}
+	
+	/**
+	 * Resolve a segment of a path with one query for its name, scoped to the folders of the previous segment
+	 * 
+	 * @param folderIds - The folders of the previous segment
+	 * @param name
+	 * @param last - Whether files are accepted, else only folders
+	 * @return
+	 * @throws IOException
+	 */
+	private Set<String> resolvePathSegment (Set<String> folderIds, String name, boolean last) throws IOException {
+		
+		StringBuilder q = new StringBuilder("(");
+		for (String folderId : folderIds) {
+			if (q.length() > 1) {
+				q.append(" or ");
+			}
+			q.append("'").append(Util.escapeQueryValue(folderId)).append("' in parents");
+		}
+		q.append(") and name = '").append(Util.escapeQueryValue(name)).append("' and trashed != true");
+		
+		Collection<File> files = listFiles("", q.toString(), PATH_FIELDS);
+		
+		Set<String> next = new LinkedHashSet<String>();
+		for (String folderId : folderIds) {
+			java.util.List<File> children = new ArrayList<File>();
+			for (File file : files) {
+				if (file.getParents() != null && file.getParents().contains(folderId)) {
+					children.add(file);
+					if (last || MIME_TYPE_FOLDER.equals(file.getMimeType())) {
+						next.add(file.getId());
+					}
+				}
+			}
+			pathIndex.setChildren(folderId, name, children);
+		}
+		
+		return next;
+	}
+	
+	/**
+	 * Check if given folder is the root folder of My Drive or of the Team Drive was set
+	 * 
+	 * @param folderId
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean isRootFolder (String folderId) throws IOException {
+		return "root".equals(folderId) 
+				|| teamDrive != null && teamDrive.getId().equals(folderId)
+				|| folderId.equals(getRootFolderId());
+	}
+	
+	/**
+	 * Get the id of the Team Drive if it was set, else of the root folder of My Drive
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	String getRootId () throws IOException {
+		return teamDrive != null ? teamDrive.getId() : getRootFolderId();
+	}
+	
+	/**
+	 * Get the id of the root folder of My Drive, it is requested once
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private String getRootFolderId () throws IOException {
+		if (rootFolderId == null) {
+			rootFolderId = drive.files().get("root").setFields("id").execute().getId();
+		}
+		return rootFolderId;
+	}
+	
+	/**
+	 * Start a set of bulk operations
+	 * 
+	 * <p>
+	 * The operations queued are sent as batch requests, up to 100 operations per HTTP round trip, 
+	 * instead of one (or two) round trips per file.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public BulkOperations newBulkOperations() {
+		return new BulkOperations(drive, batchCallDrive, this);
 	}
 
-	/* TODO: TO BE DONE.
-    public void copyFolderContentToFolder(String srcFolderId, File destFolderId); // copy all files from source folder to destination folder
-    public void moveFolderContentToFolder(String srcFolderId, File destFolderId); // move all files from source folder to destination folder
-    public void cleanFolder(String folderId); //delete all files from given folder
-    public List<String> getPaths (String fileId); //return relative path of a file
-    */
+	/**
+	 * Start a watcher of the changes feed
+	 * 
+	 * <p>
+	 * The watcher polls the changes of My Drive, or of the Team Drive was set, and delivers them to 
+	 * its listeners as created, modified, moved, trashed or deleted events.
+	 * </p>
+	 * 
+	 * @param tokenFile - The file where the page token is saved across restarts, may be null
+	 * @return
+	 */
+	public ChangeWatcher newChangeWatcher(java.io.File tokenFile) {
+		return new ChangeWatcher(drive, this, tokenFile);
+	}
+	
+	/**
+	 * Start a walker of folder trees
+	 * 
+	 * <p>
+	 * The walker lists the sub-folders breadth-first with parallel queries, each covering several folders.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public FolderWalker newFolderWalker() {
+		return new FolderWalker(this);
+	}
+	
+	/**
+	 * Start deleting or moving the content of folders
+	 * 
+	 * <p>
+	 * The folders are listed page by page, and each page feeds batch requests sent in parallel.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public FolderOperations newFolderOperations() {
+		return new FolderOperations(this);
+	}
+	
+	/**
+	 * Start a copy of folder trees
+	 * 
+	 * <p>
+	 * The folders are rebuilt level by level, then the files are copied by Google Drive in parallel 
+	 * batch requests. A failed copy can be resumed without copying the finished items again.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public FolderCopy newFolderCopy() {
+		return new FolderCopy(this);
+	}
+	
+	/**
+	 * Start a sync engine between local directories and Drive folders
+	 * 
+	 * <p>
+	 * The engine compares both trees by size and MD5 checksum, and transfers only the files that differ.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public SyncEngine newSyncEngine() {
+		return new SyncEngine(drive, this);
+	}
+	
+	/**
+	 * Open a file system view of My Drive, or of the Team Drive if it was set
+	 * 
+	 * <p>
+	 * Its paths work with <code>java.nio.file.Files</code>, e.g. <code>Files.walk(fs.getPath("/reports"))</code>. 
+	 * The files seen are cached for a short time by path.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public DriveFileSystem newFileSystem() {
+		return new DriveFileSystem(drive, this);
+	}
+	
+	/**
+	 * Forget the cached metadata of a file that was changed
+	 * 
+	 * @param fileId
+	 */
+	void invalidate(String fileId) {
+		if (metadataCache != null) {
+			metadataCache.invalidate(fileId);
+		}
+		pathIndex.remove(fileId);
+	}
+	
+	/**
+	 * Forget the cached metadata of a file that was changed, and record the new name and parents of a folder
+	 * 
+	 * @param file - The file returned by the change, with id, name, mimeType, parents and trashed
+	 */
+	void invalidate(File file) {
+		invalidate(file.getId());
+		pathIndex.add(file);
+	}
+	
+	/**
+	 * Get the executor of background work, it is created on first use
+	 * 
+	 * @return
+	 */
+	synchronized ExecutorService getBackgroundExecutor() {
+		if (backgroundExecutor == null) {
+			backgroundExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("gdfu-background"));
+		}
+		return backgroundExecutor;
+	}
 }
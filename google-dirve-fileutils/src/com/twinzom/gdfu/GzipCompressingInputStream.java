@@ -0,0 +1,103 @@
+package com.twinzom.gdfu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Input stream of the gzip compressed content of another stream
+ *
+ * <p>
+ * The source is read and compressed as the compressed bytes are read, so the compressed
+ * content is never held as a whole, in memory or on disk.
+ * </p>
+ */
+class GzipCompressingInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream source;
+
+	private final byte[] sourceBuffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * The compressed bytes not read yet, from <code>offset</code>
+	 */
+	private final Buffer compressed = new Buffer();
+
+	private final GZIPOutputStream gzip;
+
+	private int offset = 0;
+
+	private boolean finished = false;
+
+	/**
+	 * @param source - The stream to be compressed, it is closed with this stream
+	 * @throws IOException
+	 */
+	GzipCompressingInputStream(InputStream source) throws IOException {
+		this.source = source;
+		this.gzip = new GZIPOutputStream(compressed, BUFFER_SIZE);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+
+		if (len == 0) {
+			return 0;
+		}
+
+		while (offset == compressed.size()) {
+			if (finished) {
+				return -1;
+			}
+			compressed.reset();
+			offset = 0;
+			int read = source.read(sourceBuffer);
+			if (read < 0) {
+				gzip.finish();
+				finished = true;
+			} else {
+				gzip.write(sourceBuffer, 0, read);
+			}
+		}
+
+		int count = Math.min(len, compressed.size() - offset);
+		System.arraycopy(compressed.array(), offset, b, off, count);
+		offset += count;
+
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return compressed.size() - offset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			source.close();
+		} finally {
+			// ends the deflater, its native memory is not released before finalization otherwise
+			gzip.close();
+		}
+	}
+
+	/**
+	 * Byte array output stream giving access to its array
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+package com.twinzom.gdfu;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads chunks sequentially from an input stream into buffers of a {@link ChunkBufferPool}
+ * 
+ * <p>
+ * When the length of the stream is unknown, chunks are read until the end of the stream, the 
+ * chunk that reaches it is the last one. It is empty when the previous chunk ended with the stream.
+ * </p>
+ * 
+ * <p>
+ * A chunk holds one of the buffers until it is closed. When this source holds its maximum 
+ * number of buffers, or the pool has none left, {@link #nextChunk(int)} waits for a buffer 
+ * to be closed.
+ * </p>
+ */
+class InputStreamChunkSource implements ChunkSource, Chunk.BufferRecycler {
+
+	private final InputStream in;
+	
+	/**
+	 * The channel of the stream, to read into direct buffers
+	 */
+	private ReadableByteChannel channel;
+	
+	/**
+	 * The number of bytes to be read, -1 until the end of a stream of unknown length was reached
+	 */
+	private long length;
+	
+	private final ChunkBufferPool pool;
+	
+	/**
+	 * The buffers this source may still take from the pool
+	 */
+	private final Semaphore buffers;
+	
+	private long position = 0;
+	
+	/**
+	 * @param in - The stream to read from, it is closed with this source
+	 * @param length - The number of bytes to be read from the stream, -1 to read to its end
+	 * @param start - The number of bytes to be skipped before the first chunk
+	 * @param pool - The pool of buffers to read into
+	 * @param maxBuffers - The maximum number of buffers held at the same time
+	 * @throws IOException
+	 */
+	InputStreamChunkSource(InputStream in, long length, long start, ChunkBufferPool pool, int maxBuffers) throws IOException {
+		this.in = in;
+		this.length = length;
+		this.pool = pool;
+		this.buffers = new Semaphore(maxBuffers);
+		skipFully(start);
+	}
+	
+	@Override
+	public long getLength() {
+		return length;
+	}
+	
+	@Override
+	public Chunk.BufferChunk nextChunk(int size) throws IOException {
+		
+		try {
+			buffers.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a chunk buffer");
+		}
+		
+		ByteBuffer buffer;
+		try {
+			buffer = pool.acquire(size);
+		} catch (InterruptedIOException e) {
+			buffers.release();
+			throw e;
+		}
+		
+		int chunkLength = length < 0 ? size : (int) Math.min(size, length - position);
+		int read;
+		try {
+			read = read(buffer, chunkLength);
+		} catch (IOException e) {
+			recycle(buffer);
+			throw e;
+		}
+		
+		if (read < chunkLength) {
+			if (length >= 0) {
+				recycle(buffer);
+				throw new EOFException("Unexpected end of stream at byte " + (position + read) + " of " + length);
+			}
+			length = position + read;
+		}
+		
+		Chunk.BufferChunk chunk = new Chunk.BufferChunk(position, buffer, read, 
+				length >= 0 && position + read >= length, this);
+		position += read;
+		
+		return chunk;
+	}
+	
+	@Override
+	public void recycle(ByteBuffer buffer) {
+		pool.release(buffer);
+		buffers.release();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+	
+	private void skipFully(long count) throws IOException {
+		while (position < count) {
+			long skipped = in.skip(count - position);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("Unexpected end of stream at byte " + position + " of " + length);
+				}
+				skipped = 1;
+			}
+			position += skipped;
+		}
+	}
+	
+	/**
+	 * A single read() may return less than asked, keep reading until the chunk is full or the stream ended
+	 * 
+	 * @return The number of bytes read
+	 */
+	private int read(ByteBuffer buffer, int count) throws IOException {
+		int offset = 0;
+		if (!buffer.hasArray() && channel == null) {
+			channel = Channels.newChannel(in);
+		}
+		buffer.limit(count);
+		while (offset < count) {
+			int read;
+			if (buffer.hasArray()) {
+				read = in.read(buffer.array(), buffer.arrayOffset() + offset, count - offset);
+			} else {
+				read = channel.read(buffer);
+			}
+			if (read < 0) {
+				break;
+			}
+			offset += read;
+		}
+		return offset;
+	}
+	
+}
@@ -0,0 +1,97 @@
+package com.twinzom.gdfu;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, in microseconds
+ *
+ * <p>
+ * Each power of two is split into 8 buckets, so a percentile is off by at most 12.5%, from 1
+ * microsecond up to about 2 days. Recording a value is one atomic increment.
+ * </p>
+ */
+final class LatencyHistogram {
+
+	/**
+	 * The number of buckets of each power of two, as a power of two
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Values below 2^MAX_EXPONENT microseconds are recorded, greater ones fall in the last bucket
+	 */
+	private static final int MAX_EXPONENT = 38;
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+	/**
+	 * Record a latency
+	 *
+	 * @param nanos
+	 */
+	void record(long nanos) {
+		counts.incrementAndGet(index(Math.max(0, nanos / 1000L)));
+	}
+
+	/**
+	 * Get the latency under which given fraction of the values are
+	 *
+	 * @param fraction - e.g. 0.99
+	 * @return The upper bound of the bucket (in microseconds), 0 if nothing was recorded
+	 */
+	long percentile(double fraction) {
+
+		long total = 0;
+		long[] snapshot = new long[counts.length()];
+		for (int i=0; i<snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i=0; i<snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(snapshot.length - 1);
+	}
+
+	void reset() {
+		for (int i=0; i<counts.length(); i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	/**
+	 * The values below 8 have a bucket each, then each power of two has 8 buckets
+	 */
+	private int index(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent >= MAX_EXPONENT) {
+			return counts.length() - 1;
+		}
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = index % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+}
@@ -0,0 +1,211 @@
+package com.twinzom.gdfu;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * Bounded cache of file metadata, in front of {@link GDFileUtils#getFileById(String, java.util.List)}
+ * 
+ * <p>
+ * Entries are keyed by file id and field set. An entry expires after the time to live, and 
+ * the least recently used entry is evicted when the cache is full. Changes made through 
+ * {@link GDFileUtils} invalidate the entries of the files they touch, changes made by others 
+ * are seen once the entries expired.
+ * </p>
+ * 
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+public class MetadataCache {
+
+	private final int maxEntries;
+	
+	private final long ttlNanos;
+	
+	/**
+	 * Entries in access order, the eldest is the least recently used
+	 */
+	private final LinkedHashMap<String, CacheEntry> entries;
+	
+	/**
+	 * The keys of the entries of each file
+	 */
+	private final Map<String, Set<String>> keysByFileId = new HashMap<String, Set<String>>();
+	
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+	
+	/**
+	 * @param maxEntries - The maximum number of entries
+	 * @param ttl - The time to live of an entry
+	 * @param unit - The unit of ttl
+	 */
+	public MetadataCache(int maxEntries, long ttl, TimeUnit unit) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("Max entries must be at least 1");
+		}
+		this.maxEntries = maxEntries;
+		this.ttlNanos = unit.toNanos(ttl);
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > MetadataCache.this.maxEntries) {
+					unindex(eldest.getValue().fileId, eldest.getKey());
+					evictionCount++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	/**
+	 * Get the cached metadata of a file
+	 * 
+	 * @param fileId
+	 * @param fields
+	 * @return A copy of the cached file, or null if not cached or expired
+	 */
+	public synchronized File get(String fileId, String fields) {
+		
+		String key = key(fileId, fields);
+		CacheEntry entry = entries.get(key);
+		
+		if (entry != null && System.nanoTime() - entry.created > ttlNanos) {
+			entries.remove(key);
+			unindex(fileId, key);
+			evictionCount++;
+			entry = null;
+		}
+		
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+		
+		hitCount++;
+		return entry.file.clone();
+	}
+	
+	/**
+	 * Cache the metadata of a file
+	 * 
+	 * @param fileId
+	 * @param fields
+	 * @param file
+	 */
+	public synchronized void put(String fileId, String fields, File file) {
+		
+		String key = key(fileId, fields);
+		entries.put(key, new CacheEntry(fileId, file.clone(), System.nanoTime()));
+		
+		Set<String> keys = keysByFileId.get(fileId);
+		if (keys == null) {
+			keys = new HashSet<String>();
+			keysByFileId.put(fileId, keys);
+		}
+		keys.add(key);
+	}
+	
+	/**
+	 * Forget all cached metadata of a file
+	 * 
+	 * @param fileId
+	 */
+	public synchronized void invalidate(String fileId) {
+		Set<String> keys = keysByFileId.remove(fileId);
+		if (keys != null) {
+			for (String key : keys) {
+				entries.remove(key);
+			}
+		}
+	}
+	
+	/**
+	 * Forget all cached metadata
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		keysByFileId.clear();
+	}
+	
+	/**
+	 * Remove the expired entries, they are otherwise removed when they are read or evicted
+	 */
+	public synchronized void cleanUp() {
+		long now = System.nanoTime();
+		Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, CacheEntry> entry = iterator.next();
+			if (now - entry.getValue().created > ttlNanos) {
+				iterator.remove();
+				unindex(entry.getValue().fileId, entry.getKey());
+				evictionCount++;
+			}
+		}
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+	
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+	
+	/**
+	 * Get the number of entries evicted for size or expiry, invalidations are not counted
+	 * 
+	 * @return
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "MetadataCache [size=" + entries.size() + ", hits=" + hitCount + ", misses=" + missCount 
+				+ ", evictions=" + evictionCount + "]";
+	}
+	
+	private void unindex(String fileId, String key) {
+		Set<String> keys = keysByFileId.get(fileId);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				keysByFileId.remove(fileId);
+			}
+		}
+	}
+	
+	private static String key(String fileId, String fields) {
+		return fileId + "|" + fields;
+	}
+	
+	private static class CacheEntry {
+		
+		private final String fileId;
+		private final File file;
+		private final long created;
+		
+		CacheEntry(String fileId, File file, long created) {
+			this.fileId = fileId;
+			this.file = file;
+			this.created = created;
+		}
+	}
+}
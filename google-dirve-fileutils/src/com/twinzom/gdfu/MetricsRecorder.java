@@ -0,0 +1,112 @@
+package com.twinzom.gdfu;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Built-in {@link OperationListener} keeping the counts and latency histograms of each type of operation
+ *
+ * <p>
+ * Recording an operation takes a few atomic increments, no lock. The stats can be read with
+ * {@link #getStats(OperationEvent.Type)}, or through JMX once registered, one MXBean per type of
+ * operation, e.g. <code>com.twinzom.gdfu:type=Operations,name=default,operation=UPLOAD_CHUNK</code>.
+ * </p>
+ *
+ * <pre>
+ * MetricsRecorder metrics = new MetricsRecorder();
+ * metrics.registerMBeans("default");
+ * gdfu.addOperationListener(metrics);
+ * </pre>
+ */
+public class MetricsRecorder implements OperationListener {
+
+	/**
+	 * The JMX domain of the MXBeans
+	 */
+	public static final String JMX_DOMAIN = "com.twinzom.gdfu";
+
+	private final Map<OperationEvent.Type, OperationStats> stats =
+			new EnumMap<OperationEvent.Type, OperationStats>(OperationEvent.Type.class);
+
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	public MetricsRecorder() {
+		for (OperationEvent.Type type : OperationEvent.Type.values()) {
+			stats.put(type, new OperationStats(type));
+		}
+	}
+
+	@Override
+	public void onOperation(OperationEvent event) {
+		stats.get(event.getType()).record(event);
+	}
+
+	/**
+	 * Get the stats of a type of operation
+	 *
+	 * @param type
+	 * @return
+	 */
+	public OperationStats getStats(OperationEvent.Type type) {
+		return stats.get(type);
+	}
+
+	/**
+	 * Start counting again from zero
+	 */
+	public void reset() {
+		for (OperationStats s : stats.values()) {
+			s.reset();
+		}
+	}
+
+	/**
+	 * Register the stats to the platform MBean server
+	 *
+	 * @param name - Tells the recorders apart, e.g. the name of the application
+	 * @throws JMException
+	 */
+	public synchronized void registerMBeans(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (OperationStats s : stats.values()) {
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Operations,name=" + ObjectName.quote(name)
+					+ ",operation=" + s.getType());
+			server.registerMBean(s, objectName);
+			registered.add(objectName);
+		}
+	}
+
+	/**
+	 * Unregister the stats from the platform MBean server
+	 *
+	 * @throws JMException
+	 */
+	public synchronized void unregisterMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName objectName : registered) {
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		}
+		registered.clear();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("MetricsRecorder");
+		for (OperationStats s : stats.values()) {
+			if (s.getCount() > 0) {
+				sb.append("\n  ").append(s);
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,160 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+
+/**
+ * One request to Google Drive, with its retries
+ *
+ * <p>
+ * The latency runs from the first attempt to the response of the last one, including the waits of
+ * the request throttle and the backoffs between attempts. The bytes sent are the content of all
+ * attempts, the bytes received are the content length of the last response.
+ * </p>
+ */
+public class OperationEvent {
+
+	/**
+	 * The kind of a request
+	 */
+	public enum Type {
+		/**
+		 * The start of a resumable upload session
+		 */
+		UPLOAD_SESSION,
+		/**
+		 * A chunk of a resumable upload, or a query of its progress
+		 */
+		UPLOAD_CHUNK,
+		/**
+		 * The content of a file, or a range of it
+		 */
+		DOWNLOAD,
+		/**
+		 * A page of files, changes or Team Drives
+		 */
+		LIST,
+		/**
+		 * The metadata of a file
+		 */
+		METADATA,
+		/**
+		 * A create, update, copy or delete
+		 */
+		MUTATION,
+		/**
+		 * A batch of operations
+		 */
+		BATCH
+	}
+
+	private final Type type;
+
+	private final String method;
+
+	private final int statusCode;
+
+	private final long latencyNanos;
+
+	private final long bytesSent;
+
+	private final long bytesReceived;
+
+	private final int attempts;
+
+	private final IOException error;
+
+	OperationEvent(Type type, String method, int statusCode, long latencyNanos, long bytesSent,
+			long bytesReceived, int attempts, IOException error) {
+		this.type = type;
+		this.method = method;
+		this.statusCode = statusCode;
+		this.latencyNanos = latencyNanos;
+		this.bytesSent = bytesSent;
+		this.bytesReceived = bytesReceived;
+		this.attempts = attempts;
+		this.error = error;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Get the HTTP method, e.g. "GET"
+	 *
+	 * @return
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Get the HTTP status of the last response, 0 if the request failed without response
+	 *
+	 * @return
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Get the latency (in nanoseconds)
+	 *
+	 * @return
+	 */
+	public long getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Get the content length of the response, 0 if it is not known
+	 *
+	 * @return
+	 */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Get the number of attempts, 1 if the request was not retried
+	 *
+	 * @return
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public int getRetries() {
+		return attempts - 1;
+	}
+
+	/**
+	 * Whether the request got a successful response, 308 counts as success for upload chunks
+	 *
+	 * @return
+	 */
+	public boolean isSuccess() {
+		return statusCode >= 200 && statusCode < 300 || statusCode == 308 && type == Type.UPLOAD_CHUNK;
+	}
+
+	/**
+	 * Get the failure of a request without response, or the error thrown for its response
+	 *
+	 * @return The error, or null if there is none
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return "OperationEvent [type=" + type + ", method=" + method + ", status=" + statusCode
+				+ ", latency=" + latencyNanos / 1000000L + "ms, sent=" + bytesSent + ", received=" + bytesReceived
+				+ ", attempts=" + attempts + (error != null ? ", error=" + error.getMessage() : "") + "]";
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.twinzom.gdfu;
+
+/**
+ * Receives the Drive operations made by {@link GDFileUtils}, see {@link OperationEvent}
+ *
+ * <p>
+ * The listeners are called on the thread of the request, once it ended, so they should be quick.
+ * An exception thrown by a listener does not fail the request.
+ * </p>
+ */
+public interface OperationListener {
+
+	/**
+	 * Called once for each request, after its last attempt
+	 *
+	 * @param event
+	 */
+	void onOperation(OperationEvent event);
+
+}
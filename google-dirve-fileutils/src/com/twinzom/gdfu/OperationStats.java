@@ -0,0 +1,169 @@
+package com.twinzom.gdfu;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counts and the latency histogram of one type of operation, see {@link MetricsRecorder}
+ */
+public class OperationStats implements OperationStatsMXBean {
+
+	private final OperationEvent.Type type;
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong errorCount = new AtomicLong();
+
+	private final AtomicLong retryCount = new AtomicLong();
+
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	private final ConcurrentHashMap<Integer, AtomicLong> statusCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	OperationStats(OperationEvent.Type type) {
+		this.type = type;
+	}
+
+	void record(OperationEvent event) {
+
+		count.incrementAndGet();
+		if (!event.isSuccess()) {
+			errorCount.incrementAndGet();
+		}
+		retryCount.addAndGet(event.getRetries());
+		bytesSent.addAndGet(event.getBytesSent());
+		bytesReceived.addAndGet(event.getBytesReceived());
+
+		long latency = event.getLatencyNanos();
+		latencies.record(latency);
+		totalLatencyNanos.addAndGet(latency);
+		long max;
+		while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+			// another thread raised the max, compare again
+		}
+
+		AtomicLong statusCount = statusCounts.get(event.getStatusCode());
+		if (statusCount == null) {
+			AtomicLong created = new AtomicLong();
+			statusCount = statusCounts.putIfAbsent(event.getStatusCode(), created);
+			if (statusCount == null) {
+				statusCount = created;
+			}
+		}
+		statusCount.incrementAndGet();
+	}
+
+	public OperationEvent.Type getType() {
+		return type;
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get the number of requests without a successful response
+	 */
+	@Override
+	public long getErrorCount() {
+		return errorCount.get();
+	}
+
+	@Override
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	@Override
+	public double getMeanLatencyMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : totalLatencyNanos.get() / 1e6 / n;
+	}
+
+	@Override
+	public double getLatency50thPercentileMillis() {
+		return getLatencyPercentileMillis(0.5);
+	}
+
+	@Override
+	public double getLatency90thPercentileMillis() {
+		return getLatencyPercentileMillis(0.9);
+	}
+
+	@Override
+	public double getLatency99thPercentileMillis() {
+		return getLatencyPercentileMillis(0.99);
+	}
+
+	/**
+	 * Get the latency under which given fraction of the requests are, within 12.5%
+	 *
+	 * @param fraction - e.g. 0.999
+	 * @return
+	 */
+	public double getLatencyPercentileMillis(double fraction) {
+		// the bucket bound may be above the greatest value recorded
+		return Math.min(latencies.percentile(fraction) / 1e3, getMaxLatencyMillis());
+	}
+
+	@Override
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos.get() / 1e6;
+	}
+
+	@Override
+	public Map<String, Long> getStatusCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : statusCounts.entrySet()) {
+			counts.put(String.valueOf(entry.getKey()), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	/**
+	 * Start counting again from zero
+	 */
+	@Override
+	public void reset() {
+		count.set(0);
+		errorCount.set(0);
+		retryCount.set(0);
+		bytesSent.set(0);
+		bytesReceived.set(0);
+		totalLatencyNanos.set(0);
+		maxLatencyNanos.set(0);
+		statusCounts.clear();
+		latencies.reset();
+	}
+
+	@Override
+	public String toString() {
+		return type + " [count=" + getCount() + ", errors=" + getErrorCount() + ", retries=" + getRetryCount()
+				+ ", sent=" + getBytesSent() + ", received=" + getBytesReceived()
+				+ String.format(", p50=%.1fms, p99=%.1fms, max=%.1fms", getLatency50thPercentileMillis(),
+						getLatency99thPercentileMillis(), getMaxLatencyMillis())
+				+ ", status=" + getStatusCounts() + "]";
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.twinzom.gdfu;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link OperationStats}
+ */
+public interface OperationStatsMXBean {
+
+	long getCount();
+
+	long getErrorCount();
+
+	long getRetryCount();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	double getMeanLatencyMillis();
+
+	double getLatency50thPercentileMillis();
+
+	double getLatency90thPercentileMillis();
+
+	double getLatency99thPercentileMillis();
+
+	double getMaxLatencyMillis();
+
+	/**
+	 * Get the number of requests by HTTP status, "0" for the requests without response
+	 *
+	 * @return
+	 */
+	Map<String, Long> getStatusCounts();
+
+	void reset();
+
+}
@@ -0,0 +1,198 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Downloads a file as byte ranges over several connections
+ * 
+ * <p>
+ * The local file is pre-allocated to the size of the Drive file, then each segment is 
+ * fetched with an HTTP Range request and written at its offset. A segment that fails is 
+ * retried on its own after the backoff of the {@link RequestThrottle}, starting from the 
+ * last byte that was written.
+ * </p>
+ */
+class ParallelDownload {
+
+	/**
+	 * The size of the buffer used to copy a segment into the file
+	 */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	
+	private static final int HTTP_PARTIAL_CONTENT = 206;
+	
+	private final Drive drive;
+	
+	private final RequestThrottle throttle;
+	
+	private final String fileId;
+	
+	private final long size;
+	
+	private final long segmentSize;
+	
+	private final int parallelism;
+	
+	private final int segmentRetries;
+	
+	/**
+	 * @param drive
+	 * @param throttle - Gives the backoff before a segment is retried
+	 * @param fileId - The file to be downloaded
+	 * @param size - The size of the file
+	 * @param segmentSize - The number of bytes fetched by one Range request
+	 * @param parallelism - The number of segments fetched at the same time
+	 * @param segmentRetries - The number of retries of each segment
+	 */
+	ParallelDownload(Drive drive, RequestThrottle throttle, String fileId, long size, long segmentSize, 
+			int parallelism, int segmentRetries) {
+		this.drive = drive;
+		this.throttle = throttle;
+		this.fileId = fileId;
+		this.size = size;
+		this.segmentSize = segmentSize;
+		this.parallelism = parallelism;
+		this.segmentRetries = segmentRetries;
+	}
+	
+	/**
+	 * Download all segments to given local file
+	 * 
+	 * @param localFile
+	 * @throws IOException
+	 */
+	void downloadTo(java.io.File localFile) throws IOException {
+		
+		RandomAccessFile file = new RandomAccessFile(localFile, "rw");
+		try {
+			file.setLength(size);
+			final FileChannel channel = file.getChannel();
+			
+			ExecutorService executor = Executors.newFixedThreadPool(parallelism, 
+					new DaemonThreadFactory("gdfu-download"));
+			
+			try {
+				List<Future<Void>> segments = new ArrayList<Future<Void>>();
+				for (long start = 0; start < size; start += segmentSize) {
+					final long segmentStart = start;
+					final long segmentEnd = Math.min(start + segmentSize, size);
+					segments.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							downloadSegment(channel, segmentStart, segmentEnd);
+							return null;
+						}
+					}));
+				}
+				
+				for (Future<Void> segment : segments) {
+					try {
+						segment.get();
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof IOException) {
+							throw (IOException) e.getCause();
+						}
+						throw new IOException("Cannot download file " + fileId, e.getCause());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while downloading file " + fileId);
+					}
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+			
+			channel.force(false);
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Fetch the bytes [start, end) and write them at their offset
+	 * 
+	 * @param channel
+	 * @param start
+	 * @param end
+	 * @throws IOException
+	 */
+	private void downloadSegment(FileChannel channel, long start, long end) throws IOException {
+		
+		// moved forward as the bytes are written, so a retry resumes where the failed attempt stopped
+		final long[] position = {start};
+		int attempt = 0;
+		while (position[0] < end) {
+			try {
+				fetchRange(channel, position, end);
+			} catch (IOException e) {
+				if (++attempt > segmentRetries || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				throttle.backoff(attempt, 0);
+			}
+		}
+	}
+	
+	/**
+	 * Fetch the bytes [position, end) and write them at their offset
+	 * 
+	 * @param channel
+	 * @param position - The offset of the next byte, updated as the bytes are written
+	 * @param end
+	 * @throws IOException
+	 */
+	private void fetchRange(FileChannel channel, long[] position, long end) throws IOException {
+		
+		long start = position[0];
+		Drive.Files.Get request = drive.files().get(fileId).setSupportsTeamDrives(true);
+		request.getRequestHeaders().setRange("bytes=" + start + "-" + (end - 1));
+		
+		// waits for the end of a backoff, like every request
+		HttpResponse response = request.executeMedia();
+		boolean completed = false;
+		try {
+			if (response.getStatusCode() != HTTP_PARTIAL_CONTENT && !(start == 0 && end == size)) {
+				throw new IOException("Range request of file " + fileId + " was not honoured: " 
+						+ response.getStatusCode());
+			}
+			
+			InputStream in = response.getContent();
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			while (position[0] < end) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position[0]));
+				if (read < 0) {
+					throw new IOException("Range of file " + fileId + " ended at byte " + position[0] 
+							+ " instead of " + end);
+				}
+				ByteBuffer src = ByteBuffer.wrap(buffer, 0, read);
+				while (src.hasRemaining()) {
+					position[0] += channel.write(src, position[0]);
+				}
+			}
+			completed = true;
+		} finally {
+			if (completed) {
+				// the connection goes back to the pool
+				response.ignore();
+			} else {
+				response.disconnect();
+			}
+		}
+	}
+	
+}
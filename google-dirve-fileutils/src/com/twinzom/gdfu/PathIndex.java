@@ -0,0 +1,361 @@
+package com.twinzom.gdfu;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * In-memory index of folder names to folder ids, used to resolve paths
+ * 
+ * <p>
+ * The index is a trie: each folder knows its name, its parents and its child folders by name. 
+ * It fills itself from the folders seen by listings and metadata requests of {@link GDFileUtils}, 
+ * so that resolving a path only queries the segments that were never seen. Folders that were 
+ * changed through {@link GDFileUtils}, or reported by a running {@link ChangeWatcher}, are 
+ * forgotten. Changes made by others are seen once the entries expired.
+ * </p>
+ * 
+ * <p>
+ * A listing may show only some of the child folders of a name, so the children of a name are 
+ * trusted only after a query for that name in that folder, see {@link #setChildren(String, String, Collection)}. 
+ * Only folders known not to be trashed are indexed, files are always looked up. This class is thread-safe.
+ * </p>
+ * 
+ * <p>
+ * The folders used least recently are evicted once the index holds more than its max size.
+ * </p>
+ */
+public class PathIndex {
+
+	/**
+	 * Default time to live of an entry is 5 minutes
+	 */
+	private static final long DEFAULT_TTL = TimeUnit.MINUTES.toNanos(5);
+	
+	/**
+	 * Default max size is 10000 folders
+	 */
+	private static final int DEFAULT_MAX_SIZE = 10000;
+	
+	/**
+	 * The folders by id, in access order
+	 */
+	private final LinkedHashMap<String, Node> nodes = new LinkedHashMap<String, Node>(16, 0.75f, true);
+	
+	private long ttlNanos = DEFAULT_TTL;
+	
+	private int maxSize = DEFAULT_MAX_SIZE;
+	
+	/**
+	 * Set the time an entry is trusted, e.g. longer when a {@link ChangeWatcher} is running
+	 * 
+	 * @param ttl
+	 * @param unit
+	 */
+	public synchronized void setTtl(long ttl, TimeUnit unit) {
+		this.ttlNanos = unit.toNanos(ttl);
+	}
+	
+	/**
+	 * Set the max number of folders kept, including the parents known only by id
+	 * 
+	 * @param maxSize
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		trim();
+	}
+	
+	/**
+	 * Record a folder, other files are ignored
+	 * 
+	 * @param file - The folder, with id, name, mimeType, parents and trashed
+	 */
+	public synchronized void add(File file) {
+		addFolder(file);
+		trim();
+	}
+	
+	/**
+	 * Record all folders of a listing
+	 * 
+	 * @param files
+	 */
+	public synchronized void addAll(Collection<File> files) {
+		for (File file : files) {
+			addFolder(file);
+		}
+		trim();
+	}
+	
+	private void addFolder(File file) {
+		
+		// a folder listed without the trashed field may be in the trash
+		if (!GDFileUtils.MIME_TYPE_FOLDER.equals(file.getMimeType()) || file.getId() == null 
+				|| file.getName() == null || !Boolean.FALSE.equals(file.getTrashed())) {
+			return;
+		}
+		
+		List<String> parentIds = file.getParents() == null 
+				? Collections.<String>emptyList() : file.getParents();
+		
+		Node node = nodes.get(file.getId());
+		if (node == null || !file.getName().equals(node.name) || !parentIds.equals(node.parentIds)) {
+			// renamed or moved, the children of its old and new name are still all known
+			detach(file.getId());
+			node = node(file.getId());
+			node.name = file.getName();
+			node.parentIds = parentIds;
+		}
+		node.seen = System.nanoTime();
+		
+		for (String parentId : node.parentIds) {
+			node(parentId).addChild(node.name, file.getId());
+		}
+	}
+	
+	/**
+	 * Record all child folders of given name, as found by a query for that name in the folder
+	 * 
+	 * @param folderId
+	 * @param name
+	 * @param files - All the files of that name, not trashed
+	 */
+	public synchronized void setChildren(String folderId, String name, Collection<File> files) {
+		
+		Set<String> ids = new LinkedHashSet<String>();
+		for (File file : files) {
+			ids.add(file.getId());
+		}
+		// the folders that are no longer there were renamed, moved or trashed by others
+		Set<String> known = node(folderId).children.get(name);
+		if (known != null) {
+			for (String childId : new ArrayList<String>(known)) {
+				if (!ids.contains(childId)) {
+					remove(childId);
+				}
+			}
+		}
+		
+		for (File file : files) {
+			addFolder(file);
+		}
+		node(folderId).complete.put(name, System.nanoTime());
+		trim();
+	}
+	
+	/**
+	 * Forget a folder
+	 * 
+	 * <p>
+	 * The children of its name in its parents, and the children of the folders below it, are not 
+	 * trusted anymore. A folder renamed or moved is recorded again with {@link #add(File)}.
+	 * </p>
+	 * 
+	 * @param folderId
+	 */
+	public synchronized void remove(String folderId) {
+		
+		Node node = nodes.get(folderId);
+		if (node == null || node.name == null) {
+			return;
+		}
+		
+		for (String parentId : node.parentIds) {
+			Node parent = nodes.get(parentId);
+			if (parent != null) {
+				parent.complete.remove(node.name);
+			}
+		}
+		detach(folderId);
+		
+		// the folders below were deleted or trashed with it
+		Set<String> visited = new HashSet<String>();
+		Deque<Node> pending = new ArrayDeque<Node>();
+		pending.add(node);
+		while (!pending.isEmpty()) {
+			Node next = pending.poll();
+			next.complete.clear();
+			for (Set<String> childIds : next.children.values()) {
+				for (String childId : childIds) {
+					if (visited.add(childId)) {
+						pending.add(nodes.get(childId));
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Forget everything
+	 */
+	public synchronized void clear() {
+		nodes.clear();
+	}
+	
+	/**
+	 * Get the number of folders known
+	 * 
+	 * @return
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (Node node : nodes.values()) {
+			if (node.name != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Get the child folders of a folder with given name
+	 * 
+	 * @param folderId
+	 * @param name
+	 * @return The ids, possibly empty, or null if the children of that name are not all known
+	 */
+	synchronized Set<String> getChildren(String folderId, String name) {
+		
+		Node node = nodes.get(folderId);
+		if (node == null || !isFresh(node.complete.get(name))) {
+			return null;
+		}
+		
+		Set<String> children = new LinkedHashSet<String>();
+		if (node.children.containsKey(name)) {
+			for (String childId : node.children.get(name)) {
+				if (!isFresh(nodes.get(childId).seen)) {
+					return null;
+				}
+				children.add(childId);
+			}
+		}
+		return children;
+	}
+	
+	/**
+	 * Get a known folder
+	 * 
+	 * @param folderId
+	 * @return The name and parents of the folder, or null if unknown or expired
+	 */
+	synchronized File get(String folderId) {
+		Node node = nodes.get(folderId);
+		if (node == null || node.name == null || !isFresh(node.seen)) {
+			return null;
+		}
+		File file = new File();
+		file.setId(folderId);
+		file.setName(node.name);
+		file.setParents(node.parentIds);
+		file.setMimeType(GDFileUtils.MIME_TYPE_FOLDER);
+		return file;
+	}
+	
+	/**
+	 * Unlink a folder from its parents, its known children still point to it
+	 * 
+	 * @param folderId
+	 */
+	private void detach(String folderId) {
+		
+		Node node = nodes.get(folderId);
+		if (node == null || node.name == null) {
+			return;
+		}
+		
+		for (String parentId : node.parentIds) {
+			Node parent = nodes.get(parentId);
+			if (parent != null) {
+				parent.removeChild(node.name, folderId);
+			}
+		}
+		node.name = null;
+		node.parentIds = Collections.emptyList();
+	}
+	
+	/**
+	 * Evict the folders used least recently until the index fits its max size
+	 */
+	private void trim() {
+		
+		while (nodes.size() > maxSize) {
+			String folderId = nodes.keySet().iterator().next();
+			Node node = nodes.remove(folderId);
+			// the children of its name in its parents are not all known anymore
+			for (String parentId : node.parentIds) {
+				Node parent = nodes.get(parentId);
+				if (parent != null) {
+					parent.removeChild(node.name, folderId);
+					parent.complete.remove(node.name);
+				}
+			}
+		}
+	}
+	
+	private boolean isFresh(Long time) {
+		return time != null && System.nanoTime() - time <= ttlNanos;
+	}
+	
+	private Node node(String folderId) {
+		Node node = nodes.get(folderId);
+		if (node == null) {
+			// a parent that was not seen yet, only its children are known
+			node = new Node();
+			nodes.put(folderId, node);
+		}
+		return node;
+	}
+	
+	//-----------------------------------------------------------------------
+	private static class Node {
+		
+		private String name;
+		
+		private List<String> parentIds = Collections.emptyList();
+		
+		/**
+		 * The time (System.nanoTime) the folder was seen
+		 */
+		private Long seen;
+		
+		private final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+		
+		/**
+		 * The time (System.nanoTime) all children of a name were found, by name
+		 */
+		private final Map<String, Long> complete = new HashMap<String, Long>();
+		
+		void addChild(String name, String id) {
+			Set<String> ids = children.get(name);
+			if (ids == null) {
+				ids = new LinkedHashSet<String>();
+				children.put(name, ids);
+			}
+			ids.add(id);
+		}
+		
+		void removeChild(String name, String id) {
+			Set<String> ids = children.get(name);
+			if (ids != null) {
+				ids.remove(id);
+				if (ids.isEmpty()) {
+					children.remove(name);
+				}
+			}
+		}
+	}
+}
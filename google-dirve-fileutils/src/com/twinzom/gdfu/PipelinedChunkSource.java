@@ -0,0 +1,131 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads chunks ahead of the uploader on a background thread
+ * 
+ * <p>
+ * While chunk k is being sent, the reader thread already fetches chunk k+1 (and more, 
+ * up to the number of buffers of the wrapped source), so that disk and network are busy 
+ * at the same time.
+ * </p>
+ */
+class PipelinedChunkSource implements ChunkSource {
+
+	/**
+	 * Marks the end of the read-ahead queue after a failure
+	 */
+	private static final Chunk FAILED = new Chunk.BufferChunk(-1, ByteBuffer.allocate(0), 0, true, null);
+	
+	private final ChunkSource source;
+	
+	private final BlockingQueue<Chunk> readyChunks;
+	
+	private final Thread reader;
+	
+	/**
+	 * The chunk size the reader thread should ask for
+	 */
+	private volatile int sizeHint;
+	
+	private volatile IOException failure;
+	
+	private boolean finished = false;
+	
+	/**
+	 * @param source - The source to be read ahead
+	 * @param depth - The maximum number of chunks to be read ahead
+	 * @param sizeHint - The size of the first chunks
+	 */
+	PipelinedChunkSource(ChunkSource source, int depth, int sizeHint) {
+		this.source = source;
+		this.sizeHint = sizeHint;
+		// one more slot for the FAILED marker
+		this.readyChunks = new ArrayBlockingQueue<Chunk>(depth + 1);
+		this.reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAhead();
+			}
+		}, "gdfu-upload-reader");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+	
+	@Override
+	public long getLength() {
+		return source.getLength();
+	}
+	
+	@Override
+	public Chunk nextChunk(int size) throws IOException {
+		
+		if (finished) {
+			throw new IllegalStateException("The last chunk was already read");
+		}
+		
+		sizeHint = size;
+		
+		Chunk chunk;
+		try {
+			chunk = readyChunks.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the next chunk");
+		}
+		
+		if (chunk == FAILED) {
+			finished = true;
+			throw failure;
+		}
+		
+		finished = chunk.isLast();
+		return chunk;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		reader.interrupt();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		Chunk chunk;
+		while ((chunk = readyChunks.poll()) != null) {
+			chunk.close();
+		}
+		
+		source.close();
+	}
+	
+	private void readAhead() {
+		try {
+			Chunk chunk;
+			do {
+				chunk = source.nextChunk(sizeHint);
+				try {
+					readyChunks.put(chunk);
+				} catch (InterruptedException e) {
+					chunk.close();
+					return;
+				}
+			} while (!chunk.isLast());
+		} catch (InterruptedIOException e) {
+			// closed while waiting for a buffer
+		} catch (IOException e) {
+			failure = e;
+			readyChunks.offer(FAILED);
+		} catch (RuntimeException e) {
+			failure = new IOException("Failed to read ahead the next chunk", e);
+			readyChunks.offer(FAILED);
+		}
+	}
+	
+}
@@ -0,0 +1,198 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+
+/**
+ * Reports the requests of the Google API client to the {@link OperationListener}s
+ *
+ * <p>
+ * The hooks of a request are wrapped by a {@link Trace}, which times the attempts and reports
+ * the request once its last response came, or its last attempt failed. Requests are not traced
+ * while no listener was added.
+ * </p>
+ */
+class RequestMetrics {
+
+	private static final String UPLOAD_PATH = "/upload/";
+
+	private static final String BATCH_PATH = "/batch";
+
+	private final CopyOnWriteArrayList<OperationListener> listeners = new CopyOnWriteArrayList<OperationListener>();
+
+	void addListener(OperationListener listener) {
+		listeners.add(listener);
+	}
+
+	void removeListener(OperationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Trace a request, after its other hooks were set
+	 *
+	 * @param request
+	 */
+	void initialize(HttpRequest request) {
+
+		if (listeners.isEmpty()) {
+			return;
+		}
+
+		final Trace trace = new Trace(request.getInterceptor(), request.getResponseInterceptor());
+		final HttpUnsuccessfulResponseHandler responseHandler = request.getUnsuccessfulResponseHandler();
+		final HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+
+		request.setInterceptor(trace);
+		request.setResponseInterceptor(trace);
+
+		if (responseHandler != null) {
+			request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+				@Override
+				public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+					try {
+						return responseHandler.handleResponse(request, response, supportsRetry);
+					} catch (IOException e) {
+						// the response interceptor is not called when the handler throws
+						trace.finish(request, response, e);
+						throw e;
+					}
+				}
+			});
+		}
+
+		if (ioExceptionHandler != null) {
+			request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+				@Override
+				public boolean handleIOException(HttpRequest request, boolean supportsRetry) throws IOException {
+					boolean retry = ioExceptionHandler.handleIOException(request, supportsRetry);
+					if (!retry) {
+						trace.finish(request, null, null);
+					}
+					return retry;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Report a request that failed without response, when its handlers were replaced after it was traced
+	 *
+	 * @param request
+	 * @param e
+	 */
+	static void failed(HttpRequest request, IOException e) {
+		if (request.getInterceptor() instanceof Trace) {
+			((Trace) request.getInterceptor()).finish(request, null, e);
+		}
+	}
+
+	static OperationEvent.Type classify(HttpRequest request) {
+
+		GenericUrl url = request.getUrl();
+		String path = url.getRawPath() != null ? url.getRawPath() : "";
+		String method = request.getRequestMethod();
+
+		if (path.startsWith(UPLOAD_PATH)) {
+			return url.getFirst("upload_id") != null ? OperationEvent.Type.UPLOAD_CHUNK : OperationEvent.Type.UPLOAD_SESSION;
+		}
+		if (path.startsWith(BATCH_PATH)) {
+			return OperationEvent.Type.BATCH;
+		}
+		if (!"GET".equals(method)) {
+			return OperationEvent.Type.MUTATION;
+		}
+		if ("media".equals(url.getFirst("alt"))) {
+			return OperationEvent.Type.DOWNLOAD;
+		}
+		if (path.endsWith("/files") || path.endsWith("/changes") || path.endsWith("/teamdrives")) {
+			return OperationEvent.Type.LIST;
+		}
+		return OperationEvent.Type.METADATA;
+	}
+
+	//-----------------------------------------------------------------------
+	/**
+	 * The timing of one request, through all its attempts
+	 */
+	class Trace implements HttpExecuteInterceptor, HttpResponseInterceptor {
+
+		private final HttpExecuteInterceptor interceptor;
+
+		private final HttpResponseInterceptor responseInterceptor;
+
+		private long start;
+
+		private int attempts = 0;
+
+		private long bytesSent = 0;
+
+		private boolean finished = false;
+
+		Trace(HttpExecuteInterceptor interceptor, HttpResponseInterceptor responseInterceptor) {
+			this.interceptor = interceptor;
+			this.responseInterceptor = responseInterceptor;
+		}
+
+		/**
+		 * Called before each attempt
+		 */
+		@Override
+		public void intercept(HttpRequest request) throws IOException {
+			if (attempts++ == 0) {
+				start = System.nanoTime();
+			}
+			HttpContent content = request.getContent();
+			if (content != null && content.getLength() > 0) {
+				bytesSent += content.getLength();
+			}
+			if (interceptor != null) {
+				interceptor.intercept(request);
+			}
+		}
+
+		/**
+		 * Called for the response of the last attempt
+		 */
+		@Override
+		public void interceptResponse(HttpResponse response) throws IOException {
+			finish(response.getRequest(), response, null);
+			if (responseInterceptor != null) {
+				responseInterceptor.interceptResponse(response);
+			}
+		}
+
+		void finish(HttpRequest request, HttpResponse response, IOException error) {
+
+			if (finished) {
+				return;
+			}
+			finished = true;
+
+			long latency = attempts > 0 ? System.nanoTime() - start : 0;
+			Long bytesReceived = response != null ? response.getHeaders().getContentLength() : null;
+
+			OperationEvent event = new OperationEvent(classify(request), request.getRequestMethod(),
+					response != null ? response.getStatusCode() : 0, latency, bytesSent,
+					bytesReceived != null ? bytesReceived : 0, attempts, error);
+
+			for (OperationListener listener : listeners) {
+				try {
+					listener.onOperation(event);
+				} catch (RuntimeException e) {
+					// the metrics must not fail the request
+				}
+			}
+		}
+	}
+
+}
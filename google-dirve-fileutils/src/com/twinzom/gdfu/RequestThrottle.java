@@ -0,0 +1,523 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.json.JsonFactory;
+
+/**
+ * Rate limit and retry policy of all requests sent to Google Drive
+ *
+ * <p>
+ * Each request takes a permit from a token bucket first, which is shared by all threads using
+ * the throttle. Requests rejected for rate limits (429, or 403 with reason
+ * <code>rateLimitExceeded</code> or <code>userRateLimitExceeded</code>), server errors (5xx) and
+ * connection failures are retried after a jittered exponential backoff, or after the time given
+ * by the <code>Retry-After</code> header when it is longer.
+ * </p>
+ *
+ * <p>
+ * The backoff is global: while it lasts, no thread sends a new request. When the server pushes
+ * back, the whole load is smoothed instead of every thread failing on its own.
+ * </p>
+ *
+ * <p>
+ * The policy can be changed by overriding {@link #isRetriable(int, String)} and
+ * {@link #getBackoff(int, long)}. One throttle may be shared by several {@link GDFileUtils}
+ * working for the same user, since the quota of Google Drive is counted per user.
+ * </p>
+ */
+public class RequestThrottle {
+
+	/**
+	 * Default maximum number of attempts of a request
+	 */
+	private static final int DEFAULT_MAX_ATTEMPTS = 6;
+
+	/**
+	 * Default backoff before the first retry is 1 second
+	 */
+	private static final long DEFAULT_INITIAL_BACKOFF = 1000;
+
+	/**
+	 * Default upper bound of a backoff is 64 seconds
+	 */
+	private static final long DEFAULT_MAX_BACKOFF = 64 * 1000;
+
+	/**
+	 * HTTP status code Too Many Requests
+	 */
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * The permits added to the bucket per second, 0 for no limit
+	 */
+	private final double permitsPerSecond;
+
+	/**
+	 * The maximum number of permits in the bucket
+	 */
+	private final int burst;
+
+	private double permits;
+
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * The time (System.nanoTime) until when no request is sent
+	 */
+	private long pausedUntil = System.nanoTime();
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+
+	private long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+	private final AtomicLong requestCount = new AtomicLong();
+
+	private final AtomicLong waitCount = new AtomicLong();
+
+	private final AtomicLong retryCount = new AtomicLong();
+
+	private final AtomicLong failureCount = new AtomicLong();
+
+	private final AtomicLong backoffTime = new AtomicLong();
+
+	/**
+	 * Retry without rate limit
+	 */
+	public RequestThrottle() {
+		this(0, 1);
+	}
+
+	/**
+	 * @param permitsPerSecond - The requests allowed per second on average, 0 for no limit
+	 * @param burst - The requests allowed at once after an idle time
+	 */
+	public RequestThrottle(double permitsPerSecond, int burst) {
+		if (permitsPerSecond < 0 || burst < 1) {
+			throw new IllegalArgumentException("Invalid rate " + permitsPerSecond + "/s, burst " + burst);
+		}
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.permits = burst;
+	}
+
+	/**
+	 * Get the maximum number of attempts of a request
+	 *
+	 * @return
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Set the maximum number of attempts of a request, 1 to disable retries
+	 *
+	 * @param maxAttempts
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("Max attempts must be at least 1");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Set the backoff before the first retry (in milliseconds), it is doubled for each retry
+	 *
+	 * @param initialBackoff
+	 */
+	public void setInitialBackoff(long initialBackoff) {
+		this.initialBackoff = initialBackoff;
+	}
+
+	/**
+	 * Set the upper bound of a backoff (in milliseconds)
+	 *
+	 * @param maxBackoff
+	 */
+	public void setMaxBackoff(long maxBackoff) {
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Wait for a permit to send a request
+	 *
+	 * @throws InterruptedIOException
+	 */
+	public void acquire() throws InterruptedIOException {
+		acquire(1);
+	}
+
+	/**
+	 * Wait for permits to send requests, e.g. for the calls of a batch request
+	 *
+	 * <p>
+	 * Waits first for the end of a global backoff.
+	 * </p>
+	 *
+	 * @param count
+	 * @throws InterruptedIOException
+	 */
+	public void acquire(int count) throws InterruptedIOException {
+
+		requestCount.addAndGet(count);
+		boolean waited = false;
+
+		while (true) {
+			long wait;
+			synchronized (this) {
+				long now = System.nanoTime();
+				wait = pausedUntil - now;
+				if (wait <= 0) {
+					if (permitsPerSecond == 0) {
+						break;
+					}
+					permits = Math.min(burst, permits + (now - lastRefill) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+					lastRefill = now;
+					// more permits than the burst are taken in advance
+					if (permits >= Math.min(count, burst)) {
+						permits -= count;
+						break;
+					}
+					wait = (long) ((Math.min(count, burst) - permits) * TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+				}
+			}
+
+			if (!waited) {
+				waitCount.incrementAndGet();
+				waited = true;
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(Math.max(wait, 1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for request rate limit");
+			}
+		}
+	}
+
+	/**
+	 * Hold all requests for the backoff of a failed attempt
+	 *
+	 * @param attempt - The number of the failed attempt, starting from 1
+	 * @param retryAfter - The delay asked by the server (in milliseconds), 0 if none
+	 */
+	public void backoff(int attempt, long retryAfter) {
+
+		long delay = getBackoff(attempt, retryAfter);
+		retryCount.incrementAndGet();
+		backoffTime.addAndGet(delay);
+
+		synchronized (this) {
+			pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+		}
+	}
+
+	/**
+	 * Get the backoff after a failed attempt (in milliseconds)
+	 *
+	 * <p>
+	 * Picked at random between the half and the whole of the exponential backoff, so that
+	 * the threads failed together do not retry together.
+	 * </p>
+	 *
+	 * @param attempt - The number of the failed attempt, starting from 1
+	 * @param retryAfter - The delay asked by the server (in milliseconds), 0 if none
+	 * @return
+	 */
+	public long getBackoff(int attempt, long retryAfter) {
+		long backoff = Math.min(maxBackoff, initialBackoff << Math.min(attempt - 1, 30));
+		long jittered = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		return Math.max(jittered, retryAfter);
+	}
+
+	/**
+	 * Rate limits and server errors are worth another try, other errors are not
+	 *
+	 * @param statusCode
+	 * @param reason - The reason of the error from Google Drive, may be null
+	 * @return
+	 */
+	public boolean isRetriable(int statusCode, String reason) {
+
+		if (statusCode == HTTP_TOO_MANY_REQUESTS || statusCode >= 500) {
+			return true;
+		}
+
+		return statusCode == HttpURLConnection.HTTP_FORBIDDEN
+				&& ("userRateLimitExceeded".equals(reason) || "rateLimitExceeded".equals(reason));
+	}
+
+	/**
+	 * @see #isRetriable(int, String)
+	 *
+	 * @param error
+	 * @return
+	 */
+	public boolean isRetriable(GoogleJsonError error) {
+
+		if (error.getErrors() != null) {
+			for (GoogleJsonError.ErrorInfo info : error.getErrors()) {
+				if (isRetriable(error.getCode(), info.getReason())) {
+					return true;
+				}
+			}
+		}
+
+		return isRetriable(error.getCode(), null);
+	}
+
+	/**
+	 * Get the number of requests sent, including the retries
+	 *
+	 * @return
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Get the number of requests that waited for the rate limit or a backoff
+	 *
+	 * @return
+	 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	/**
+	 * Get the number of retries
+	 *
+	 * @return
+	 */
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	/**
+	 * Get the number of requests that failed after all attempts
+	 *
+	 * @return
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * Get the total time of backoffs (in milliseconds)
+	 *
+	 * @return
+	 */
+	public long getBackoffTime() {
+		return backoffTime.get();
+	}
+
+	@Override
+	public String toString() {
+		return "requests: " + requestCount + ", waits: " + waitCount + ", retries: " + retryCount
+				+ ", failures: " + failureCount + ", backoff: " + backoffTime + " ms";
+	}
+
+	/**
+	 * Record a request that failed after all attempts
+	 */
+	void recordFailure() {
+		failureCount.incrementAndGet();
+	}
+
+	/**
+	 * Set up a request of the Google API client
+	 *
+	 * <p>
+	 * The handlers set by given initializer, e.g. the refresh of an expired access token,
+	 * are called before the ones of this throttle.
+	 * </p>
+	 *
+	 * <p>
+	 * A 403 that is not worth another try is thrown by the handler, since its content was read
+	 * to find the reason. So the calls of a batch request must not be set up here, the batch
+	 * would stop at the first call rejected, see {@link BulkOperations}.
+	 * </p>
+	 *
+	 * @param request
+	 * @param initializer - The initializer of the credential or of the credential pool, may be null
+	 * @param jsonFactory - The factory parsing the errors
+	 * @throws IOException
+	 */
+	void initialize(HttpRequest request, HttpRequestInitializer initializer, final JsonFactory jsonFactory) throws IOException {
+
+		if (initializer != null) {
+			initializer.initialize(request);
+		}
+
+		final HttpExecuteInterceptor interceptor = request.getInterceptor();
+		final HttpUnsuccessfulResponseHandler responseHandler = request.getUnsuccessfulResponseHandler();
+		final HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+		final int[] attempt = {0};
+
+		request.setNumberOfRetries(Math.max(request.getNumberOfRetries(), maxAttempts - 1));
+
+		// called before each attempt
+		request.setInterceptor(new HttpExecuteInterceptor() {
+			@Override
+			public void intercept(HttpRequest request) throws IOException {
+				attempt[0]++;
+				acquire();
+				if (interceptor != null) {
+					interceptor.intercept(request);
+				}
+			}
+		});
+
+		request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+			@Override
+			public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+
+				if (responseHandler != null && responseHandler.handleResponse(request, response, supportsRetry)) {
+					return true;
+				}
+
+				int statusCode = response.getStatusCode();
+				if (statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
+					if (!supportsRetry || attempt[0] >= maxAttempts) {
+						return false;
+					}
+					// the reason is in the content, which cannot be read twice
+					String content = response.parseAsString();
+					GoogleJsonError error = parseError(content, jsonFactory);
+					if (error == null || !isRetriable(error)) {
+						throw new GoogleJsonResponseException(
+								new HttpResponseException.Builder(statusCode, response.getStatusMessage(), response.getHeaders())
+										.setContent(content)
+										.setMessage(HttpResponseException.computeMessageBuffer(response)
+												.append('\n').append(content).toString()),
+								error);
+					}
+				} else if (!isRetriable(statusCode, null)) {
+					return false;
+				}
+
+				if (!supportsRetry || attempt[0] >= maxAttempts) {
+					recordFailure();
+					return false;
+				}
+				long retryAfter = parseRetryAfter(response.getHeaders().getFirstHeaderStringValue("Retry-After"));
+				// the quota is per user, another credential of the pool may still have some
+				if ((statusCode == HTTP_TOO_MANY_REQUESTS || statusCode == HttpURLConnection.HTTP_FORBIDDEN)
+						&& interceptor instanceof CredentialPool.Lease
+						&& ((CredentialPool.Lease) interceptor).setAside(retryAfter)) {
+					retryCount.incrementAndGet();
+					return true;
+				}
+				backoff(attempt[0], retryAfter);
+				return true;
+			}
+		});
+
+		request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+			@Override
+			public boolean handleIOException(HttpRequest request, boolean supportsRetry) throws IOException {
+
+				if (ioExceptionHandler != null && ioExceptionHandler.handleIOException(request, supportsRetry)) {
+					return true;
+				}
+
+				if (!supportsRetry || attempt[0] >= maxAttempts || Thread.currentThread().isInterrupted()) {
+					recordFailure();
+					return false;
+				}
+				backoff(attempt[0], 0);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Tell whether a response that was not handled by the retries of the request is worth another try
+	 *
+	 * <p>
+	 * The error content is read only for 403, to find the reason.
+	 * </p>
+	 *
+	 * @param response
+	 * @param jsonFactory
+	 * @return
+	 * @throws IOException
+	 */
+	boolean isRetriable(HttpResponse response, JsonFactory jsonFactory) throws IOException {
+
+		int statusCode = response.getStatusCode();
+		if (statusCode != HttpURLConnection.HTTP_FORBIDDEN) {
+			return isRetriable(statusCode, null);
+		}
+
+		GoogleJsonError error = parseError(response.parseAsString(), jsonFactory);
+
+		return error != null && isRetriable(error);
+	}
+
+	/**
+	 * Parse the error of a JSON response
+	 *
+	 * @param content
+	 * @param jsonFactory
+	 * @return The error, or null if the content is not a JSON error
+	 */
+	static GoogleJsonError parseError(String content, JsonFactory jsonFactory) {
+		try {
+			GoogleJsonErrorContainer container = jsonFactory.createJsonParser(content)
+															.parseAndClose(GoogleJsonErrorContainer.class);
+			return container != null ? container.getError() : null;
+		} catch (IOException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parse the Retry-After header, given in seconds or as an HTTP date
+	 *
+	 * @param retryAfter
+	 * @return The delay (in milliseconds), 0 if none
+	 */
+	static long parseRetryAfter(String retryAfter) {
+
+		if (retryAfter == null || retryAfter.trim().isEmpty()) {
+			return 0;
+		}
+
+		try {
+			return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+		} catch (NumberFormatException e) {
+			// not a number of seconds
+		}
+
+		try {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			return Math.max(0, format.parse(retryAfter.trim()).getTime() - System.currentTimeMillis());
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+
+}
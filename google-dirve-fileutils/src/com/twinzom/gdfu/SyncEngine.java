@@ -0,0 +1,599 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Keeps a local directory tree and a Google Drive folder tree in sync
+ * 
+ * <p>
+ * Both trees are compared by size, and by MD5 checksum when the sizes are equal, so unchanged 
+ * files are never transferred again. The local checksums are only computed for those files. 
+ * The result is a {@link SyncPlan} of folder creations, moves, uploads, downloads and deletes, 
+ * which can be printed as a dry run and then executed with bounded parallelism.
+ * </p>
+ * 
+ * <p>
+ * In {@link Direction#UPLOAD} and {@link Direction#DOWNLOAD} mode the target becomes a mirror of 
+ * the source: changed files are replaced, and with deletes enabled the extra files of the target 
+ * are deleted. An extra file with the same content as a missing one is moved instead. In 
+ * {@link Direction#BOTH} mode missing files are copied both ways and, when a file differs, the 
+ * more recently modified side wins. Nothing is deleted in this mode, since a file deleted on one 
+ * side cannot be told from a file created on the other side.
+ * </p>
+ * 
+ * <p>
+ * Google Docs files have no binary content, they are left out.
+ * </p>
+ */
+public class SyncEngine {
+
+	/**
+	 * The direction of a sync
+	 */
+	public enum Direction {
+		UPLOAD, DOWNLOAD, BOTH
+	}
+	
+	private static final int DEFAULT_PARALLELISM = 4;
+	
+	private static final String GOOGLE_APPS_MIME_TYPE_PREFIX = "application/vnd.google-apps.";
+	
+	private static final java.util.List<String> SYNC_FIELDS = 
+			Arrays.asList("id", "name", "mimeType", "parents", "size", "md5Checksum", "modifiedTime");
+	
+	private final Drive drive;
+	
+	private final GDFileUtils gdfu;
+	
+	private Direction direction = Direction.UPLOAD;
+	
+	private boolean delete = false;
+	
+	private int parallelism = DEFAULT_PARALLELISM;
+	
+	SyncEngine(Drive drive, GDFileUtils gdfu) {
+		this.drive = drive;
+		this.gdfu = gdfu;
+	}
+	
+	/**
+	 * Set the direction of sync, default is upload
+	 * 
+	 * @param direction
+	 * @return
+	 */
+	public SyncEngine setDirection(Direction direction) {
+		this.direction = direction;
+		return this;
+	}
+	
+	/**
+	 * Enable or disable deleting the extra files of the target, it is ignored in two-way sync
+	 * 
+	 * @param delete
+	 * @return
+	 */
+	public SyncEngine setDelete(boolean delete) {
+		this.delete = delete;
+		return this;
+	}
+	
+	/**
+	 * Set the number of files transferred at the same time
+	 * 
+	 * @param parallelism
+	 * @return
+	 */
+	public SyncEngine setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+	
+	/**
+	 * Compute the plan and execute it
+	 * 
+	 * @param localDir
+	 * @param folderId
+	 * @return The plan executed
+	 * @throws IOException
+	 */
+	public SyncPlan sync(java.io.File localDir, String folderId) throws IOException {
+		SyncPlan plan = plan(localDir, folderId);
+		execute(plan);
+		return plan;
+	}
+	
+	/**
+	 * Compare the trees and compute the actions, nothing is changed
+	 * 
+	 * @param localDir
+	 * @param folderId
+	 * @return
+	 * @throws IOException
+	 */
+	public SyncPlan plan(java.io.File localDir, String folderId) throws IOException {
+		
+		SyncPlan plan = new SyncPlan(localDir, folderId);
+		
+		final Map<String, File> remoteFiles = new TreeMap<String, File>();
+		final Set<String> remoteFolders = new TreeSet<String>();
+		listRemote(folderId, plan, remoteFiles, remoteFolders);
+		
+		Map<String, java.io.File> localFiles = new TreeMap<String, java.io.File>();
+		Set<String> localFolders = new TreeSet<String>();
+		listLocal(localDir, localFiles, localFolders);
+		
+		boolean toRemote = direction != Direction.DOWNLOAD;
+		boolean toLocal = direction != Direction.UPLOAD;
+		boolean mirrorDelete = delete && direction != Direction.BOTH;
+		
+		// folders
+		List<String> deletes = new ArrayList<String>();
+		for (String path : localFolders) {
+			if (!remoteFolders.contains(path)) {
+				if (toRemote) {
+					plan.add(new SyncPlan.Action(SyncPlan.ActionType.CREATE_REMOTE_FOLDER, path, null, null, 0, 0));
+				} else if (mirrorDelete) {
+					deletes.add(path);
+				}
+			}
+		}
+		for (String path : remoteFolders) {
+			if (!localFolders.contains(path)) {
+				if (toLocal) {
+					plan.add(new SyncPlan.Action(SyncPlan.ActionType.CREATE_LOCAL_FOLDER, path, null, null, 0, 0));
+				} else if (mirrorDelete) {
+					deletes.add(path);
+				}
+			}
+		}
+		
+		// files on both sides
+		Map<String, java.io.File> localOnly = new LinkedHashMap<String, java.io.File>(localFiles);
+		Map<String, File> remoteOnly = new LinkedHashMap<String, File>();
+		for (Map.Entry<String, File> entry : remoteFiles.entrySet()) {
+			java.io.File localFile = localOnly.remove(entry.getKey());
+			if (localFile == null) {
+				remoteOnly.put(entry.getKey(), entry.getValue());
+			} else if (!sameContent(localFile, entry.getValue())) {
+				planChanged(plan, entry.getKey(), localFile, entry.getValue());
+			}
+		}
+		
+		// files on one side, moved files first
+		if (mirrorDelete) {
+			planMoves(plan, localOnly, remoteOnly);
+		}
+		for (Map.Entry<String, java.io.File> entry : localOnly.entrySet()) {
+			if (toRemote) {
+				plan.add(new SyncPlan.Action(SyncPlan.ActionType.UPLOAD, entry.getKey(), null, null, 
+						entry.getValue().length(), 0));
+			} else if (mirrorDelete) {
+				deletes.add(entry.getKey());
+			}
+		}
+		for (Map.Entry<String, File> entry : remoteOnly.entrySet()) {
+			if (toLocal) {
+				plan.add(new SyncPlan.Action(SyncPlan.ActionType.DOWNLOAD, entry.getKey(), null, entry.getValue().getId(), 
+						size(entry.getValue()), modifiedTime(entry.getValue())));
+			} else if (mirrorDelete) {
+				deletes.add(entry.getKey());
+			}
+		}
+		
+		// deleting a folder deletes its content, a folder is sorted before its content
+		Collections.sort(deletes);
+		Set<String> deletedFolders = new HashSet<String>();
+		for (String path : deletes) {
+			if (isInFolders(path, deletedFolders)) {
+				continue;
+			}
+			if (direction == Direction.UPLOAD) {
+				File remote = remoteFiles.get(path);
+				String fileId = remote != null ? remote.getId() : plan.remoteFolderIds.get(path);
+				plan.add(new SyncPlan.Action(SyncPlan.ActionType.DELETE_REMOTE, path, null, fileId, 0, 0));
+			} else {
+				plan.add(new SyncPlan.Action(SyncPlan.ActionType.DELETE_LOCAL, path, null, null, 0, 0));
+			}
+			if (remoteFolders.contains(path) || localFolders.contains(path)) {
+				deletedFolders.add(path);
+			}
+		}
+		
+		return plan;
+	}
+	
+	/**
+	 * Tell whether a folder of given set contains a path, at any depth
+	 * 
+	 * <p>
+	 * Each ancestor is looked up, sibling names such as "a-x" or "a.b" may be sorted between 
+	 * the folder "a" and its content "a/c".
+	 * </p>
+	 * 
+	 * @param path
+	 * @param folders
+	 * @return
+	 */
+	private static boolean isInFolders(String path, Set<String> folders) {
+		for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+			if (folders.contains(path.substring(0, i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Execute the actions of a plan
+	 * 
+	 * <p>
+	 * Folders are created first, then files are moved, then transferred in parallel, then deleted. 
+	 * A failed action does not stop the others, the failures are thrown together at the end.
+	 * </p>
+	 * 
+	 * @param plan
+	 * @throws IOException
+	 */
+	public void execute(SyncPlan plan) throws IOException {
+		
+		List<IOException> failures = new ArrayList<IOException>();
+		List<SyncPlan.Action> transfers = new ArrayList<SyncPlan.Action>();
+		List<SyncPlan.Action> deletes = new ArrayList<SyncPlan.Action>();
+		
+		// paths are sorted, parents are created before their children
+		for (SyncPlan.Action action : plan.getActions()) {
+			try {
+				switch (action.getType()) {
+				case CREATE_REMOTE_FOLDER:
+					File folder = gdfu.mkFolder(name(action.getPath()), parentId(plan, action.getPath()));
+					plan.remoteFolderIds.put(action.getPath(), folder.getId());
+					break;
+				case CREATE_LOCAL_FOLDER:
+					Files.createDirectories(local(plan, action.getPath()).toPath());
+					break;
+				default:
+					break;
+				}
+			} catch (IOException e) {
+				failures.add(e);
+			}
+		}
+		
+		for (SyncPlan.Action action : plan.getActions()) {
+			try {
+				switch (action.getType()) {
+				case MOVE_REMOTE:
+					moveRemote(plan, action);
+					break;
+				case MOVE_LOCAL:
+					java.io.File target = local(plan, action.getPath());
+					Files.createDirectories(target.getParentFile().toPath());
+					Files.move(local(plan, action.getFromPath()).toPath(), target.toPath());
+					break;
+				case UPLOAD:
+				case UPDATE_REMOTE:
+				case DOWNLOAD:
+					transfers.add(action);
+					break;
+				case DELETE_REMOTE:
+				case DELETE_LOCAL:
+					deletes.add(action);
+					break;
+				default:
+					break;
+				}
+			} catch (IOException e) {
+				failures.add(e);
+			}
+		}
+		
+		transfer(plan, transfers, failures);
+		delete(plan, deletes, failures);
+		
+		if (!failures.isEmpty()) {
+			IOException failure = new IOException(failures.size() + " sync actions failed, first: " 
+					+ failures.get(0).getMessage(), failures.get(0));
+			for (int i=1; i<failures.size(); i++) {
+				failure.addSuppressed(failures.get(i));
+			}
+			throw failure;
+		}
+	}
+	
+	private void transfer(final SyncPlan plan, List<SyncPlan.Action> transfers, List<IOException> failures) throws IOException {
+		
+		if (transfers.isEmpty()) {
+			return;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("gdfu-sync"));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (final SyncPlan.Action action : transfers) {
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						transfer(plan, action);
+						return null;
+					}
+				}));
+			}
+			
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					failures.add(e.getCause() instanceof IOException ? (IOException) e.getCause() 
+							: new IOException(e.getCause()));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while syncing " + plan.getLocalRoot());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private void transfer(SyncPlan plan, SyncPlan.Action action) throws IOException {
+		
+		java.io.File localFile = local(plan, action.getPath());
+		
+		switch (action.getType()) {
+		case UPLOAD:
+			gdfu.upload(null, localFile, Collections.singletonList(parentId(plan, action.getPath())));
+			break;
+		case UPDATE_REMOTE:
+			gdfu.update(action.getFileId(), localFile);
+			break;
+		case DOWNLOAD:
+			gdfu.download(action.getFileId(), localFile);
+			if (action.getModifiedTime() > 0) {
+				localFile.setLastModified(action.getModifiedTime());
+			}
+			break;
+		default:
+			break;
+		}
+	}
+	
+	private void delete(SyncPlan plan, List<SyncPlan.Action> deletes, List<IOException> failures) throws IOException {
+		
+		BulkOperations bulk = gdfu.newBulkOperations();
+		
+		for (SyncPlan.Action action : deletes) {
+			if (action.getType() == SyncPlan.ActionType.DELETE_REMOTE) {
+				bulk.delete(action.getFileId());
+			} else {
+				try {
+					deleteLocal(local(plan, action.getPath()).toPath());
+				} catch (IOException e) {
+					failures.add(e);
+				}
+			}
+		}
+		
+		if (bulk.size() > 0) {
+			for (BulkOperations.Result result : bulk.execute()) {
+				if (!result.isSuccess()) {
+					failures.add(new IOException("Cannot delete file " + result.getFileId() + ": " 
+							+ (result.getError() != null ? result.getError().getMessage() : "unknown error")));
+				}
+			}
+		}
+	}
+	
+	private void moveRemote(SyncPlan plan, SyncPlan.Action action) throws IOException {
+		
+		File content = new File();
+		content.setName(name(action.getPath()));
+		
+		Drive.Files.Update update = drive.files().update(action.getFileId(), content)
+												 .setFields(Util.listToString(GDFileUtils.PATH_FIELDS, ",", ""))
+												 .setSupportsTeamDrives(true);
+		String fromParentId = parentId(plan, action.getFromPath());
+		String toParentId = parentId(plan, action.getPath());
+		if (!fromParentId.equals(toParentId)) {
+			update.setAddParents(toParentId)
+				  .setRemoveParents(fromParentId);
+		}
+		gdfu.invalidate(update.execute());
+	}
+	
+	private void listRemote(String folderId, final SyncPlan plan, final Map<String, File> remoteFiles, 
+			final Set<String> remoteFolders) throws IOException {
+		
+		gdfu.newFolderWalker()
+			.setQ("trashed != true")
+			.setFields(SYNC_FIELDS)
+			.walk(folderId, new FolderWalker.Visitor() {
+				@Override
+				public boolean visit(File file, int depth, String parentPath) {
+					String path = ("/".equals(parentPath) ? "" : parentPath.substring(1) + "/") + file.getName();
+					if (GDFileUtils.MIME_TYPE_FOLDER.equals(file.getMimeType())) {
+						remoteFolders.add(path);
+						plan.remoteFolderIds.put(path, file.getId());
+					} else if (file.getMimeType() == null || !file.getMimeType().startsWith(GOOGLE_APPS_MIME_TYPE_PREFIX)) {
+						// with duplicate names, the first file found is synced
+						if (!remoteFiles.containsKey(path)) {
+							remoteFiles.put(path, file);
+						}
+					}
+					return true;
+				}
+			});
+	}
+	
+	private static void listLocal(java.io.File localDir, Map<String, java.io.File> localFiles, 
+			Set<String> localFolders) throws IOException {
+		
+		Path root = localDir.toPath();
+		Stream<Path> paths = Files.walk(root);
+		try {
+			Iterator<Path> iterator = paths.iterator();
+			while (iterator.hasNext()) {
+				Path path = iterator.next();
+				if (path.equals(root)) {
+					continue;
+				}
+				String relative = root.relativize(path).toString().replace(java.io.File.separatorChar, '/');
+				if (Files.isDirectory(path)) {
+					localFolders.add(relative);
+				} else if (Files.isRegularFile(path)) {
+					localFiles.put(relative, path.toFile());
+				}
+			}
+		} finally {
+			paths.close();
+		}
+	}
+	
+	private void planChanged(SyncPlan plan, String path, java.io.File localFile, File remote) {
+		
+		boolean upload = direction == Direction.UPLOAD 
+				|| direction == Direction.BOTH && localFile.lastModified() > modifiedTime(remote);
+		
+		if (upload) {
+			plan.add(new SyncPlan.Action(SyncPlan.ActionType.UPDATE_REMOTE, path, null, remote.getId(), 
+					localFile.length(), 0));
+		} else {
+			plan.add(new SyncPlan.Action(SyncPlan.ActionType.DOWNLOAD, path, null, remote.getId(), 
+					size(remote), modifiedTime(remote)));
+		}
+	}
+	
+	/**
+	 * Pair the files missing on the target with extra files of the same content, they are moved
+	 * 
+	 * @param plan
+	 * @param localOnly
+	 * @param remoteOnly
+	 * @throws IOException
+	 */
+	private void planMoves(SyncPlan plan, Map<String, java.io.File> localOnly, Map<String, File> remoteOnly) throws IOException {
+		
+		Map<Long, List<String>> remoteBySize = new HashMap<Long, List<String>>();
+		for (Map.Entry<String, File> entry : remoteOnly.entrySet()) {
+			if (entry.getValue().getMd5Checksum() != null) {
+				List<String> paths = remoteBySize.get(size(entry.getValue()));
+				if (paths == null) {
+					paths = new ArrayList<String>();
+					remoteBySize.put(size(entry.getValue()), paths);
+				}
+				paths.add(entry.getKey());
+			}
+		}
+		
+		Iterator<Map.Entry<String, java.io.File>> iterator = localOnly.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, java.io.File> entry = iterator.next();
+			List<String> candidates = remoteBySize.get(entry.getValue().length());
+			if (candidates == null || candidates.isEmpty()) {
+				continue;
+			}
+			
+			String md5 = Checksums.md5(entry.getValue(), gdfu.getChecksumCache());
+			for (Iterator<String> candidate = candidates.iterator(); candidate.hasNext(); ) {
+				String remotePath = candidate.next();
+				File remote = remoteOnly.get(remotePath);
+				if (md5.equalsIgnoreCase(remote.getMd5Checksum())) {
+					if (direction == Direction.UPLOAD) {
+						plan.add(new SyncPlan.Action(SyncPlan.ActionType.MOVE_REMOTE, entry.getKey(), remotePath, 
+								remote.getId(), 0, 0));
+					} else {
+						plan.add(new SyncPlan.Action(SyncPlan.ActionType.MOVE_LOCAL, remotePath, entry.getKey(), 
+								remote.getId(), 0, 0));
+					}
+					candidate.remove();
+					remoteOnly.remove(remotePath);
+					iterator.remove();
+					break;
+				}
+			}
+		}
+	}
+	
+	private boolean sameContent(java.io.File localFile, File remote) throws IOException {
+		if (remote.getSize() == null || remote.getMd5Checksum() == null || localFile.length() != remote.getSize()) {
+			return false;
+		}
+		return Checksums.md5(localFile, gdfu.getChecksumCache()).equalsIgnoreCase(remote.getMd5Checksum());
+	}
+	
+	private static long size(File remote) {
+		return remote.getSize() != null ? remote.getSize() : 0;
+	}
+	
+	private static long modifiedTime(File remote) {
+		return remote.getModifiedTime() != null ? remote.getModifiedTime().getValue() : 0;
+	}
+	
+	private static String parentId(SyncPlan plan, String path) throws IOException {
+		int slash = path.lastIndexOf('/');
+		String parentPath = slash < 0 ? "" : path.substring(0, slash);
+		String parentId = plan.remoteFolderIds.get(parentPath);
+		if (parentId == null) {
+			throw new IOException("Remote folder " + parentPath + " was not created");
+		}
+		return parentId;
+	}
+	
+	private static String name(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+	
+	private static java.io.File local(SyncPlan plan, String path) {
+		return new java.io.File(plan.getLocalRoot(), path.replace('/', java.io.File.separatorChar));
+	}
+	
+	private static void deleteLocal(Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			Stream<Path> paths = Files.walk(path);
+			try {
+				List<Path> all = new ArrayList<Path>();
+				Iterator<Path> iterator = paths.iterator();
+				while (iterator.hasNext()) {
+					all.add(iterator.next());
+				}
+				// children first
+				Collections.sort(all, Collections.reverseOrder());
+				for (Path child : all) {
+					Files.deleteIfExists(child);
+				}
+			} finally {
+				paths.close();
+			}
+		} else {
+			Files.deleteIfExists(path);
+		}
+	}
+	
+}
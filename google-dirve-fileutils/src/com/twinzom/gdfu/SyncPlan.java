@@ -0,0 +1,172 @@
+package com.twinzom.gdfu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The actions that bring a local directory and a Google Drive folder in sync
+ * 
+ * <p>
+ * A plan is computed by {@link SyncEngine#plan(java.io.File, String)} without changing anything, 
+ * so printing it is a dry run. Paths are relative to the synced directory and folder, separated 
+ * by "/".
+ * </p>
+ */
+public class SyncPlan {
+
+	/**
+	 * The type of a sync action
+	 */
+	public enum ActionType {
+		CREATE_REMOTE_FOLDER, CREATE_LOCAL_FOLDER, 
+		MOVE_REMOTE, MOVE_LOCAL, 
+		UPLOAD, UPDATE_REMOTE, DOWNLOAD, 
+		DELETE_REMOTE, DELETE_LOCAL
+	}
+	
+	private final java.io.File localRoot;
+	
+	private final String remoteRootId;
+	
+	private final List<Action> actions = new ArrayList<Action>();
+	
+	/**
+	 * The ids of the remote folders by path, "" is the root folder
+	 */
+	final Map<String, String> remoteFolderIds = new HashMap<String, String>();
+	
+	SyncPlan(java.io.File localRoot, String remoteRootId) {
+		this.localRoot = localRoot;
+		this.remoteRootId = remoteRootId;
+		this.remoteFolderIds.put("", remoteRootId);
+	}
+	
+	void add(Action action) {
+		actions.add(action);
+	}
+	
+	public java.io.File getLocalRoot() {
+		return localRoot;
+	}
+
+	public String getRemoteRootId() {
+		return remoteRootId;
+	}
+
+	public List<Action> getActions() {
+		return Collections.unmodifiableList(actions);
+	}
+	
+	public boolean isEmpty() {
+		return actions.isEmpty();
+	}
+	
+	/**
+	 * Get the number of actions of each type
+	 * 
+	 * @return
+	 */
+	public Map<ActionType, Integer> getSummary() {
+		Map<ActionType, Integer> summary = new EnumMap<ActionType, Integer>(ActionType.class);
+		for (Action action : actions) {
+			Integer count = summary.get(action.getType());
+			summary.put(action.getType(), count == null ? 1 : count + 1);
+		}
+		return summary;
+	}
+	
+	/**
+	 * Get the number of bytes to be uploaded and downloaded
+	 * 
+	 * @return
+	 */
+	public long getTransferSize() {
+		long size = 0;
+		for (Action action : actions) {
+			if (action.getType() == ActionType.UPLOAD || action.getType() == ActionType.UPDATE_REMOTE 
+					|| action.getType() == ActionType.DOWNLOAD) {
+				size += action.getSize();
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * List the actions, one per line, followed by the summary
+	 */
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (Action action : actions) {
+			result.append(action).append('\n');
+		}
+		result.append("Summary: ").append(getSummary())
+			  .append(", bytes to transfer: ").append(getTransferSize());
+		return result.toString();
+	}
+	
+	//-----------------------------------------------------------------------
+	/**
+	 * One action of a plan
+	 */
+	public static class Action {
+		
+		private final ActionType type;
+		private final String path;
+		private final String fromPath;
+		private final String fileId;
+		private final long size;
+		private final long modifiedTime;
+		
+		/**
+		 * @param type
+		 * @param path - The path of the file after the action
+		 * @param fromPath - The path of a moved file before the action, null for other actions
+		 * @param fileId - The remote file, null when it does not exist yet
+		 * @param size - The number of bytes to be transferred
+		 * @param modifiedTime - The modified time of the source of a download
+		 */
+		Action(ActionType type, String path, String fromPath, String fileId, long size, long modifiedTime) {
+			this.type = type;
+			this.path = path;
+			this.fromPath = fromPath;
+			this.fileId = fileId;
+			this.size = size;
+			this.modifiedTime = modifiedTime;
+		}
+
+		public ActionType getType() {
+			return type;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public String getFromPath() {
+			return fromPath;
+		}
+
+		public String getFileId() {
+			return fileId;
+		}
+
+		public long getSize() {
+			return size;
+		}
+		
+		long getModifiedTime() {
+			return modifiedTime;
+		}
+		
+		@Override
+		public String toString() {
+			return type + " " + (fromPath != null ? fromPath + " -> " : "") + path 
+					+ (size > 0 ? " (" + size + " bytes)" : "");
+		}
+	}
+}
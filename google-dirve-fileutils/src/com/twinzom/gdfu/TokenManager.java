@@ -0,0 +1,333 @@
+package com.twinzom.gdfu;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+
+/**
+ * Keeps the access token of a credential valid, refreshing it ahead of expiry in the background
+ *
+ * <p>
+ * The token is refreshed on a background thread a few minutes before it expires, so callers of
+ * {@link #getAccessToken()} get the cached token without waiting. Only one refresh runs at a time:
+ * the callers that need a token while it is being refreshed share the same refresh. A caller
+ * waits only when there is no valid token at all, e.g. on first use or after refreshes failed
+ * until the token expired.
+ * </p>
+ *
+ * <p>
+ * A failed refresh is retried with backoff while the current token is still valid. Once the
+ * token expired, the error of the last refresh is thrown to the callers.
+ * </p>
+ *
+ * <p>
+ * The token is stored in the credential. As the initializer of the requests of the Google API client, 
+ * the manager sets their authorization header from the cached token too, while the credential still 
+ * handles a token rejected by the server.
+ * </p>
+ */
+public class TokenManager implements HttpRequestInitializer, HttpExecuteInterceptor {
+
+	/**
+	 * Default refresh margin before expiry is 5 minutes
+	 */
+	private static final long DEFAULT_REFRESH_MARGIN = 5 * 60 * 1000;
+
+	/**
+	 * A token that expires sooner than 10 seconds is not handed out anymore
+	 */
+	private static final long MIN_VALIDITY = 10 * 1000;
+
+	/**
+	 * The first retry of a failed refresh is after 1 second, doubled up to 1 minute
+	 */
+	private static final long INITIAL_RETRY_DELAY = 1000;
+
+	private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+	private final GoogleCredential credential;
+
+	private volatile long refreshMargin = DEFAULT_REFRESH_MARGIN;
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * The refresh running, null when none
+	 */
+	private CompletableFuture<String> refresh;
+
+	private long retryDelay = INITIAL_RETRY_DELAY;
+
+	/**
+	 * The time (in milliseconds since epoch) before which a failed refresh is not tried again in
+	 * the background, 0 after a success
+	 */
+	private long nextAttemptAt = 0;
+
+	private volatile IOException lastError;
+
+	private volatile long lastRefreshTime;
+
+	private final AtomicLong refreshCount = new AtomicLong();
+
+	private final AtomicLong failureCount = new AtomicLong();
+
+	private final AtomicLong waitCount = new AtomicLong();
+
+	/**
+	 * @param credential
+	 */
+	public TokenManager(GoogleCredential credential) {
+		this.credential = credential;
+	}
+
+	/**
+	 * Get the credential whose token is managed
+	 *
+	 * @return
+	 */
+	public GoogleCredential getCredential() {
+		return credential;
+	}
+
+	/**
+	 * Set how long before expiry the token is refreshed (in milliseconds), default is 5 minutes
+	 *
+	 * @param refreshMargin
+	 */
+	public void setRefreshMargin(long refreshMargin) {
+		if (refreshMargin <= MIN_VALIDITY) {
+			throw new IllegalArgumentException("Refresh margin must be more than " + MIN_VALIDITY + " ms");
+		}
+		this.refreshMargin = refreshMargin;
+	}
+
+	/**
+	 * Get a valid access token
+	 *
+	 * <p>
+	 * The cached token is returned at once while it is valid. When it is close to expiry, a
+	 * background refresh is started if none is running and the retry delay of a failed refresh
+	 * is over. Callers wait for a refresh only when the token is about to expire.
+	 * </p>
+	 *
+	 * @return
+	 * @throws IOException - If there is no valid token and it cannot be refreshed
+	 */
+	public String getAccessToken() throws IOException {
+
+		String token = credential.getAccessToken();
+		long validity = getValidity();
+
+		if (token != null && validity > refreshMargin) {
+			return token;
+		}
+
+		if (token != null && validity > MIN_VALIDITY) {
+			refreshInBackground();
+			return token;
+		}
+
+		waitCount.incrementAndGet();
+		try {
+			return refresh().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for access token");
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+					: new IOException("Cannot refresh access token", e.getCause());
+		}
+	}
+
+	@Override
+	public void initialize(HttpRequest request) throws IOException {
+		credential.initialize(request);
+		request.setInterceptor(this);
+	}
+
+	@Override
+	public void intercept(HttpRequest request) throws IOException {
+		request.getHeaders().setAuthorization("Bearer " + getAccessToken());
+	}
+
+	/**
+	 * Stop the background refreshes, they start again on the next refresh
+	 */
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Get the error of the last refresh, null if it succeeded
+	 *
+	 * @return
+	 */
+	public IOException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Get the time of the last successful refresh (in milliseconds since epoch), 0 if none
+	 *
+	 * @return
+	 */
+	public long getLastRefreshTime() {
+		return lastRefreshTime;
+	}
+
+	/**
+	 * Get the number of successful refreshes
+	 *
+	 * @return
+	 */
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	/**
+	 * Get the number of failed refreshes
+	 *
+	 * @return
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * Get the number of callers that had to wait for a refresh
+	 *
+	 * @return
+	 */
+	public long getWaitCount() {
+		return waitCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "refreshes: " + refreshCount + ", failures: " + failureCount + ", waits: " + waitCount
+				+ (credential.getAccessToken() != null ? ", valid for: " + getValidity() / 1000 + " s" : "")
+				+ (lastError != null ? ", last error: " + lastError : "");
+	}
+
+	/**
+	 * Start a refresh unless one is running, or the last one failed less than the retry delay ago
+	 */
+	private synchronized void refreshInBackground() {
+		if (refresh == null && System.currentTimeMillis() >= nextAttemptAt) {
+			refresh();
+		}
+	}
+
+	/**
+	 * Start a refresh unless one is running
+	 *
+	 * @return The refresh running
+	 */
+	private synchronized CompletableFuture<String> refresh() {
+
+		if (refresh != null) {
+			return refresh;
+		}
+
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+		refresh = future;
+		getScheduler().execute(new Runnable() {
+			@Override
+			public void run() {
+				doRefresh(future);
+			}
+		});
+
+		return future;
+	}
+
+	private void doRefresh(CompletableFuture<String> future) {
+
+		IOException error = null;
+		try {
+			if (!credential.refreshToken()) {
+				error = new IOException("Access token was not refreshed, the credential cannot be refreshed");
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (RuntimeException e) {
+			error = new IOException("Cannot refresh access token", e);
+		}
+
+		long delay;
+		synchronized (this) {
+			refresh = null;
+			if (error == null) {
+				lastError = null;
+				lastRefreshTime = System.currentTimeMillis();
+				refreshCount.incrementAndGet();
+				retryDelay = INITIAL_RETRY_DELAY;
+				nextAttemptAt = 0;
+				delay = Math.max(getValidity() - refreshMargin, MIN_VALIDITY);
+			} else {
+				lastError = error;
+				failureCount.incrementAndGet();
+				delay = retryDelay;
+				retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+				nextAttemptAt = System.currentTimeMillis() + delay;
+			}
+			// nothing to schedule after close
+			if (scheduler != null) {
+				final long due = nextAttemptAt;
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (TokenManager.this) {
+							// a caller may have refreshed meanwhile, which scheduled its own retry
+							if (nextAttemptAt == due && getValidity() <= refreshMargin) {
+								refresh();
+							}
+						}
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		if (error == null) {
+			future.complete(credential.getAccessToken());
+		} else {
+			future.completeExceptionally(error);
+		}
+	}
+
+	/**
+	 * Get the time left before the token expires (in milliseconds)
+	 *
+	 * @return
+	 */
+	private long getValidity() {
+		Long expirationTime = credential.getExpirationTimeMilliseconds();
+		if (expirationTime == null) {
+			// a token set without expiry is taken as it is
+			return Long.MAX_VALUE;
+		}
+		return expirationTime - System.currentTimeMillis();
+	}
+
+	private synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("gdfu-token-refresh"));
+		}
+		return scheduler;
+	}
+
+}
@@ -0,0 +1,245 @@
+package com.twinzom.gdfu;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Local journal of the resumable upload sessions
+ * 
+ * <p>
+ * Each upload in progress is checkpointed to a small file in the journal directory, holding 
+ * the session URI, the identity of the local file (path, size, last modified time) and the 
+ * last offset acknowledged by Google Drive. When the same file is uploaded again to the same 
+ * parents, after a failure or a restart of the JVM, the upload continues in the recorded 
+ * session instead of starting from byte 0.
+ * </p>
+ * 
+ * <p>
+ * An entry is discarded when the local file was changed since it was recorded.
+ * </p>
+ */
+public class UploadJournal {
+
+	private static final String SUFFIX = ".upload";
+	
+	private static final String KEY_SESSION_URI = "sessionUri";
+	private static final String KEY_PATH = "path";
+	private static final String KEY_PARENTS = "parents";
+	private static final String KEY_SIZE = "size";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+	private static final String KEY_OFFSET = "offset";
+	
+	/**
+	 * The directory where the entries are kept
+	 */
+	private final java.io.File directory;
+	
+	/**
+	 * @param directory - The directory where the entries are kept, it is created if not exists
+	 * @throws IOException
+	 */
+	public UploadJournal(java.io.File directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory.toPath());
+	}
+	
+	public java.io.File getDirectory() {
+		return directory;
+	}
+	
+	/**
+	 * Find the recorded session of given local file and parents
+	 * 
+	 * @param localFile
+	 * @param parentIds
+	 * @return The entry, or null if there is no session or the local file was changed
+	 * @throws IOException
+	 */
+	public synchronized Entry find(java.io.File localFile, List<String> parentIds) throws IOException {
+		
+		java.io.File entryFile = entryFile(localFile, parentIds);
+		if (!entryFile.exists()) {
+			return null;
+		}
+		
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(entryFile);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		
+		Entry entry;
+		try {
+			entry = new Entry(properties.getProperty(KEY_SESSION_URI),
+					properties.getProperty(KEY_PATH),
+					properties.getProperty(KEY_PARENTS),
+					Long.parseLong(properties.getProperty(KEY_SIZE)),
+					Long.parseLong(properties.getProperty(KEY_LAST_MODIFIED)),
+					Long.parseLong(properties.getProperty(KEY_OFFSET)));
+		} catch (RuntimeException e) {
+			// unreadable entry, forget it
+			entryFile.delete();
+			return null;
+		}
+		
+		if (entry.getSessionUri() == null 
+				|| !entry.getPath().equals(localFile.getAbsolutePath())
+				|| entry.getSize() != localFile.length()
+				|| entry.getLastModified() != localFile.lastModified()) {
+			entryFile.delete();
+			return null;
+		}
+		
+		return entry;
+	}
+	
+	/**
+	 * Record a new session of given local file and parents
+	 * 
+	 * @param sessionUri
+	 * @param localFile
+	 * @param parentIds
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized Entry create(String sessionUri, java.io.File localFile, List<String> parentIds) throws IOException {
+		
+		Entry entry = new Entry(sessionUri, localFile.getAbsolutePath(), 
+				Util.listToString(parentIds, ",", ""), localFile.length(), localFile.lastModified(), 0);
+		write(entry);
+		
+		return entry;
+	}
+	
+	/**
+	 * Record the offset acknowledged by Google Drive
+	 * 
+	 * @param entry
+	 * @param offset
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint(Entry entry, long offset) throws IOException {
+		entry.offset = offset;
+		write(entry);
+	}
+	
+	/**
+	 * Remove the entry once the upload was completed or the session is gone
+	 * 
+	 * @param entry
+	 */
+	public synchronized void remove(Entry entry) {
+		entryFile(entry.getPath(), entry.getParents()).delete();
+	}
+	
+	private void write(Entry entry) throws IOException {
+		
+		Properties properties = new Properties();
+		properties.setProperty(KEY_SESSION_URI, entry.getSessionUri());
+		properties.setProperty(KEY_PATH, entry.getPath());
+		properties.setProperty(KEY_PARENTS, entry.getParents());
+		properties.setProperty(KEY_SIZE, String.valueOf(entry.getSize()));
+		properties.setProperty(KEY_LAST_MODIFIED, String.valueOf(entry.getLastModified()));
+		properties.setProperty(KEY_OFFSET, String.valueOf(entry.getOffset()));
+		
+		java.io.File entryFile = entryFile(entry.getPath(), entry.getParents());
+		java.io.File tempFile = new java.io.File(directory, entryFile.getName() + ".tmp");
+		
+		OutputStream out = new FileOutputStream(tempFile);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		
+		// replace the old entry at once, a crash must not leave half an entry behind
+		try {
+			Files.move(tempFile.toPath(), entryFile.toPath(), 
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	private java.io.File entryFile(java.io.File localFile, List<String> parentIds) {
+		return entryFile(localFile.getAbsolutePath(), Util.listToString(parentIds, ",", ""));
+	}
+	
+	private java.io.File entryFile(String path, String parents) {
+		
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest((path + "|" + parents).getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		
+		return new java.io.File(directory, Checksums.toHex(digest) + SUFFIX);
+	}
+	
+	//-----------------------------------------------------------------------
+	/**
+	 * A recorded upload session
+	 */
+	public static class Entry {
+		
+		private final String sessionUri;
+		private final String path;
+		private final String parents;
+		private final long size;
+		private final long lastModified;
+		private volatile long offset;
+		
+		Entry(String sessionUri, String path, String parents, long size, long lastModified, long offset) {
+			this.sessionUri = sessionUri;
+			this.path = path;
+			this.parents = parents;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.offset = offset;
+		}
+
+		public String getSessionUri() {
+			return sessionUri;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public String getParents() {
+			return parents;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Get the last offset acknowledged by Google Drive
+		 * 
+		 * @return
+		 */
+		public long getOffset() {
+			return offset;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package com.twinzom.gdfu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Statistics of one resumable upload
+ * 
+ * <p>
+ * Records the size and the duration of every chunk that was sent. Pass an instance to 
+ * {@link GDFileUtils#upload(com.google.api.services.drive.model.File, java.io.File, java.util.List, UploadStats)} 
+ * to see the chunk sizes picked by adaptive chunk sizing, or the throughput of a fixed chunk size.
+ * </p>
+ */
+public class UploadStats {
+
+	private final List<Integer> chunkSizes = new ArrayList<Integer>();
+	
+	private final List<Long> chunkDurations = new ArrayList<Long>();
+	
+	private long bytesUploaded = 0;
+	
+	private long elapsedNanos = 0;
+	
+	private String duplicateOf;
+	
+	private boolean copied = false;
+	
+	synchronized void addChunk(int size, long durationNanos) {
+		chunkSizes.add(size);
+		chunkDurations.add(durationNanos / 1000000L);
+		bytesUploaded += size;
+		elapsedNanos += durationNanos;
+	}
+	
+	synchronized void setDuplicateOf(String fileId, boolean copied) {
+		this.duplicateOf = fileId;
+		this.copied = copied;
+	}
+	
+	/**
+	 * Get the id of the identical file found by a deduplicated upload, null if the content was uploaded
+	 * 
+	 * @return
+	 */
+	public synchronized String getDuplicateOf() {
+		return duplicateOf;
+	}
+	
+	/**
+	 * Whether the identical file had another name and was copied, false if the upload was just skipped
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isCopied() {
+		return copied;
+	}
+	
+	/**
+	 * Get the size (in bytes) of each chunk sent, in order
+	 * 
+	 * @return
+	 */
+	public synchronized List<Integer> getChunkSizes() {
+		return Collections.unmodifiableList(new ArrayList<Integer>(chunkSizes));
+	}
+	
+	/**
+	 * Get the duration (in milliseconds) of each chunk request, in order
+	 * 
+	 * @return
+	 */
+	public synchronized List<Long> getChunkDurations() {
+		return Collections.unmodifiableList(new ArrayList<Long>(chunkDurations));
+	}
+	
+	/**
+	 * Get the number of chunks sent
+	 * 
+	 * @return
+	 */
+	public synchronized int getChunkCount() {
+		return chunkSizes.size();
+	}
+	
+	/**
+	 * Get the number of bytes sent
+	 * 
+	 * @return
+	 */
+	public synchronized long getBytesUploaded() {
+		return bytesUploaded;
+	}
+	
+	/**
+	 * Get the time spent in chunk requests (in milliseconds)
+	 * 
+	 * @return
+	 */
+	public synchronized long getElapsedTime() {
+		return elapsedNanos / 1000000L;
+	}
+	
+	/**
+	 * Get the average throughput (in bytes per second) of the chunk requests
+	 * 
+	 * @return
+	 */
+	public synchronized double getThroughput() {
+		return elapsedNanos == 0 ? 0 : bytesUploaded * 1e9 / elapsedNanos;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "UploadStats [chunks=" + chunkSizes.size() + ", bytesUploaded=" + bytesUploaded 
+				+ ", elapsedTime=" + getElapsedTime() + "ms, throughput=" + (long) getThroughput() 
+				+ "B/s, chunkSizes=" + chunkSizes 
+				+ (duplicateOf != null ? ", duplicateOf=" + duplicateOf + (copied ? " (copied)" : "") : "") + "]";
+	}
+}
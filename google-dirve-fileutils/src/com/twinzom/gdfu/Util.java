@@ -23,4 +23,14 @@ public class Util {
 		return result;
 	}
 	
+	/**
+	 * Escape a value to be quoted in a Google Drive query, e.g. name = '...'
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static String escapeQueryValue (String value) {
+		return value.replace("\\", "\\\\").replace("'", "\\'");
+	}
+	
 }
@@ -0,0 +1,32 @@
+package com.twinzom.gdfu.sample;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.twinzom.gdfu.Authorization;
+import com.twinzom.gdfu.BulkOperations;
+import com.twinzom.gdfu.GDFileUtils;
+
+public class BulkOperationsSample extends Sample {
+	
+	public static void main(String[] args) throws IOException, GeneralSecurityException {
+		GoogleCredential credential = Authorization.getCredential(KEY_FILE, Collections.singleton("https://www.googleapis.com/auth/drive"));
+		GDFileUtils gdfu = new GDFileUtils(credential);
+		
+		List<BulkOperations.Result> results = gdfu.newBulkOperations()
+				.rename("1TLGurS33El_7v2G5JXbawdLA7rdgtcOW", "EntypoXXXXXXXXXXXXX.ttf")
+				.moveToFolder("1zUIC3EZqdVRir_DMiH0pxm31UKEljVlC", "0B64VHJrvrPWHWThNRXUtd244TXM")
+				.copyToFolder("1tGxfv46nbimltwlgdcnmk_NOg_E9lcM0", "0B64VHJrvrPWHc09wdHh0aXFOYjg")
+				.execute();
+		
+		System.out.println("------------------------------------------------------------");
+		System.out.println("Results:");
+		for (BulkOperations.Result result : results) {
+			System.out.println(result);
+		}
+	}
+
+}
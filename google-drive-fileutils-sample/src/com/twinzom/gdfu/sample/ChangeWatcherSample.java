@@ -0,0 +1,35 @@
+package com.twinzom.gdfu.sample;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.twinzom.gdfu.Authorization;
+import com.twinzom.gdfu.ChangeEvent;
+import com.twinzom.gdfu.ChangeListener;
+import com.twinzom.gdfu.ChangeWatcher;
+import com.twinzom.gdfu.GDFileUtils;
+
+public class ChangeWatcherSample extends Sample {
+	
+	public static void main(String[] args) throws IOException, GeneralSecurityException, InterruptedException {
+		GoogleCredential credential = Authorization.getCredential(KEY_FILE, Collections.singleton("https://www.googleapis.com/auth/drive"));
+		GDFileUtils gdfu = new GDFileUtils(credential);
+		
+		ChangeWatcher watcher = gdfu.newChangeWatcher(new java.io.File("/tmp/gdfu-changes.token"));
+		watcher.addListener(new ChangeListener() {
+			@Override
+			public void onChange(ChangeEvent event) {
+				System.out.println(event);
+			}
+		});
+		
+		System.out.println("------------------------------------------------------------");
+		System.out.println("Watching changes for 10 minutes...");
+		watcher.start();
+		Thread.sleep(10 * 60 * 1000);
+		watcher.stop();
+	}
+
+}